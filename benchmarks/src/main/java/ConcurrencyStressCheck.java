@@ -0,0 +1,131 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Multi-threaded stress run of MovieReviewService without a database.
+// Every thread logs in its own session and posts, updates and removes reviews across a shared set of
+// movies while the others do the same. Afterwards the store, its indexes, the rating aggregates and
+// the write-behind queue are checked against what the threads did, to show that no update was lost.
+//
+// Usage: java -cp benchmarks/target/benchmarks.jar ConcurrencyStressCheck [threads] [operationsPerThread]
+public class ConcurrencyStressCheck {
+    private static final int MOVIES = 25;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+
+        EntityStore store = new EntityStore();
+        RatingAggregates ratingAggregates = new RatingAggregates();
+        // Never started: entries stay queued so they can be counted
+        WriteBehindQueue writeBehind = new WriteBehindQueue(null, 1000, 500);
+        MovieReviewService service = new MovieReviewService(store, ratingAggregates, IdAllocator.local(IdAllocator.DEFAULT_BLOCK_SIZE), writeBehind);
+
+        Session admin = new Session();
+        service.registerUser("admin", "admin", "admin@example.com");
+        service.login(admin, "admin", "admin");
+        List<String> movieIds = new ArrayList<>();
+        for (int i = 0; i < MOVIES; i++) {
+            movieIds.add(service.addMovie(admin, "Movie " + i, "Stress movie " + i, "2000", "Drama").getMovieId());
+        }
+        long setupWrites = 1 + MOVIES;
+
+        AtomicLong queuedWrites = new AtomicLong(setupWrites);
+        Map<String, List<Review>> expectedByUser = new HashMap<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String username = "stress" + t;
+            User user = service.registerUser(username, "pw", username + "@example.com");
+            queuedWrites.incrementAndGet();
+            List<Review> live = new ArrayList<>();
+            expectedByUser.put(user.getUserId(), live);
+            workers.add(Thread.ofPlatform().start(() -> {
+                try {
+                    Session session = new Session();
+                    service.login(session, username, "pw");
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < operations; i++) {
+                        int action = random.nextInt(10);
+                        if (action < 6 || live.isEmpty()) {
+                            String movieId = movieIds.get(random.nextInt(movieIds.size()));
+                            live.add(service.postReview(session, movieId, 1 + random.nextInt(5), "comment " + i));
+                        } else if (action < 9) {
+                            Review review = live.get(random.nextInt(live.size()));
+                            service.updateReview(session, review.getReviewId(), 1 + random.nextInt(5), "updated " + i);
+                        } else {
+                            Review review = live.remove(random.nextInt(live.size()));
+                            service.removeReview(session, review.getReviewId());
+                        }
+                        queuedWrites.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+
+        List<String> problems = new ArrayList<>();
+        for (Throwable failure : failures) {
+            problems.add("Worker failed: " + failure);
+        }
+
+        // Every review each thread still holds must be in the store and its per-user index, and nothing else
+        long expectedReviews = 0;
+        for (Map.Entry<String, List<Review>> entry : expectedByUser.entrySet()) {
+            expectedReviews += entry.getValue().size();
+            int indexed = store.getReviewsForUser(entry.getKey()).size();
+            if (indexed != entry.getValue().size()) {
+                problems.add("User " + entry.getKey() + ": expected " + entry.getValue().size() + " reviews, index has " + indexed);
+            }
+        }
+        if (store.reviewCount() != expectedReviews) {
+            problems.add("Expected " + expectedReviews + " reviews in the store, found " + store.reviewCount());
+        }
+
+        // The incrementally maintained aggregates must match a recount of the surviving reviews
+        for (String movieId : movieIds) {
+            List<Review> reviews = store.getReviewsForMovie(movieId);
+            long sum = 0;
+            for (Review review : reviews) {
+                sum += review.getRating();
+            }
+            RatingAggregates.MovieRating rating = ratingAggregates.getRating(movieId);
+            int count = rating == null ? 0 : rating.getCount();
+            long aggregateSum = rating == null ? 0 : rating.getSum();
+            if (count != reviews.size() || aggregateSum != sum) {
+                problems.add("Movie " + movieId + ": aggregate count=" + count + " sum=" + aggregateSum
+                        + ", recount count=" + reviews.size() + " sum=" + sum);
+            }
+        }
+
+        if (writeBehind.getQueueDepth() != queuedWrites.get()) {
+            problems.add("Expected " + queuedWrites.get() + " queued writes, found " + writeBehind.getQueueDepth());
+        }
+
+        long totalOperations = (long) threads * operations;
+        System.out.println(threads + " threads x " + operations + " operations in " + elapsedMillis + " ms ("
+                + (elapsedMillis == 0 ? totalOperations : totalOperations * 1000 / elapsedMillis) + " ops/s)");
+        if (problems.isEmpty()) {
+            System.out.println("OK: no lost updates (" + store.reviewCount() + " reviews remain)");
+        } else {
+            problems.forEach(System.out::println);
+            System.exit(1);
+        }
+    }
+}
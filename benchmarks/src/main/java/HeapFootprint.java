@@ -0,0 +1,122 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Heap used per review by the review object graph the store used to keep (a Review object with its own
+// ID strings, as the MongoDB driver decodes them, held in by-ID, by-movie and by-user hash maps) against
+// ReviewColumns holding the same reviews. Each is measured in a JVM of its own (same heap settings) as
+// the growth of the live heap after full GCs. ReviewColumns keeps the comments off the heap in a compressed
+// TextSegment; their compressed size is reported next to the heap figures. Results are printed and written
+// as JSON to heap-footprint.json.
+//
+// Usage: java -Xmx8g -cp benchmarks/target/benchmarks.jar HeapFootprint [reviews]   (default 1000000)
+public class HeapFootprint {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int reviewCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        if (args.length > 1) {
+            // Child run: print the heap growth and off-heap bytes of one representation
+            long[] measured = measure(reviewCount, args[1]);
+            System.out.println(measured[0] + " " + measured[1]);
+            return;
+        }
+        long commentBytes = 0;
+        for (Review review : new SyntheticData(reviewCount, 42).getReviews()) {
+            commentBytes += review.getComments().getBytes(StandardCharsets.UTF_8).length;
+        }
+        long objectGraphBytes = measureInChild(reviewCount, "objects")[0];
+        long[] columns = measureInChild(reviewCount, "columns");
+
+        double objectPerReview = (double) objectGraphBytes / reviewCount;
+        double columnPerReview = (double) columns[0] / reviewCount;
+        double offHeapPerReview = (double) columns[1] / reviewCount;
+        double commentPerReview = (double) commentBytes / reviewCount;
+        System.out.printf("Reviews:                 %d%n", reviewCount);
+        System.out.printf("Comment text (UTF-8):    %.1f bytes/review%n", commentPerReview);
+        System.out.printf("Object graph:            %.1f bytes/review%n", objectPerReview);
+        System.out.printf("ReviewColumns heap:      %.1f bytes/review%n", columnPerReview);
+        System.out.printf("Comments off-heap:       %.1f bytes/review (%.1fx compression)%n", offHeapPerReview,
+                commentPerReview / offHeapPerReview);
+        System.out.printf("Heap reduction:          %.1fx%n", objectPerReview / columnPerReview);
+
+        String json = String.format("{\"reviews\": %d, \"commentBytesPerReview\": %.1f, \"objectGraphBytesPerReview\": %.1f, "
+                        + "\"columnBytesPerReview\": %.1f, \"offHeapBytesPerReview\": %.1f, \"reduction\": %.2f}%n",
+                reviewCount, commentPerReview, objectPerReview, columnPerReview, offHeapPerReview, objectPerReview / columnPerReview);
+        Files.writeString(Path.of("heap-footprint.json"), json);
+    }
+
+    // {heap growth, off-heap bytes}
+    private static long[] measure(int reviewCount, String representation) {
+        SyntheticData data = new SyntheticData(reviewCount, 42);
+        long before = usedHeap();
+        Object held;
+        long offHeap = 0;
+        if (representation.equals("objects")) {
+            held = buildObjectGraph(data);
+        } else {
+            ReviewColumns columns = new ReviewColumns();
+            for (Review review : data.getReviews()) {
+                columns.add(review);
+            }
+            offHeap = columns.commentStorageBytes();
+            held = columns;
+        }
+        long grown = usedHeap() - before;
+        Reference.reachabilityFence(held);
+        Reference.reachabilityFence(data);
+        return new long[]{grown, offHeap};
+    }
+
+    private static long[] measureInChild(int reviewCount, String representation) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(HeapFootprint.class.getName());
+        command.add(Integer.toString(reviewCount));
+        command.add(representation);
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("Measuring " + representation + " failed");
+        }
+        String[] values = output.split(" ");
+        return new long[]{Long.parseLong(values[0]), Long.parseLong(values[1])};
+    }
+
+    private static Object buildObjectGraph(SyntheticData data) {
+        ConcurrentMap<String, Review> byId = new ConcurrentHashMap<>();
+        ConcurrentMap<String, Map<String, Review>> byMovie = new ConcurrentHashMap<>();
+        ConcurrentMap<String, Map<String, Review>> byUser = new ConcurrentHashMap<>();
+        for (Review source : data.getReviews()) {
+            // Decoded documents give every review its own strings
+            Review review = new Review(copy(source.getReviewId()), copy(source.getUserId()),
+                    copy(source.getMovieId()), source.getRating(), copy(source.getComments()));
+            byId.put(review.getReviewId(), review);
+            byMovie.computeIfAbsent(review.getMovieId(), k -> new ConcurrentHashMap<>()).put(review.getReviewId(), review);
+            byUser.computeIfAbsent(review.getUserId(), k -> new ConcurrentHashMap<>()).put(review.getReviewId(), review);
+        }
+        return new Object[]{byId, byMovie, byUser};
+    }
+
+    // new String(String) would share the character array
+    private static String copy(String value) {
+        return new String(value.toCharArray());
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.List;
+
+// Checks TextAnalyzer's stemmer on word pairs that must, or must not, end up as the same term, and the
+// full-text search on the app's most common query terms.
+//
+// Usage: java -cp benchmarks/target/benchmarks.jar StemmerCheck
+public class StemmerCheck {
+    // Each pair must stem to the same term
+    private static final List<String[]> SAME = List.of(
+            new String[] {"movies", "movie"},
+            new String[] {"films", "film"},
+            new String[] {"speeds", "speed"},
+            new String[] {"stopped", "stop"},
+            new String[] {"stopping", "stop"},
+            new String[] {"loved", "love"},
+            new String[] {"loving", "love"},
+            new String[] {"stories", "story"},
+            new String[] {"classes", "class"},
+            new String[] {"hoped", "hope"},
+            new String[] {"agreed", "agree"});
+    // Each word must stem to exactly this term
+    private static final List<String[]> EXACT = List.of(
+            new String[] {"speed", "speed"},
+            new String[] {"need", "need"},
+            new String[] {"series", "seri"},
+            new String[] {"movie", "movi"},
+            new String[] {"bus", "bu"},
+            new String[] {"sing", "sing"},
+            new String[] {"red", "red"},
+            new String[] {"hopping", "hop"},
+            new String[] {"falling", "fall"},
+            new String[] {"1990s", "1990"});
+
+    public static void main(String[] args) {
+        int failures = 0;
+        for (String[] pair : SAME) {
+            String first = TextAnalyzer.stem(pair[0]);
+            String second = TextAnalyzer.stem(pair[1]);
+            if (!first.equals(second)) {
+                System.out.println("FAIL " + pair[0] + " -> " + first + ", " + pair[1] + " -> " + second);
+                failures++;
+            }
+        }
+        for (String[] expected : EXACT) {
+            String stem = TextAnalyzer.stem(expected[0]);
+            if (!stem.equals(expected[1])) {
+                System.out.println("FAIL " + expected[0] + " -> " + stem + ", expected " + expected[1]);
+                failures++;
+            }
+        }
+
+        // "movies" finds a movie that only says "movie", and a removed document no longer counts
+        FullTextIndex index = new FullTextIndex();
+        index.indexMovie(new Movie("1", "A movie about trains", "", "2000", "Drama"));
+        index.indexMovie(new Movie("2", "Two movies", "", "2001", "Drama"));
+        index.indexMovie(new Movie("3", "Trains", "", "2002", "Drama"));
+        if (index.search("movies", 10).size() != 2) {
+            System.out.println("FAIL search for movies");
+            failures++;
+        }
+        index.removeMovie("2");
+        if (index.search("movie", 10).size() != 1) {
+            System.out.println("FAIL search after removing a movie");
+            failures++;
+        }
+
+        System.out.println(failures == 0 ? "Stemmer check passed" : failures + " stemmer checks failed");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import benchmarks.Workload;
+
+// The benchmark workload on the real application classes: an EntityStore and RatingAggregates filled
+// with SyntheticData, a local IdAllocator, and an embedded storage engine in a temporary directory
+// (holding the whole data set, for the load benchmarks) as the stand-in for MongoDB, next to a
+// warm-start snapshot of the same data.
+public class StoreWorkload implements Workload {
+    private static final long SEED = 42;
+    private static final File NULL_DEVICE = new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null");
+
+    private final SyntheticData data;
+    private final EntityStore store = new EntityStore();
+    private final RatingAggregates ratingAggregates = new RatingAggregates();
+    private final IdAllocator idAllocator = IdAllocator.local(IdAllocator.DEFAULT_BLOCK_SIZE);
+    private final MovieReviewService service;
+    private final List<Movie> movies;
+    private final List<User> users;
+    private final Path dataDir;
+    private final EmbeddedStorage storage;
+    private final Path snapshotFile;
+    private int persistCursor;
+
+    public StoreWorkload(int reviews) {
+        data = new SyntheticData(reviews, SEED);
+        data.populate(store, ratingAggregates);
+        service = new MovieReviewService(store, ratingAggregates, idAllocator, null);
+        movies = store.getMovieList();
+        users = new ArrayList<>(store.getUsers());
+        try {
+            dataDir = Files.createTempDirectory("movie-review-bench");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        storage = EmbeddedStorage.open(dataDir, Long.MAX_VALUE);
+        data.save(storage, StartupLoader.DEFAULT_BATCH_SIZE);
+        storage.snapshot();
+        snapshotFile = dataDir.resolve("warm-start.snapshot");
+        try {
+            StoreSnapshot.write(snapshotFile, store, storage.describe(), System.currentTimeMillis());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public int movieCount() {
+        return movies.size();
+    }
+
+    @Override
+    public int userCount() {
+        return users.size();
+    }
+
+    @Override
+    public Object findMovie(int index) {
+        return store.findMovieById(movies.get(index).getMovieId());
+    }
+
+    @Override
+    public Object findUser(int index) {
+        return store.findUserById(users.get(index).getUserId());
+    }
+
+    @Override
+    public Object reviewsForMovie(int index) {
+        return service.getReviewsForMovie(movies.get(index).getMovieId());
+    }
+
+    @Override
+    public Object userReviews(int index) {
+        return service.getUserReviews(users.get(index).getUserId());
+    }
+
+    @Override
+    public Object moviePageWithRatings(int page, int pageSize) {
+        List<Movie> movieList = service.getMovieList();
+        int from = Math.min(page * pageSize, movieList.size());
+        int to = Math.min(from + pageSize, movieList.size());
+        double total = 0;
+        for (Movie movie : movieList.subList(from, to)) {
+            RatingAggregates.MovieRating rating = ratingAggregates.getRating(movie.getMovieId());
+            total += rating == null ? 0 : rating.getAverage();
+        }
+        return total;
+    }
+
+    @Override
+    public Object searchGenres(String query) {
+        return service.searchByGenre(query);
+    }
+
+    @Override
+    public Object searchYears(int fromYear, int toYear) {
+        return service.searchByReleaseYears(fromYear, toYear);
+    }
+
+    @Override
+    public Object topRated(String genre, int count) {
+        return service.topRated(genre, count);
+    }
+
+    @Override
+    public Object topRatedBySorting(String genre, int count) {
+        Leaderboards leaderboards = service.getLeaderboards();
+        double prior = leaderboards.getPrior();
+        int minVotes = leaderboards.getMinVotes();
+        List<Movie> candidates = genre == null ? movies : service.searchByGenre(genre);
+        List<double[]> scored = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            RatingAggregates.MovieRating rating = ratingAggregates.getRating(candidates.get(i).getMovieId());
+            if (rating != null && rating.getCount() >= minVotes) {
+                scored.add(new double[]{(rating.getSum() + minVotes * prior) / (rating.getCount() + minVotes), i});
+            }
+        }
+        scored.sort((a, b) -> Double.compare(b[0], a[0]));
+        return scored.subList(0, Math.min(count, scored.size()));
+    }
+
+    @Override
+    public Object trending(String window, int count) {
+        return service.trending(Trending.Window.valueOf(window.toUpperCase()), count);
+    }
+
+    @Override
+    public Object trendingByScan(String window, int count) {
+        Map<String, long[]> counts = new HashMap<>();
+        long since = System.currentTimeMillis() - Trending.Window.valueOf(window.toUpperCase()).getMillis();
+        store.forEachReviewSince(since, (movieId, rating, reviewedAt) ->
+                counts.computeIfAbsent(movieId, k -> new long[1])[0]++);
+        List<Map.Entry<String, long[]>> ranked = new ArrayList<>(counts.entrySet());
+        ranked.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        return ranked.subList(0, Math.min(count, ranked.size()));
+    }
+
+    @Override
+    public void buildRecommendations() {
+        Recommender recommender = service.getRecommender();
+        recommender.ratingsReplaced();
+        recommender.refresh();
+    }
+
+    @Override
+    public Object recommend(int userIndex, int count) {
+        Recommender recommender = service.getRecommender();
+        if (!recommender.isReady()) {
+            recommender.refresh();
+        }
+        return recommender.recommend(users.get(userIndex).getUserId(), count);
+    }
+
+    @Override
+    public String nextId() {
+        return idAllocator.nextId(IdAllocator.REVIEWS);
+    }
+
+    @Override
+    public void updateRating(int movieIndex, int oldRating, int newRating) {
+        ratingAggregates.updateRating(movies.get(movieIndex).getMovieId(), oldRating, newRating);
+    }
+
+    @Override
+    public long recountRatings() {
+        RatingAggregates recount = new RatingAggregates();
+        for (Review review : store.getReviews()) {
+            recount.addRating(review.getMovieId(), review.getRating());
+        }
+        return recount.getAllRatings().size();
+    }
+
+    @Override
+    public void persistBatch(int batchSize) {
+        List<Review> reviews = data.getReviews();
+        List<WriteBehindQueue.DirtyEntry> batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            Review review = reviews.get(persistCursor);
+            persistCursor = (persistCursor + 1) % reviews.size();
+            batch.add(new WriteBehindQueue.DirtyEntry("Reviews", "reviewId", review.getReviewId(),
+                    WriteBehindQueue.Operation.UPSERT, DocumentMapper.toDocument(review)));
+        }
+        storage.write("Reviews", batch);
+    }
+
+    @Override
+    public int loadFromStorage() {
+        EntityStore loaded = new EntityStore();
+        new StartupLoader(storage, StartupLoader.DEFAULT_BATCH_SIZE).load(loaded, new RatingAggregates());
+        return loaded.reviewCount();
+    }
+
+    @Override
+    public int loadFromSnapshot() {
+        EntityStore loaded = new EntityStore();
+        try {
+            StoreSnapshot.open(snapshotFile).load(loaded, new RatingAggregates());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return loaded.reviewCount();
+    }
+
+    @Override
+    public long printReviewsLineByLine() {
+        // System.out's own setup: a 128-byte buffer flushed on every println
+        try (PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(NULL_DEVICE), 128), true)) {
+            long count = 0;
+            out.println("All Review Details:");
+            for (Review review : store.getReviews()) {
+                out.println("User UUID: " + review.getUserId());
+                out.println("Movie UUID: " + review.getMovieId());
+                out.println("Rating: " + review.getRating());
+                out.println("Comments: " + review.getComments());
+                out.println();
+                count++;
+            }
+            return count;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long exportReviews(String format, boolean gzip) {
+        try (Writer out = Exporter.open(new FileOutputStream(NULL_DEVICE), gzip)) {
+            return new Exporter(store, null).exportFromStore(Exporter.Kind.REVIEWS, parseFormat(format), null, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long exportReviewsFromStorage(String format) {
+        try (Writer out = Exporter.open(new FileOutputStream(NULL_DEVICE), false)) {
+            return new Exporter(null, storage).exportFromDatabase(Exporter.Kind.REVIEWS, parseFormat(format), null, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Exporter.Format parseFormat(String format) {
+        return Exporter.Format.valueOf(format.toUpperCase(Locale.ROOT));
+    }
+
+    @Override
+    public void close() {
+        storage.close();
+        try (Stream<Path> files = Files.walk(dataDir)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        } catch (IOException e) {
+            System.err.println("Error removing " + dataDir + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bson.Document;
+
+// Deterministic generator of users, movies and reviews for benchmarks.
+// The scale is given as a review count; there is one user per 20 reviews and one movie per 100
+// reviews (10k reviews: 500 users and 100 movies; 10M reviews: 500k users and 100k movies).
+// Movie popularity is skewed (a few movies get most reviews) like real rating data. Reviews are spread
+// evenly over the REVIEW_DAYS days up to the time the data is generated, in ID order.
+//
+// Usage: java SyntheticData <reviews> <dataDir>  fills an embedded store (-Dapp.storage=embedded)
+public class SyntheticData {
+    public static final String[] GENRES = {
+            "Action", "Adventure", "Animation", "Comedy", "Crime", "Documentary", "Drama", "Family",
+            "Fantasy", "History", "Horror", "Music", "Mystery", "Romance", "Science Fiction", "Thriller", "War", "Western"
+    };
+    private static final String[] WORDS = {
+            "story", "great", "acting", "plot", "boring", "brilliant", "music", "scene", "ending", "cast",
+            "director", "visual", "slow", "funny", "dark", "classic", "sequel", "hero", "villain", "twist"
+    };
+    public static final int FIRST_YEAR = 1950;
+    public static final int LAST_YEAR = 2024;
+    public static final int REVIEW_DAYS = 60;
+
+    private final List<User> users = new ArrayList<>();
+    private final List<Movie> movies = new ArrayList<>();
+    private final List<Review> reviews = new ArrayList<>();
+
+    public SyntheticData(int reviewCount, long seed) {
+        Random random = new Random(seed);
+        int userCount = Math.max(1, reviewCount / 20);
+        int movieCount = Math.max(1, reviewCount / 100);
+        long now = System.currentTimeMillis();
+        long reviewSpan = REVIEW_DAYS * 86_400_000L;
+        for (int i = 1; i <= userCount; i++) {
+            users.add(new User(Integer.toString(i), "user" + i, "pw" + i, "user" + i + "@example.com"));
+        }
+        for (int i = 1; i <= movieCount; i++) {
+            int year = FIRST_YEAR + random.nextInt(LAST_YEAR - FIRST_YEAR + 1);
+            String releaseDate = String.format("%d-%02d-%02d", year, 1 + random.nextInt(12), 1 + random.nextInt(28));
+            String genre = GENRES[random.nextInt(GENRES.length)];
+            if (random.nextBoolean()) {
+                genre += ", " + GENRES[random.nextInt(GENRES.length)];
+            }
+            movies.add(new Movie(Integer.toString(i), "Movie " + i + " " + words(random, 2), words(random, 12), releaseDate, genre));
+        }
+        for (int i = 1; i <= reviewCount; i++) {
+            // Squaring a uniform value favours low movie numbers
+            double skew = random.nextDouble();
+            int movie = (int) (skew * skew * movieCount);
+            reviews.add(new Review(Integer.toString(i), users.get(random.nextInt(userCount)).getUserId(),
+                    movies.get(movie).getMovieId(), 1 + random.nextInt(5), words(random, 8),
+                    now - (reviewCount - i) * reviewSpan / reviewCount));
+        }
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    public List<User> getUsers() {
+        return users;
+    }
+
+    public List<Movie> getMovies() {
+        return movies;
+    }
+
+    public List<Review> getReviews() {
+        return reviews;
+    }
+
+    // Adds everything to the store and the rating aggregates, as StartupLoader would
+    public void populate(EntityStore store, RatingAggregates ratingAggregates) {
+        users.forEach(store::addUser);
+        movies.forEach(store::addMovie);
+        for (Review review : reviews) {
+            store.addReview(review);
+            ratingAggregates.addRating(review.getMovieId(), review.getRating());
+        }
+    }
+
+    // Writes everything to a storage backend in batches
+    public void save(StorageBackend backend, int batchSize) {
+        List<WriteBehindQueue.DirtyEntry> batch = new ArrayList<>(batchSize);
+        for (User user : users) {
+            addToBatch(backend, batch, batchSize, "Users", "userId", user.getUserId(), DocumentMapper.toDocument(user));
+        }
+        flushBatch(backend, batch);
+        for (Movie movie : movies) {
+            addToBatch(backend, batch, batchSize, "Movies", "movieId", movie.getMovieId(), DocumentMapper.toDocument(movie));
+        }
+        flushBatch(backend, batch);
+        for (Review review : reviews) {
+            addToBatch(backend, batch, batchSize, "Reviews", "reviewId", review.getReviewId(), DocumentMapper.toDocument(review));
+        }
+        flushBatch(backend, batch);
+    }
+
+    private static void addToBatch(StorageBackend backend, List<WriteBehindQueue.DirtyEntry> batch, int batchSize,
+                                   String collection, String keyField, String key, Document document) {
+        batch.add(new WriteBehindQueue.DirtyEntry(collection, keyField, key, WriteBehindQueue.Operation.UPSERT, document));
+        if (batch.size() >= batchSize) {
+            flushBatch(backend, batch);
+        }
+    }
+
+    private static void flushBatch(StorageBackend backend, List<WriteBehindQueue.DirtyEntry> batch) {
+        if (!batch.isEmpty()) {
+            backend.write(batch.get(0).getCollection(), batch);
+            batch.clear();
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java SyntheticData <reviews> <dataDir>");
+            return;
+        }
+        SyntheticData data = new SyntheticData(Integer.parseInt(args[0]), 42);
+        // No compaction while filling; close() writes a single snapshot at the end
+        try (EmbeddedStorage storage = EmbeddedStorage.open(Path.of(args[1]), Long.MAX_VALUE)) {
+            data.save(storage, 5000);
+        }
+        System.out.println("Wrote " + data.users.size() + " users, " + data.movies.size() + " movies and "
+                + data.reviews.size() + " reviews to " + args[1]);
+    }
+}
@@ -0,0 +1,50 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Dumping every review: the menus' former println per field against the buffered streaming Exporter,
+// in each format, with gzip, and read from the embedded storage engine's cursor
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExportBenchmarks {
+    @Benchmark
+    public long printLineByLine(WorkloadState state) {
+        return state.workload.printReviewsLineByLine();
+    }
+
+    @Benchmark
+    public long exportText(WorkloadState state) {
+        return state.workload.exportReviews("text", false);
+    }
+
+    @Benchmark
+    public long exportCsv(WorkloadState state) {
+        return state.workload.exportReviews("csv", false);
+    }
+
+    @Benchmark
+    public long exportCsvGzip(WorkloadState state) {
+        return state.workload.exportReviews("csv", true);
+    }
+
+    @Benchmark
+    public long exportJsonl(WorkloadState state) {
+        return state.workload.exportReviews("jsonl", false);
+    }
+
+    @Benchmark
+    public long exportJsonlFromStorage(WorkloadState state) {
+        return state.workload.exportReviewsFromStorage("jsonl");
+    }
+}
@@ -0,0 +1,29 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Full startup load (StartupLoader) from the embedded storage engine against a warm start from a snapshot file
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadBenchmarks {
+    @Benchmark
+    public int startupLoad(WorkloadState state) {
+        return state.workload.loadFromStorage();
+    }
+
+    @Benchmark
+    public int snapshotLoad(WorkloadState state) {
+        return state.workload.loadFromSnapshot();
+    }
+}
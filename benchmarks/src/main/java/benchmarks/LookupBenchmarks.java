@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Entity lookups and the review-by-movie / review-by-user joins
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmarks {
+    private static final int PAGE_SIZE = 10;
+
+    @Benchmark
+    public Object findMovieById(WorkloadState state) {
+        return state.workload.findMovie(ThreadLocalRandom.current().nextInt(state.workload.movieCount()));
+    }
+
+    @Benchmark
+    public Object findUserById(WorkloadState state) {
+        return state.workload.findUser(ThreadLocalRandom.current().nextInt(state.workload.userCount()));
+    }
+
+    @Benchmark
+    public Object reviewsForMovie(WorkloadState state) {
+        return state.workload.reviewsForMovie(ThreadLocalRandom.current().nextInt(state.workload.movieCount()));
+    }
+
+    @Benchmark
+    public Object userReviews(WorkloadState state) {
+        return state.workload.userReviews(ThreadLocalRandom.current().nextInt(state.workload.userCount()));
+    }
+
+    @Benchmark
+    public Object moviePageWithAverageRatings(WorkloadState state) {
+        int pages = Math.max(1, state.workload.movieCount() / PAGE_SIZE);
+        return state.workload.moviePageWithRatings(ThreadLocalRandom.current().nextInt(pages), PAGE_SIZE);
+    }
+}
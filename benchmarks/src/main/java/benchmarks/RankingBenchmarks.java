@@ -0,0 +1,52 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Top 20 movies by weighted rating, read from the leaderboards against scoring and sorting on request, and
+// the 20 most reviewed movies of the last day, read from the trending rings against a scan of the review times
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RankingBenchmarks {
+    private static final int COUNT = 20;
+
+    @Benchmark
+    public Object leaderboardOverall(WorkloadState state) {
+        return state.workload.topRated(null, COUNT);
+    }
+
+    @Benchmark
+    public Object leaderboardGenre(WorkloadState state) {
+        return state.workload.topRated("drama", COUNT);
+    }
+
+    @Benchmark
+    public Object sortOverall(WorkloadState state) {
+        return state.workload.topRatedBySorting(null, COUNT);
+    }
+
+    @Benchmark
+    public Object sortGenre(WorkloadState state) {
+        return state.workload.topRatedBySorting("drama", COUNT);
+    }
+
+    @Benchmark
+    public Object trendingDay(WorkloadState state) {
+        return state.workload.trending("day", COUNT);
+    }
+
+    @Benchmark
+    public Object scanTrendingDay(WorkloadState state) {
+        return state.workload.trendingByScan("day", COUNT);
+    }
+}
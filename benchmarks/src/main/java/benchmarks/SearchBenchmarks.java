@@ -0,0 +1,50 @@
+package benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Genre and release-year searches
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmarks {
+    private static final int FIRST_YEAR = 1950;
+    private static final int YEARS = 75;
+
+    @Benchmark
+    public Object genreSingle(WorkloadState state) {
+        return state.workload.searchGenres("drama");
+    }
+
+    @Benchmark
+    public Object genreAll(WorkloadState state) {
+        return state.workload.searchGenres("action, thriller");
+    }
+
+    @Benchmark
+    public Object genreAny(WorkloadState state) {
+        return state.workload.searchGenres("comedy | romance | family");
+    }
+
+    @Benchmark
+    public Object singleYear(WorkloadState state) {
+        int year = FIRST_YEAR + ThreadLocalRandom.current().nextInt(YEARS);
+        return state.workload.searchYears(year, year);
+    }
+
+    @Benchmark
+    public Object decade(WorkloadState state) {
+        int year = FIRST_YEAR + ThreadLocalRandom.current().nextInt(YEARS - 10);
+        return state.workload.searchYears(year, year + 9);
+    }
+}
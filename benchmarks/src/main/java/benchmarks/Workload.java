@@ -0,0 +1,91 @@
+package benchmarks;
+
+// Operations under benchmark, implemented by StoreWorkload next to the application classes.
+// The application lives in the unnamed package, which JMH does not accept for benchmark classes and
+// which named packages cannot import, so the benchmarks reach it through this interface.
+public interface Workload extends AutoCloseable {
+    static Workload create(int reviews) {
+        try {
+            return (Workload) Class.forName("StoreWorkload").getConstructor(int.class).newInstance(reviews);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create the benchmark workload", e);
+        }
+    }
+
+    int movieCount();
+
+    int userCount();
+
+    // ---- Lookups and joins ----
+
+    Object findMovie(int index);
+
+    Object findUser(int index);
+
+    Object reviewsForMovie(int index);
+
+    Object userReviews(int index);
+
+    // One page of the movie listing with average ratings
+    Object moviePageWithRatings(int page, int pageSize);
+
+    // ---- Search ----
+
+    Object searchGenres(String query);
+
+    Object searchYears(int fromYear, int toYear);
+
+    // ---- Rankings ----
+
+    // Top movies by Bayesian-weighted rating from the leaderboards (genre null for all movies)
+    Object topRated(String genre, int count);
+
+    // The same ranking computed on request, by scoring and sorting every movie of the genre
+    Object topRatedBySorting(String genre, int count);
+
+    // Most reviewed movies of the last hour, day or month ("hour", "day", "month") from the trending rings
+    Object trending(String window, int count);
+
+    // The same ranking computed on request, by scanning the review times
+    Object trendingByScan(String window, int count);
+
+    // Computes every movie's neighbours for the recommender from scratch
+    void buildRecommendations();
+
+    // Recommendations for one user from the built neighbours
+    Object recommend(int userIndex, int count);
+
+    // ---- Writes ----
+
+    String nextId();
+
+    void updateRating(int movieIndex, int oldRating, int newRating);
+
+    // Recomputes every movie's count and sum from the stored reviews
+    long recountRatings();
+
+    // Writes the next batchSize reviews to the embedded storage engine
+    void persistBatch(int batchSize);
+
+    // Loads the whole data set from the embedded storage engine into a fresh store; returns the review count
+    int loadFromStorage();
+
+    // Loads the same data set from a warm-start snapshot file into a fresh store; returns the review count
+    int loadFromSnapshot();
+
+    // ---- Export ----
+
+    // Prints every review the way the menus used to, a flushing println per field, to a null device;
+    // returns the review count
+    long printReviewsLineByLine();
+
+    // Streams every review from the store through Exporter to a null device ("text", "csv" or "jsonl",
+    // optionally gzip-compressed); returns the review count
+    long exportReviews(String format, boolean gzip);
+
+    // The same from the embedded storage engine's cursor instead of the store
+    long exportReviewsFromStorage(String format);
+
+    @Override
+    void close();
+}
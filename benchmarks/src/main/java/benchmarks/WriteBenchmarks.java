@@ -0,0 +1,57 @@
+package benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// ID allocation, rating aggregation and bulk persistence. Run with -t 8 (or more) to see contention.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBenchmarks {
+    @State(Scope.Benchmark)
+    public static class PersistState {
+        @Param({"1000"})
+        public int batchSize;
+    }
+
+    @Benchmark
+    public String allocateId(WorkloadState state) {
+        return state.workload.nextId();
+    }
+
+    @Benchmark
+    public void updateRating(WorkloadState state) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int rating = 1 + random.nextInt(5);
+        // Moves a rating away and back, so the aggregates stay as they were
+        int movie = random.nextInt(state.workload.movieCount());
+        state.workload.updateRating(movie, rating, 6 - rating);
+        state.workload.updateRating(movie, 6 - rating, rating);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long recountAllRatings(WorkloadState state) {
+        return state.workload.recountRatings();
+    }
+
+    // One write-behind flush: a batch of review upserts, logged and fsynced by the embedded engine
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void persistBatch(WorkloadState state, PersistState persist) {
+        state.workload.persistBatch(persist.batchSize);
+    }
+}
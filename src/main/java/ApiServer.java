@@ -0,0 +1,487 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bson.Document;
+import org.bson.json.JsonParseException;
+
+// JSON over HTTP front end for MovieReviewService, on the JDK's built-in HTTP server with one virtual
+// thread per request. Logging in returns a token that is sent back in the "X-Session-Token" header.
+// Sessions expire after -Dapp.sessionIdleMinutes (default 30) without a request; expired ones are
+// dropped every minute.
+//
+//   POST   /api/register               {username, password, email}
+//   POST   /api/login                  {username, password}           -> {token, userId}
+//   POST   /api/logout
+//   GET    /api/movies                 list movies
+//   POST   /api/movies                 {title, description, releaseDate, genre} (login required)
+//   GET    /api/movies/{id}/reviews    reviews for a movie
+//   POST   /api/reviews                {movieId, rating, comments} (all review calls require login)
+//   PUT    /api/reviews/{id}           {rating, comments}
+//   DELETE /api/reviews/{id}
+//   GET    /api/search?q=&limit=       full-text search
+//   GET    /api/search/genre?q=        genre search (',' = all, '|' = any)
+//   GET    /api/search/year?from=&to=  release year range
+//   GET    /api/ratings/{movieId}      rating aggregate for a movie
+//   GET    /api/top?genre=&limit=      best movies by Bayesian-weighted rating, overall or for one genre
+//   GET    /api/trending?window=&limit= most reviewed movies in the last hour (default), day or month
+//   GET    /api/recommendations?limit= movies for the logged-in user, from their ratings (login required)
+//   GET    /api/stats                  latency table (text)
+//   GET    /metrics                    Prometheus text format
+//
+// "limit" parameters must be between 1 and MAX_LIMIT.
+// Request latencies are recorded in Metrics as "http.<METHOD> <resource>", with "other" for any other
+// method or resource.
+public class ApiServer {
+    private static final String TOKEN_HEADER = "X-Session-Token";
+    // Largest "limit" a client may ask for
+    static final int MAX_LIMIT = 100;
+    public static final int DEFAULT_SESSION_IDLE_MINUTES = 30;
+    // Metric names use these resource names only, so unknown paths cannot create new series
+    private static final Set<String> RESOURCES = Set.of("register", "login", "logout", "movies", "reviews", "search",
+            "ratings", "top", "trending", "recommendations",
+            "stats");
+    // Likewise for methods: any other method a client sends is recorded as "other"
+    private static final Set<String> METHODS = Set.of("GET", "POST", "PUT", "DELETE");
+    // Years the year search accepts
+    private static final int MIN_YEAR = 0;
+    private static final int MAX_YEAR = 9999;
+
+    private final MovieReviewService service;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final long sessionIdleMillis;
+    private final ScheduledExecutorService sessionExpiry;
+
+    private static class ApiException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        private ApiException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    public ApiServer(MovieReviewService service, int port) throws IOException {
+        this.service = service;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.sessionIdleMillis = TimeUnit.MINUTES.toMillis(
+                Integer.getInteger("app.sessionIdleMinutes", DEFAULT_SESSION_IDLE_MINUTES));
+        this.sessionExpiry = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "api-session-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/api/", this::handle);
+        server.createContext("/metrics", exchange -> sendText(exchange, "text/plain; version=0.0.4", Metrics.prometheus()));
+    }
+
+    public void start() {
+        server.start();
+        sessionExpiry.scheduleWithFixedDelay(this::expireSessions, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.close();
+        sessionExpiry.shutdownNow();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long start = Metrics.start();
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().substring("/api/".length()).split("/");
+        try {
+            if (path[0].equals("stats")) {
+                sendText(exchange, "text/plain; charset=utf-8", Metrics.summary());
+                return;
+            }
+            Document response = route(exchange, method, path);
+            send(exchange, method.equals("POST") && !path[0].equals("login") ? 201 : 200, response);
+        } catch (ApiException e) {
+            send(exchange, e.status, new Document("error", e.getMessage()));
+        } catch (NotLoggedInException e) {
+            send(exchange, 401, new Document("error", e.getMessage()));
+        } catch (IllegalArgumentException | JsonParseException e) {
+            send(exchange, 400, new Document("error", e.getMessage()));
+        } catch (Exception e) {
+            send(exchange, 500, new Document("error", "Internal error: " + e.getMessage()));
+        } finally {
+            exchange.close();
+            Metrics.record("http." + (METHODS.contains(method) ? method : "other") + " "
+                    + (RESOURCES.contains(path[0]) ? path[0] : "other"), start);
+        }
+    }
+
+    private Document route(HttpExchange exchange, String method, String[] path) throws IOException {
+        String resource = path[0];
+        String id = path.length > 1 ? path[1] : null;
+        switch (resource) {
+            case "register":
+                requireMethod(method, "POST");
+                return register(readBody(exchange));
+            case "login":
+                requireMethod(method, "POST");
+                return login(readBody(exchange));
+            case "logout":
+                requireMethod(method, "POST");
+                return logout(exchange);
+            case "movies":
+                if (id != null && path.length > 2 && path[2].equals("reviews")) {
+                    requireMethod(method, "GET");
+                    return reviewsForMovie(id);
+                }
+                if (method.equals("GET")) {
+                    return movies();
+                }
+                requireMethod(method, "POST");
+                return addMovie(requireSession(exchange), readBody(exchange));
+            case "reviews":
+                Session session = requireSession(exchange);
+                if (method.equals("POST") && id == null) {
+                    return postReview(session, readBody(exchange));
+                }
+                if (id == null) {
+                    throw new ApiException(404, "Review ID missing");
+                }
+                if (method.equals("PUT")) {
+                    return updateReview(session, id, readBody(exchange));
+                }
+                requireMethod(method, "DELETE");
+                return removeReview(session, id);
+            case "search":
+                requireMethod(method, "GET");
+                return search(id, queryParameters(exchange));
+            case "ratings":
+                requireMethod(method, "GET");
+                return rating(id);
+            case "top":
+                requireMethod(method, "GET");
+                return topRated(queryParameters(exchange));
+            case "trending":
+                requireMethod(method, "GET");
+                return trending(queryParameters(exchange));
+            case "recommendations":
+                requireMethod(method, "GET");
+                return recommendations(requireSession(exchange), queryParameters(exchange));
+            default:
+                throw new ApiException(404, "Unknown resource: " + resource);
+        }
+    }
+
+    private Document register(Document body) {
+        User user = service.registerUser(stringField(body, "username"), stringField(body, "password"),
+                stringField(body, "email"));
+        if (user == null) {
+            throw new ApiException(409, "Username already taken");
+        }
+        return userJson(user);
+    }
+
+    private Document login(Document body) {
+        Session session = new Session();
+        User user = service.login(session, stringField(body, "username"), stringField(body, "password"));
+        if (user == null) {
+            throw new ApiException(401, "Login failed");
+        }
+        sessions.put(session.getSessionId(), session);
+        return new Document("token", session.getSessionId()).append("userId", user.getUserId());
+    }
+
+    private Document logout(HttpExchange exchange) {
+        Session session = requireSession(exchange);
+        service.logout(session);
+        sessions.remove(session.getSessionId());
+        return new Document("loggedOut", true);
+    }
+
+    private Document movies() {
+        List<Document> movies = new ArrayList<>();
+        for (Movie movie : service.getMovieList()) {
+            movies.add(movieJson(movie));
+        }
+        return new Document("movies", movies);
+    }
+
+    private Document addMovie(Session session, Document body) {
+        return movieJson(service.addMovie(session, stringField(body, "title"), stringField(body, "description"),
+                stringField(body, "releaseDate"), stringField(body, "genre")));
+    }
+
+    private Document reviewsForMovie(String movieId) {
+        if (service.findMovieById(movieId) == null) {
+            throw new ApiException(404, "Movie not found: " + movieId);
+        }
+        List<Document> reviews = new ArrayList<>();
+        for (Review review : service.getReviewsForMovie(movieId)) {
+            reviews.add(reviewJson(review));
+        }
+        return new Document("reviews", reviews);
+    }
+
+    private Document postReview(Session session, Document body) {
+        return reviewJson(service.postReview(session, stringField(body, "movieId"), requireInt(body, "rating"),
+                stringField(body, "comments")));
+    }
+
+    private Document updateReview(Session session, String reviewId, Document body) {
+        Review review = service.updateReview(session, reviewId, requireInt(body, "rating"),
+                stringField(body, "comments"));
+        if (review == null) {
+            throw new ApiException(404, "Review not found: " + reviewId);
+        }
+        return reviewJson(review);
+    }
+
+    private Document removeReview(Session session, String reviewId) {
+        Review review = service.removeReview(session, reviewId);
+        if (review == null) {
+            throw new ApiException(404, "Review not found: " + reviewId);
+        }
+        return reviewJson(review);
+    }
+
+    private Document search(String kind, Map<String, String> params) {
+        List<Document> movies = new ArrayList<>();
+        if (kind == null) {
+            int limit = limitParam(params, 10);
+            for (FullTextIndex.SearchResult result : service.searchText(requireParam(params, "q"), limit)) {
+                Movie movie = service.findMovieById(result.getMovieId());
+                if (movie != null) {
+                    movies.add(movieJson(movie).append("score", result.getScore()));
+                }
+            }
+        } else if (kind.equals("genre")) {
+            for (Movie movie : service.searchByGenre(requireParam(params, "q"))) {
+                movies.add(movieJson(movie));
+            }
+        } else if (kind.equals("year")) {
+            int from = yearParam(requireParam(params, "from"), "from");
+            int to = params.containsKey("to") ? yearParam(params.get("to"), "to") : from;
+            for (Movie movie : service.searchByReleaseYears(from, to)) {
+                movies.add(movieJson(movie));
+            }
+        } else {
+            throw new ApiException(404, "Unknown search: " + kind);
+        }
+        return new Document("movies", movies);
+    }
+
+    private Document rating(String movieId) {
+        Movie movie = movieId == null ? null : service.findMovieById(movieId);
+        if (movie == null) {
+            throw new ApiException(404, "Movie not found: " + movieId);
+        }
+        RatingAggregates.MovieRating rating = service.getRating(movieId);
+        Document json = new Document("movieId", movieId).append("title", movie.getTitle());
+        if (rating == null) {
+            return json.append("count", 0).append("averageRating", null);
+        }
+        List<Integer> histogram = new ArrayList<>();
+        for (int r = RatingAggregates.MIN_RATING; r <= RatingAggregates.MAX_RATING; r++) {
+            histogram.add(rating.getHistogram(r));
+        }
+        return json.append("count", rating.getCount()).append("averageRating", rating.getAverage())
+                .append("histogram", histogram);
+    }
+
+    private Document topRated(Map<String, String> params) {
+        String genre = params.get("genre");
+        int limit = limitParam(params, 20);
+        List<Document> movies = new ArrayList<>();
+        for (Leaderboards.Ranked ranked : service.topRated(genre, limit)) {
+            Movie movie = service.findMovieById(ranked.getMovieId());
+            Document json = movie == null ? new Document("movieId", ranked.getMovieId()) : movieJson(movie);
+            movies.add(json.append("score", ranked.getScore()).append("averageRating", ranked.getAverage())
+                    .append("count", ranked.getCount()));
+        }
+        return new Document("genre", genre).append("movies", movies);
+    }
+
+    private Document trending(Map<String, String> params) {
+        Trending.Window window;
+        try {
+            window = Trending.Window.valueOf(params.getOrDefault("window", "hour").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new ApiException(400, "Unknown window: " + params.get("window"));
+        }
+        int limit = limitParam(params, 20);
+        List<Document> movies = new ArrayList<>();
+        for (Trending.Trend trend : service.trending(window, limit)) {
+            Movie movie = service.findMovieById(trend.getMovieId());
+            Document json = movie == null ? new Document("movieId", trend.getMovieId()) : movieJson(movie);
+            movies.add(json.append("reviews", trend.getReviews()).append("averageRating", trend.getAverageRating()));
+        }
+        return new Document("window", window.name().toLowerCase()).append("movies", movies);
+    }
+
+    private Document recommendations(Session session, Map<String, String> params) {
+        int limit = limitParam(params, 10);
+        Recommender.Result result = service.recommend(session, limit);
+        List<Document> movies = new ArrayList<>();
+        for (Recommender.Recommendation recommendation : result.getRecommendations()) {
+            Movie movie = service.findMovieById(recommendation.getMovieId());
+            Document json = movie == null ? new Document("movieId", recommendation.getMovieId()) : movieJson(movie);
+            movies.add(json.append("predictedRating", recommendation.getPredictedRating())
+                    .append("becauseOf", recommendation.getBecauseOfMovieId()));
+        }
+        return new Document("personalized", result.isPersonalized()).append("complete", result.isComplete())
+                .append("movies", movies);
+    }
+
+    // ---- Helpers ----
+
+    private Session requireSession(HttpExchange exchange) {
+        String token = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+        Session session = token == null ? null : sessions.get(token);
+        if (session == null || !session.isLoggedIn() || isIdle(session, System.currentTimeMillis())) {
+            throw new ApiException(401, "Login required");
+        }
+        session.touch();
+        return session;
+    }
+
+    private boolean isIdle(Session session, long now) {
+        return now - session.getLastUsedMillis() > sessionIdleMillis;
+    }
+
+    private void expireSessions() {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(session -> isIdle(session, now));
+    }
+
+    private static void requireMethod(String method, String expected) {
+        if (!method.equals(expected)) {
+            throw new ApiException(405, "Method not allowed: " + method);
+        }
+    }
+
+    private static int requireInt(Document body, String field) {
+        Object value = body.get(field);
+        if (!(value instanceof Number)) {
+            throw new IllegalArgumentException(field + " must be a number");
+        }
+        return ((Number) value).intValue();
+    }
+
+    // A string field of the body, or null if it is missing
+    private static String stringField(Document body, String field) {
+        Object value = body.get(field);
+        if (value != null && !(value instanceof String)) {
+            throw new ApiException(400, field + " must be a string");
+        }
+        return (String) value;
+    }
+
+    private static int yearParam(String value, String name) {
+        int year = Integer.parseInt(value);
+        if (year < MIN_YEAR || year > MAX_YEAR) {
+            throw new ApiException(400, name + " must be a year between " + MIN_YEAR + " and " + MAX_YEAR);
+        }
+        return year;
+    }
+
+    private static String requireParam(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing query parameter: " + name);
+        }
+        return value;
+    }
+
+    // The "limit" query parameter, 1..MAX_LIMIT
+    private static int limitParam(Map<String, String> params, int defaultLimit) {
+        String value = params.get("limit");
+        if (value == null) {
+            return defaultLimit;
+        }
+        int limit = Integer.parseInt(value);
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new ApiException(400, "limit must be between 1 and " + MAX_LIMIT);
+        }
+        return limit;
+    }
+
+    private static Document readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            return body.isBlank() ? new Document() : Document.parse(body);
+        }
+    }
+
+    private static Map<String, String> queryParameters(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static void send(HttpExchange exchange, int status, Document response) throws IOException {
+        byte[] bytes = response.toJson().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void sendText(HttpExchange exchange, String contentType, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Document userJson(User user) {
+        return new Document("userId", user.getUserId()).append("username", user.getUsername())
+                .append("email", user.getEmail());
+    }
+
+    private static Document movieJson(Movie movie) {
+        return new Document("movieId", movie.getMovieId()).append("title", movie.getTitle())
+                .append("description", movie.getDescription()).append("releaseDate", movie.getReleaseDate())
+                .append("genre", movie.getGenre());
+    }
+
+    private static Document reviewJson(Review review) {
+        return new Document("reviewId", review.getReviewId()).append("userId", review.getUserId())
+                .append("movieId", review.getMovieId()).append("rating", review.getRating())
+                .append("comments", review.getComments())
+                .append("reviewedAt", review.getReviewedAt() == 0 ? null : new Date(review.getReviewedAt()));
+    }
+}
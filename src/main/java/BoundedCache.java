@@ -0,0 +1,391 @@
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+// Size-bounded cache with W-TinyLFU eviction (the policy of Caffeine), for data that does not fit in the heap.
+// - every entry is weighed (estimated bytes, key included) and the total is kept within maxWeight
+// - new entries go to a small LRU window (WINDOW_PERCENT of the weight). An entry pushed out of the window
+//   competes with the main area's least recently used entry, and whichever a frequency sketch has seen
+//   less often is evicted, so a burst of one-off keys (a scan) cannot flush out entries used again and again
+// - the main area is a segmented LRU: an entry hit while on probation moves to the protected segment
+//   (PROTECTED_PERCENT of the main area), whose overflow goes back to probation
+// - the sketch is a count-min sketch of 4-bit counters over the keys' hashes, halved after 10 x its width
+//   additions so that past popularity fades
+// Lookups read a ConcurrentHashMap. The policy's lists are changed under one lock, which reads only try
+// to take: under contention a hit is counted but the entry is not moved (like Caffeine's lossy read buffer).
+// Loads run outside the lock and are not coalesced. A load that overlaps an invalidation of its key is
+// returned but not kept, so an invalidated value cannot come back.
+public class BoundedCache<K, V> {
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+    // Node, map entry and list links, on top of what the weigher counts
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int GENERATION_STRIPES = 64;
+    // Entry weight assumed when sizing the sketch
+    private static final int TYPICAL_WEIGHT = 512;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    // Estimated bytes of an entry's key and value
+    public interface Weigher<K, V> {
+        int weigh(K key, V value);
+    }
+
+    private final String name;
+    private final Weigher<K, V> weigher;
+    private final long maxWeight;
+    private final long windowMax;
+    private final long protectedMax;
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+    private final ReentrantLock policyLock = new ReentrantLock();
+    // Window, probation and protected, by the indexes above
+    private final List<AccessOrder<K, V>> queues = List.of(new AccessOrder<>(), new AccessOrder<>(), new AccessOrder<>());
+    private final long[] queueWeights = new long[3];
+    private final FrequencySketch sketch;
+    // Bumped by every invalidation of a key in the stripe; a load only keeps its value if it is unchanged
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private long weight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder evictedWeight = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    private static class Node<K, V> {
+        private final K key;
+        private final V value;
+        private final int weight;
+        private final int hash;
+        private int queue;
+        private Node<K, V> previous;
+        private Node<K, V> next;
+
+        private Node(K key, V value, int weight, int hash) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.hash = hash;
+        }
+    }
+
+    // Doubly linked list from the least to the most recently used node
+    private static class AccessOrder<K, V> {
+        private Node<K, V> first;
+        private Node<K, V> last;
+
+        private void addLast(Node<K, V> node) {
+            node.previous = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+        }
+
+        private void remove(Node<K, V> node) {
+            if (node.previous == null) {
+                first = node.next;
+            } else {
+                node.previous.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.previous;
+            } else {
+                node.next.previous = node.previous;
+            }
+            node.previous = null;
+            node.next = null;
+        }
+
+        private void moveToLast(Node<K, V> node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    // Counts of the hits, misses and evictions so far, and the current weight
+    public static class Stats {
+        private final String name;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long evictedWeight;
+        private final long invalidations;
+        private final long entries;
+        private final long weight;
+        private final long maxWeight;
+
+        private Stats(String name, long hits, long misses, long evictions, long evictedWeight, long invalidations,
+                      long entries, long weight, long maxWeight) {
+            this.name = name;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.evictedWeight = evictedWeight;
+            this.invalidations = invalidations;
+            this.entries = entries;
+            this.weight = weight;
+            this.maxWeight = maxWeight;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getInvalidations() {
+            return invalidations;
+        }
+
+        public long getEntries() {
+            return entries;
+        }
+
+        // Estimated bytes held
+        public long getWeight() {
+            return weight;
+        }
+
+        public double getHitRate() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %,d entries, %.1f of %.1f MB%n"
+                            + "Hits: %,d, misses: %,d (hit rate %.1f%%)%n"
+                            + "Evictions: %,d (%.1f MB), invalidations: %,d",
+                    name, entries, weight / 1048576.0, maxWeight / 1048576.0, hits, misses, 100 * getHitRate(),
+                    evictions, evictedWeight / 1048576.0, invalidations);
+        }
+    }
+
+    public BoundedCache(String name, long maxWeight, Weigher<K, V> weigher) {
+        this.name = name;
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+        this.windowMax = Math.max(1, maxWeight * WINDOW_PERCENT / 100);
+        this.protectedMax = (maxWeight - windowMax) * PROTECTED_PERCENT / 100;
+        this.sketch = new FrequencySketch(maxWeight / TYPICAL_WEIGHT);
+    }
+
+    // The cached value, or the loader's (which may be null: nothing is cached then)
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        Node<K, V> node = data.get(key);
+        if (node != null) {
+            hits.increment();
+            if (policyLock.tryLock()) {
+                try {
+                    onHit(node);
+                } finally {
+                    policyLock.unlock();
+                }
+            }
+            return node.value;
+        }
+        misses.increment();
+        int stripe = stripe(key.hashCode());
+        long generation = generations.get(stripe);
+        V value = loader.apply(key);
+        if (value != null) {
+            add(key, value, stripe, generation);
+        }
+        return value;
+    }
+
+    // Drops the key, and any value being loaded for it
+    public void invalidate(K key) {
+        generations.incrementAndGet(stripe(key.hashCode()));
+        policyLock.lock();
+        try {
+            Node<K, V> node = data.remove(key);
+            if (node != null) {
+                unlink(node);
+                invalidations.increment();
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    public Stats stats() {
+        policyLock.lock();
+        try {
+            return new Stats(name, hits.sum(), misses.sum(), evictions.sum(), evictedWeight.sum(), invalidations.sum(),
+                    data.size(), weight, maxWeight);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    private void add(K key, V value, int stripe, long generation) {
+        int hash = spread(key.hashCode());
+        Node<K, V> node = new Node<>(key, value, ENTRY_OVERHEAD + weigher.weigh(key, value), hash);
+        policyLock.lock();
+        try {
+            sketch.increment(hash);
+            // Invalidated while loading, too large to keep, or loaded by another thread meanwhile
+            if (generations.get(stripe) != generation || node.weight > maxWeight - windowMax
+                    || data.putIfAbsent(key, node) != null) {
+                return;
+            }
+            node.queue = WINDOW;
+            queues.get(WINDOW).addLast(node);
+            queueWeights[WINDOW] += node.weight;
+            weight += node.weight;
+            evict();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    private void onHit(Node<K, V> node) {
+        // Removed meanwhile
+        if (data.get(node.key) != node) {
+            return;
+        }
+        sketch.increment(node.hash);
+        if (node.queue == PROBATION) {
+            queues.get(PROBATION).remove(node);
+            queueWeights[PROBATION] -= node.weight;
+            node.queue = PROTECTED;
+            queues.get(PROTECTED).addLast(node);
+            queueWeights[PROTECTED] += node.weight;
+            // The protected segment's least recently used entries go back on probation
+            while (queueWeights[PROTECTED] > protectedMax) {
+                Node<K, V> demoted = queues.get(PROTECTED).first;
+                queues.get(PROTECTED).remove(demoted);
+                queueWeights[PROTECTED] -= demoted.weight;
+                demoted.queue = PROBATION;
+                queues.get(PROBATION).addLast(demoted);
+                queueWeights[PROBATION] += demoted.weight;
+            }
+        } else {
+            queues.get(node.queue).moveToLast(node);
+        }
+    }
+
+    // Moves the window's overflow to probation, then evicts until the weight fits. Each entry moved is a
+    // candidate that competes with probation's least recently used entry; the less frequent one goes.
+    private void evict() {
+        // The oldest candidate; the others follow it to the most recently used end of probation
+        Node<K, V> candidate = null;
+        while (queueWeights[WINDOW] > windowMax) {
+            Node<K, V> node = queues.get(WINDOW).first;
+            queues.get(WINDOW).remove(node);
+            queueWeights[WINDOW] -= node.weight;
+            node.queue = PROBATION;
+            queues.get(PROBATION).addLast(node);
+            queueWeights[PROBATION] += node.weight;
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+        while (weight > maxWeight) {
+            Node<K, V> victim = queues.get(PROBATION).first;
+            Node<K, V> evicted;
+            if (victim == null) {
+                evicted = queues.get(PROTECTED).first != null ? queues.get(PROTECTED).first : queues.get(WINDOW).first;
+            } else if (candidate == null) {
+                evicted = victim;
+            } else if (candidate != victim && sketch.frequency(candidate.hash) > sketch.frequency(victim.hash)) {
+                evicted = victim;
+            } else {
+                evicted = candidate;
+                candidate = candidate.next;
+            }
+            data.remove(evicted.key, evicted);
+            unlink(evicted);
+            evictions.increment();
+            evictedWeight.add(evicted.weight);
+        }
+    }
+
+    private void unlink(Node<K, V> node) {
+        queues.get(node.queue).remove(node);
+        queueWeights[node.queue] -= node.weight;
+        weight -= node.weight;
+    }
+
+    private static int stripe(int hashCode) {
+        return spread(hashCode) & (GENERATION_STRIPES - 1);
+    }
+
+    private static int spread(int hashCode) {
+        int h = hashCode * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // Count-min sketch of 4-bit counters: four rows of width counters, sixteen to a long
+    private static class FrequencySketch {
+        private static final long[] SEEDS = {0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL,
+                0xCBF29CE484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int widthMask;
+        private final int sampleSize;
+        private int additions;
+
+        private FrequencySketch(long expectedEntries) {
+            int width = Integer.highestOneBit((int) Math.max(1024, Math.min(1 << 24, expectedEntries)) * 2 - 1);
+            this.table = new long[4 * width / 16];
+            this.widthMask = width - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        private int frequency(int hash) {
+            int frequency = Integer.MAX_VALUE;
+            for (int row = 0; row < 4; row++) {
+                int counter = counterIndex(hash, row);
+                frequency = Math.min(frequency, (int) (table[counter >>> 4] >>> ((counter & 15) << 2)) & 15);
+            }
+            return frequency;
+        }
+
+        private void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < 4; row++) {
+                int counter = counterIndex(hash, row);
+                int shift = (counter & 15) << 2;
+                if (((table[counter >>> 4] >>> shift) & 15) < 15) {
+                    table[counter >>> 4] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        // Counter of the row for the hash: rows are consecutive blocks of width counters
+        private int counterIndex(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            return row * (widthMask + 1) + ((int) (h >>> 32) & widthMask);
+        }
+    }
+}
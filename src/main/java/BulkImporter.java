@@ -0,0 +1,641 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bson.Document;
+import org.bson.json.JsonParseException;
+
+// Bulk import of movies, users or reviews from large CSV or JSON Lines files, e.g. MovieLens
+// (movies.csv: movieId,title,genres; ratings.csv: userId,movieId,rating,timestamp).
+// - the file is read with positional FileChannel reads in chunks of CHUNK_BYTES cut at a line end. Chunks
+//   are parsed and written on a pool of -Dapp.importThreads threads; at most two chunks per thread are in
+//   flight, so the reader waits for the writers and memory stays bounded whatever the file size.
+// - each chunk's records go into the in-memory store, and those the store accepts (new IDs) are written
+//   with unordered batch inserts (insertMany) of BATCH_SIZE. The store's indexes are filled on the way, and
+//   the rating aggregates are rebuilt with one column scan at the end, so nothing needs to be reloaded.
+// - what the file holds comes from its columns (or the first document's fields): reviews have a rating,
+//   movies a title, users a username. Reviews of unknown users get a placeholder user that cannot log in;
+//   reviews of unknown movies are rejected. MovieLens conventions are understood: half-star ratings are
+//   rounded, "timestamp" is in seconds, "genres" are '|'-separated and the release year is taken from
+//   the title.
+// - records without an ID get one from a range reserved for the file, at their line's byte offset, so
+//   importing the same lines again gives the same IDs
+// - progress (the byte offset up to which every chunk is stored) is saved in <file>.checkpoint. Importing
+//   the file again resumes from there; records after it that were stored before a crash are skipped as
+//   duplicates. A finished import is marked complete and not repeated.
+// Each record must be on one line: quoted CSV fields cannot contain line breaks.
+public class BulkImporter {
+    public static final int CHUNK_BYTES = 4 * 1024 * 1024;
+    public static final int BATCH_SIZE = 1000;
+    private static final long PROGRESS_INTERVAL_NANOS = 5_000_000_000L;
+    private static final long CHECKPOINT_INTERVAL_NANOS = 1_000_000_000L;
+    private static final int MAX_REPORTED_ERRORS = 10;
+
+    private enum Kind {
+        MOVIES("Movies", "movieId", IdAllocator.MOVIES),
+        USERS("Users", "userId", IdAllocator.USERS),
+        REVIEWS("Reviews", "reviewId", IdAllocator.REVIEWS);
+
+        private final String collection;
+        private final String keyField;
+        private final String sequence;
+
+        Kind(String collection, String keyField, String sequence) {
+            this.collection = collection;
+            this.keyField = keyField;
+            this.sequence = sequence;
+        }
+    }
+
+    private final StorageBackend backend;
+    private final EntityStore store;
+    private final RatingAggregates ratingAggregates;
+    private final IdAllocator idAllocator;
+    private final Trending trending;
+    private final int threads;
+
+    public static class Result {
+        private final long rows;
+        private final long imported;
+        private final long duplicates;
+        private final long rejected;
+        private final long elapsedNanos;
+
+        private Result(long rows, long imported, long duplicates, long rejected, long elapsedNanos) {
+            this.rows = rows;
+            this.imported = imported;
+            this.duplicates = duplicates;
+            this.rejected = rejected;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        // Rows read in this run (not counting rows before the checkpoint it resumed from)
+        public long getRows() {
+            return rows;
+        }
+
+        public long getImported() {
+            return imported;
+        }
+
+        // Rows whose ID was already stored
+        public long getDuplicates() {
+            return duplicates;
+        }
+
+        // Rows that could not be parsed or refer to a movie that does not exist
+        public long getRejected() {
+            return rejected;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rows * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%,d rows: %,d imported, %,d duplicates, %,d rejected (%,.0f rows/s)", rows, imported,
+                    duplicates, rejected, getRowsPerSecond());
+        }
+    }
+
+    public BulkImporter(StorageBackend backend, EntityStore store, RatingAggregates ratingAggregates,
+                        IdAllocator idAllocator, Trending trending) {
+        this(backend, store, ratingAggregates, idAllocator, trending,
+                Integer.getInteger("app.importThreads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    public BulkImporter(StorageBackend backend, EntityStore store, RatingAggregates ratingAggregates,
+                        IdAllocator idAllocator, Trending trending, int threads) {
+        this.backend = backend;
+        this.store = store;
+        this.ratingAggregates = ratingAggregates;
+        this.idAllocator = idAllocator;
+        this.trending = trending;
+        this.threads = Math.max(1, threads);
+    }
+
+    // Imports one file, resuming from its checkpoint; null if the checkpoint says it was imported already
+    public Result importFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new Run(file, channel).execute();
+        }
+    }
+
+    // ---- One import ----
+
+    private class Run {
+        private final Path file;
+        private final Path checkpointFile;
+        private final FileChannel channel;
+        private final long size;
+        private final boolean json;
+        private List<String> header;
+        private Kind kind;
+        private long idBase;
+
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong imported = new AtomicLong();
+        private final AtomicLong duplicates = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong maxId = new AtomicLong();
+        private final AtomicLong maxUserId = new AtomicLong();
+        private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        // Guarded by this: chunks stored out of order, by start offset, until the ones before them are
+        private final TreeMap<Long, Long> storedChunks = new TreeMap<>();
+        private long committed;
+        private long lastCheckpoint;
+        private long lastProgress;
+        private long startNanos;
+
+        private Run(Path file, FileChannel channel) throws IOException {
+            this.file = file;
+            this.checkpointFile = file.resolveSibling(file.getFileName() + ".checkpoint");
+            this.channel = channel;
+            this.size = channel.size();
+            String name = file.getFileName().toString().toLowerCase();
+            this.json = name.endsWith(".jsonl") || name.endsWith(".json") || name.endsWith(".ndjson");
+        }
+
+        private Result execute() throws IOException {
+            startNanos = System.nanoTime();
+            long dataStart = readHeader();
+            Properties checkpoint = readCheckpoint();
+            if (checkpoint != null && Boolean.parseBoolean(checkpoint.getProperty("complete"))) {
+                System.out.println(file + " was imported already (" + checkpointFile + ")");
+                return null;
+            }
+            if (checkpoint != null) {
+                committed = Long.parseLong(checkpoint.getProperty("offset"));
+                idBase = Long.parseLong(checkpoint.getProperty("idBase"));
+                System.out.printf("Resuming the import of %s at byte %,d of %,d%n", file, committed, size);
+            } else {
+                committed = dataStart;
+                // One ID per byte covers every line that may lack an ID
+                idBase = hasIdColumn() ? 0 : idAllocator.reserveRange(kind.sequence, size);
+                writeCheckpoint(false);
+            }
+            lastCheckpoint = lastProgress = System.nanoTime();
+
+            ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "import");
+                thread.setDaemon(true);
+                return thread;
+            });
+            Semaphore inFlight = new Semaphore(2 * threads);
+            try {
+                long position = committed;
+                while (position < size && failure.get() == null) {
+                    inFlight.acquire();
+                    long chunkStart = position;
+                    byte[] chunk = readChunk(chunkStart);
+                    position += chunk.length;
+                    workers.execute(() -> {
+                        try {
+                            if (failure.get() == null) {
+                                importChunk(chunk, chunkStart);
+                                stored(chunkStart, chunkStart + chunk.length);
+                            }
+                        } catch (RuntimeException e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+                inFlight.acquire(2 * threads);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, e);
+            } finally {
+                workers.shutdownNow();
+            }
+
+            finish();
+            if (failure.get() != null) {
+                writeCheckpoint(false);
+                throw new IllegalStateException("Import of " + file + " stopped at byte " + committed + ": "
+                        + failure.get().getMessage(), failure.get());
+            }
+            writeCheckpoint(true);
+            Result result = new Result(rows.get(), imported.get(), duplicates.get(), rejected.get(),
+                    System.nanoTime() - startNanos);
+            System.out.println("Imported " + kind.collection + " from " + file + ": " + result);
+            return result;
+        }
+
+        // Reads the CSV header, or the field names of the first JSON document, to tell what the file holds;
+        // returns where the records start
+        private long readHeader() throws IOException {
+            byte[] first = readChunk(0);
+            int end = indexOfLineEnd(first, 0);
+            String line = new String(first, 0, end, StandardCharsets.UTF_8);
+            if (line.startsWith("\uFEFF")) {
+                line = line.substring(1);
+            }
+            if (json) {
+                try {
+                    header = new ArrayList<>(Document.parse(line).keySet());
+                } catch (JsonParseException e) {
+                    throw new IOException("The first line of " + file + " is not a JSON document", e);
+                }
+            } else {
+                header = parseCsvLine(line);
+            }
+            if (header.contains("rating")) {
+                kind = Kind.REVIEWS;
+            } else if (header.contains("title")) {
+                kind = Kind.MOVIES;
+            } else if (header.contains("username") || header.contains("userId")) {
+                kind = Kind.USERS;
+            } else {
+                throw new IOException("Cannot tell what " + file + " holds from its fields " + header);
+            }
+            return json ? 0 : Math.min(size, end + 1L);
+        }
+
+        private boolean hasIdColumn() {
+            return header.contains(kind.keyField);
+        }
+
+        // From position up to and including the last line end within CHUNK_BYTES, or to the end of the file
+        private byte[] readChunk(long position) throws IOException {
+            int length = (int) Math.min(CHUNK_BYTES, size - position);
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException(file + " became shorter while it was imported");
+                }
+            }
+            byte[] bytes = buffer.array();
+            if (position + length == size) {
+                return bytes;
+            }
+            int end = length - 1;
+            while (end >= 0 && bytes[end] != '\n') {
+                end--;
+            }
+            if (end < 0) {
+                throw new IOException("Line longer than " + CHUNK_BYTES + " bytes at byte " + position + " of " + file);
+            }
+            byte[] chunk = new byte[end + 1];
+            System.arraycopy(bytes, 0, chunk, 0, end + 1);
+            return chunk;
+        }
+
+        // ---- Records ----
+
+        private void importChunk(byte[] chunk, long chunkStart) {
+            long start = Metrics.start();
+            List<Document> documents = new ArrayList<>();
+            List<Document> newUsers = new ArrayList<>();
+            for (int lineStart = 0; lineStart < chunk.length; ) {
+                int lineEnd = indexOfLineEnd(chunk, lineStart);
+                int length = lineEnd - lineStart;
+                if (length > 0 && chunk[lineEnd - 1] == '\r') {
+                    length--;
+                }
+                if (length > 0) {
+                    String line = new String(chunk, lineStart, length, StandardCharsets.UTF_8);
+                    rows.incrementAndGet();
+                    try {
+                        Document document = importRecord(fields(line), chunkStart + lineStart, newUsers);
+                        if (document != null) {
+                            documents.add(document);
+                        }
+                    } catch (RuntimeException e) {
+                        if (rejected.incrementAndGet() <= MAX_REPORTED_ERRORS) {
+                            System.err.println("Import: skipping the line at byte " + (chunkStart + lineStart) + " of "
+                                    + file.getFileName() + ": " + e.getMessage());
+                        }
+                    }
+                }
+                lineStart = lineEnd + 1;
+            }
+            // Users before the reviews that refer to them. If either fails, the chunk's records are taken
+            // back out of the store, so a later attempt does not count them as duplicates and skip them.
+            try {
+                insert(Kind.USERS, newUsers);
+                insert(kind, documents);
+            } catch (RuntimeException e) {
+                rollBack(documents, newUsers);
+                throw e;
+            }
+            if (kind == Kind.REVIEWS && trending != null) {
+                for (Document document : documents) {
+                    Review review = DocumentMapper.toReview(document);
+                    trending.record(review.getMovieId(), review.getRating(), review.getReviewedAt());
+                }
+            }
+            Metrics.record("import.chunk", start);
+        }
+
+        private void rollBack(List<Document> documents, List<Document> newUsers) {
+            for (Document document : documents) {
+                String id = document.getString(kind.keyField);
+                if (kind == Kind.MOVIES) {
+                    store.removeMovie(id);
+                } else if (kind == Kind.USERS) {
+                    removeUser(id);
+                } else {
+                    store.removeReview(id);
+                }
+            }
+            for (Document user : newUsers) {
+                removeUser(user.getString("userId"));
+            }
+            imported.addAndGet(-documents.size());
+        }
+
+        private void removeUser(String userId) {
+            User user = store.findUserById(userId);
+            if (user != null) {
+                store.removeUserByUsername(user.getUsername());
+            }
+        }
+
+        private Map<String, Object> fields(String line) {
+            if (json) {
+                return Document.parse(line);
+            }
+            List<String> values = parseCsvLine(line);
+            Map<String, Object> fields = new HashMap<>();
+            for (int i = 0; i < header.size() && i < values.size(); i++) {
+                fields.put(header.get(i), values.get(i));
+            }
+            return fields;
+        }
+
+        // Adds one record to the store; returns its document, or null if its ID is already stored
+        private Document importRecord(Map<String, Object> fields, long offset, List<Document> newUsers) {
+            String id = text(fields, kind.keyField);
+            if (id == null && idBase == 0) {
+                throw new IllegalArgumentException("no " + kind.keyField);
+            } else if (id == null) {
+                id = Long.toString(idBase + offset);
+            }
+            switch (kind) {
+                case MOVIES: {
+                    String title = text(fields, "title");
+                    String releaseDate = text(fields, "releaseDate");
+                    if (releaseDate == null) {
+                        releaseDate = yearInTitle(title);
+                    }
+                    String genre = text(fields, "genre");
+                    if (genre == null) {
+                        genre = movieLensGenres(text(fields, "genres"));
+                    }
+                    Movie movie = new Movie(id, title, text(fields, "description"), releaseDate, genre);
+                    if (!store.addMovie(movie)) {
+                        return duplicate();
+                    }
+                    return added(id, DocumentMapper.toDocument(movie));
+                }
+                case USERS: {
+                    User user = newUser(id, text(fields, "username"), text(fields, "password"), text(fields, "email"));
+                    if (!store.addUser(user)) {
+                        return duplicate();
+                    }
+                    maxUserId.accumulateAndGet(StartupLoader.parseId(id), Math::max);
+                    return added(id, DocumentMapper.toDocument(user));
+                }
+                default: {
+                    String userId = required(fields, "userId");
+                    String movieId = required(fields, "movieId");
+                    if (store.findMovieById(movieId) == null) {
+                        throw new IllegalArgumentException("unknown movie " + movieId);
+                    }
+                    if (store.findUserById(userId) == null) {
+                        User user = newUser(userId, null, null, null);
+                        if (store.addUser(user)) {
+                            maxUserId.accumulateAndGet(StartupLoader.parseId(userId), Math::max);
+                            newUsers.add(DocumentMapper.toDocument(user));
+                        } else if (store.findUserById(userId) == null) {
+                            throw new IllegalArgumentException("cannot add user " + userId);
+                        }
+                    }
+                    int rating = rating(required(fields, "rating"));
+                    Review review = new Review(id, userId, movieId, rating, text(fields, "comments"),
+                            reviewedAt(fields));
+                    if (!store.addReview(review)) {
+                        return duplicate();
+                    }
+                    return added(id, DocumentMapper.toDocument(review));
+                }
+            }
+        }
+
+        private Document added(String id, Document document) {
+            imported.incrementAndGet();
+            maxId.accumulateAndGet(StartupLoader.parseId(id), Math::max);
+            return document;
+        }
+
+        private Document duplicate() {
+            duplicates.incrementAndGet();
+            return null;
+        }
+
+        private void insert(Kind target, List<Document> documents) {
+            for (int from = 0; from < documents.size(); from += BATCH_SIZE) {
+                backend.insert(target.collection, target.keyField,
+                        documents.subList(from, Math.min(documents.size(), from + BATCH_SIZE)));
+            }
+        }
+
+        // ---- Progress ----
+
+        // Advances the committed offset over the chunks stored without a gap before them
+        private synchronized void stored(long chunkStart, long chunkEnd) {
+            storedChunks.put(chunkStart, chunkEnd);
+            while (!storedChunks.isEmpty() && storedChunks.firstKey() == committed) {
+                committed = storedChunks.pollFirstEntry().getValue();
+            }
+            long now = System.nanoTime();
+            if (now - lastCheckpoint >= CHECKPOINT_INTERVAL_NANOS) {
+                lastCheckpoint = now;
+                writeCheckpoint(false);
+            }
+            if (now - lastProgress >= PROGRESS_INTERVAL_NANOS) {
+                lastProgress = now;
+                System.out.printf("Importing %s: %,d rows, %.0f%% (%,.0f rows/s)%n", kind.collection, rows.get(),
+                        100.0 * committed / Math.max(1, size), rows.get() * 1e9 / (now - startNanos));
+            }
+        }
+
+        // Keeps the ID counters ahead of the imported IDs, and the aggregates in step with the new reviews
+        private void finish() {
+            idAllocator.ensureAtLeast(kind.sequence, maxId.get());
+            if (maxUserId.get() > 0) {
+                idAllocator.ensureAtLeast(IdAllocator.USERS, maxUserId.get());
+            }
+            if (kind == Kind.REVIEWS && imported.get() > 0) {
+                ratingAggregates.rebuild(store.ratingSummaries());
+            }
+        }
+
+        private Properties readCheckpoint() throws IOException {
+            if (!Files.exists(checkpointFile)) {
+                return null;
+            }
+            Properties checkpoint = new Properties();
+            try (var in = Files.newInputStream(checkpointFile)) {
+                checkpoint.load(in);
+            }
+            if (Long.parseLong(checkpoint.getProperty("size", "-1")) != size) {
+                System.out.println(file + " changed since " + checkpointFile + " was written; importing it from the start");
+                return null;
+            }
+            return checkpoint;
+        }
+
+        private synchronized void writeCheckpoint(boolean complete) {
+            Properties checkpoint = new Properties();
+            checkpoint.setProperty("size", Long.toString(size));
+            checkpoint.setProperty("offset", Long.toString(committed));
+            checkpoint.setProperty("idBase", Long.toString(idBase));
+            checkpoint.setProperty("complete", Boolean.toString(complete));
+            Path tmp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+            try {
+                try (var out = Files.newOutputStream(tmp)) {
+                    checkpoint.store(out, "Bulk import progress of " + file.getFileName());
+                }
+                Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error writing " + checkpointFile, e);
+            }
+        }
+    }
+
+    // ---- Parsing ----
+
+    private static int indexOfLineEnd(byte[] bytes, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return bytes.length;
+    }
+
+    // Comma-separated fields; a field in double quotes may contain commas and doubled quotes
+    static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    // A field as text, null if it is missing or empty
+    private static String text(Map<String, Object> fields, String name) {
+        Object value = fields.get(name);
+        if (value == null) {
+            return null;
+        }
+        String text = value instanceof Number && ((Number) value).doubleValue() == ((Number) value).longValue()
+                ? Long.toString(((Number) value).longValue()) : value.toString();
+        return text.isEmpty() ? null : text;
+    }
+
+    private static String required(Map<String, Object> fields, String name) {
+        String value = text(fields, name);
+        if (value == null) {
+            throw new IllegalArgumentException("no " + name);
+        }
+        return value;
+    }
+
+    // Rounded to a whole star: MovieLens has half stars from 0.5
+    private static int rating(String value) {
+        long rating = Math.round(Double.parseDouble(value));
+        if (rating < RatingAggregates.MIN_RATING - 1 || rating > RatingAggregates.MAX_RATING) {
+            throw new IllegalArgumentException("rating out of range: " + value);
+        }
+        return (int) Math.max(RatingAggregates.MIN_RATING, rating);
+    }
+
+    // reviewedAt in milliseconds (or a date in JSON), else MovieLens' timestamp in seconds; 0 if neither
+    private static long reviewedAt(Map<String, Object> fields) {
+        Object reviewedAt = fields.get("reviewedAt");
+        if (reviewedAt instanceof Date) {
+            return ((Date) reviewedAt).getTime();
+        }
+        String millis = text(fields, "reviewedAt");
+        if (millis != null) {
+            return Long.parseLong(millis);
+        }
+        String seconds = text(fields, "timestamp");
+        return seconds == null ? 0 : Long.parseLong(seconds) * 1000;
+    }
+
+    // "Toy Story (1995)" -> "1995"
+    private static String yearInTitle(String title) {
+        if (title == null) {
+            return null;
+        }
+        String trimmed = title.trim();
+        int open = trimmed.lastIndexOf('(');
+        if (open >= 0 && trimmed.endsWith(")") && trimmed.length() - open == 6) {
+            String year = trimmed.substring(open + 1, trimmed.length() - 1);
+            if (year.chars().allMatch(Character::isDigit)) {
+                return year;
+            }
+        }
+        return null;
+    }
+
+    // "Adventure|Animation" -> "Adventure, Animation"
+    private static String movieLensGenres(String genres) {
+        if (genres == null || genres.equals("(no genres listed)")) {
+            return null;
+        }
+        return String.join(", ", genres.split("\\|"));
+    }
+
+    // Users imported without a username are named after their ID, and without a password cannot log in
+    private static User newUser(String userId, String username, String password, String email) {
+        return new User(userId, username == null ? "user" + userId : username,
+                password == null ? UUID.randomUUID().toString() : password, email);
+    }
+}
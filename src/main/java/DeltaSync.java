@@ -0,0 +1,293 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+// Incremental sync with MongoDB (-Dapp.sync=delta).
+// MongoStorage stamps every write with updatedAt and origin and leaves a tombstone in Deletions for every
+// delete. This class keeps a checkpoint (the time up to which changes have been applied) and pulls only the
+// documents changed since then, written by other instances, into the store through MovieReviewService:
+// - at startup, on top of a binary StoreSnapshot of the data (written every snapshotMinutes and on clean
+//   shutdown, with its checkpoint), so startup reads the changes since the snapshot instead of every
+//   collection; without a usable snapshot the caller loads everything
+// - while running, by tailing a change stream where the server supports one (replica sets), otherwise by
+//   polling every intervalSeconds
+// Pulls reach back OVERLAP before the checkpoint, to catch writes that were in flight or stamped by a clock
+// slightly behind ours; applying a change twice is harmless. Tombstones expire after
+// IndexManager.TOMBSTONE_RETENTION_DAYS, so a snapshot older than that is not used. The updatedAt indexes
+// the change queries need are created by IndexManager.
+public class DeltaSync implements AutoCloseable {
+    public static final int DEFAULT_INTERVAL_SECONDS = 30;
+    public static final int DEFAULT_SNAPSHOT_MINUTES = 10;
+    private static final long OVERLAP_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    // Server error for $changeStream on a standalone server
+    private static final int CHANGE_STREAMS_UNSUPPORTED = 40573;
+
+    private final MongoStorage mongo;
+    private final MongoDatabase database;
+    private final Path snapshotFile;
+    private final long intervalMillis;
+    private final long snapshotMinutes;
+    private MovieReviewService service;
+    private EntityStore store;
+    private Thread worker;
+    private ScheduledExecutorService snapshotter;
+    private final Object snapshotLock = new Object();
+    private volatile boolean running;
+    private volatile long checkpoint;
+    private volatile boolean changeStreams = true;
+
+    public DeltaSync(MongoStorage mongo, Path snapshotFile, int intervalSeconds, int snapshotMinutes) {
+        this.mongo = mongo;
+        this.database = mongo.getDatabase();
+        this.snapshotFile = snapshotFile;
+        this.intervalMillis = TimeUnit.SECONDS.toMillis(intervalSeconds);
+        this.snapshotMinutes = snapshotMinutes;
+    }
+
+    // Loads the snapshot into the (empty) store and returns it, or null if there is no usable snapshot;
+    // the caller then loads everything from MongoDB and the checkpoint is the time of this call
+    public StoreSnapshot loadSnapshot(EntityStore store, RatingAggregates ratingAggregates) {
+        long now = System.currentTimeMillis();
+        checkpoint = now;
+        if (!Files.exists(snapshotFile)) {
+            return null;
+        }
+        long start = System.nanoTime();
+        StoreSnapshot snapshot;
+        try {
+            snapshot = StoreSnapshot.open(snapshotFile);
+        } catch (IOException e) {
+            System.err.println("Cannot use snapshot " + snapshotFile + ": " + e.getMessage());
+            return null;
+        }
+        if (!snapshot.getSource().equals(mongo.describe())
+                || now - snapshot.getCheckpoint() > TimeUnit.DAYS.toMillis(IndexManager.TOMBSTONE_RETENTION_DAYS) - OVERLAP_MILLIS) {
+            System.out.println("Snapshot " + snapshotFile + " is stale or from another database; loading everything");
+            return null;
+        }
+        try {
+            snapshot.load(store, ratingAggregates);
+        } catch (IOException e) {
+            // The checksum matched, so this is a bug rather than a damaged file; the partly filled store cannot be used
+            throw new UncheckedIOException("Error loading snapshot " + snapshotFile, e);
+        }
+        checkpoint = snapshot.getCheckpoint();
+        System.out.println("Loaded " + store.reviewCount() + " reviews from snapshot " + snapshotFile + " (changes up to "
+                + new Date(checkpoint) + ", " + (System.nanoTime() - start) / 1_000_000 + " ms)");
+        return snapshot;
+    }
+
+    // Catches up with the changes since the checkpoint, then keeps following them in the background
+    public void start(MovieReviewService service, EntityStore store) {
+        this.service = service;
+        this.store = store;
+        long start = System.nanoTime();
+        int applied = pull();
+        System.out.println("Delta sync: applied " + applied + " changes (" + (System.nanoTime() - start) / 1_000_000 + " ms)");
+        running = true;
+        worker = new Thread(this::run, "delta-sync");
+        worker.setDaemon(true);
+        worker.start();
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "delta-sync-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(this::saveSnapshot, snapshotMinutes, snapshotMinutes, TimeUnit.MINUTES);
+    }
+
+    // One pass over the changes since the checkpoint; returns the number of changes applied
+    public synchronized int pull() {
+        long start = Metrics.start();
+        long pullStart = System.currentTimeMillis();
+        Date since = new Date(checkpoint - OVERLAP_MILLIS);
+        int applied = 0;
+        applied += pullCollection("Users", StartupLoader.USER_FIELDS, since, DocumentMapper::toUser, service::applyUser);
+        applied += pullCollection("Movies", StartupLoader.MOVIE_FIELDS, since, DocumentMapper::toMovie, service::applyMovie);
+        applied += pullCollection("Reviews", StartupLoader.REVIEW_FIELDS, since, DocumentMapper::toReview, service::applyReview);
+        try (MongoCursor<Document> tombstones = database.getCollection(MongoStorage.DELETIONS)
+                .find(changedSince(since)).sort(Sorts.ascending(MongoStorage.UPDATED_AT)).iterator()) {
+            while (tombstones.hasNext()) {
+                applyDeletion(tombstones.next());
+                applied++;
+            }
+        }
+        checkpoint = pullStart;
+        Metrics.record("sync.pull", start);
+        return applied;
+    }
+
+    private <T> int pullCollection(String collection, List<String> fields, Date since, Function<Document, T> mapper,
+                                   Consumer<T> apply) {
+        int applied = 0;
+        try (MongoCursor<Document> changed = database.getCollection(collection).find(changedSince(since))
+                .projection(Projections.fields(Projections.include(fields), Projections.excludeId()))
+                .batchSize(StartupLoader.DEFAULT_BATCH_SIZE).iterator()) {
+            while (changed.hasNext()) {
+                apply.accept(mapper.apply(changed.next()));
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    // Written since the given time by anyone but this instance, whose own changes are already in the store
+    private Bson changedSince(Date since) {
+        return Filters.and(Filters.gte(MongoStorage.UPDATED_AT, since), Filters.ne(MongoStorage.ORIGIN, mongo.getInstanceId()));
+    }
+
+    private void applyDeletion(Document tombstone) {
+        service.applyDeletion(tombstone.getString("collection"), tombstone.getString("key"));
+    }
+
+    // ---- Background ----
+
+    private void run() {
+        while (running) {
+            try {
+                if (changeStreams) {
+                    tailChangeStream();
+                } else {
+                    sleep();
+                    if (running) {
+                        pull();
+                    }
+                }
+            } catch (MongoCommandException e) {
+                if (e.getErrorCode() == CHANGE_STREAMS_UNSUPPORTED) {
+                    changeStreams = false;
+                    System.out.println("Delta sync: no change streams on this server; polling every "
+                            + intervalMillis / 1000 + " s");
+                } else {
+                    syncFailed(e);
+                }
+            } catch (MongoException | IllegalStateException e) {
+                syncFailed(e);
+            }
+        }
+    }
+
+    // Opens the stream before catching up, so nothing written in between is missed, then applies events
+    // until closed. Deletes are followed through the tombstones, which carry the key the delete event lacks.
+    private void tailChangeStream() {
+        List<Bson> pipeline = List.of(Aggregates.match(Filters.and(
+                Filters.in("ns.coll", "Users", "Movies", "Reviews", MongoStorage.DELETIONS),
+                Filters.in("operationType", "insert", "replace", "update"))));
+        try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> stream = database.watch(pipeline)
+                .fullDocument(FullDocument.UPDATE_LOOKUP).maxAwaitTime(1, TimeUnit.SECONDS).cursor()) {
+            pull();
+            while (running) {
+                long polled = System.currentTimeMillis();
+                ChangeStreamDocument<Document> event = stream.tryNext();
+                if (event == null) {
+                    // Everything committed before the poll has been seen
+                    checkpoint = polled;
+                } else {
+                    applyEvent(event);
+                }
+            }
+        }
+    }
+
+    private void applyEvent(ChangeStreamDocument<Document> event) {
+        Document document = event.getFullDocument();
+        if (document == null || event.getNamespace() == null || event.getOperationType() == OperationType.DELETE
+                || mongo.getInstanceId().equals(document.getString(MongoStorage.ORIGIN))) {
+            return;
+        }
+        long start = Metrics.start();
+        switch (event.getNamespace().getCollectionName()) {
+            case "Users":
+                service.applyUser(DocumentMapper.toUser(document));
+                break;
+            case "Movies":
+                service.applyMovie(DocumentMapper.toMovie(document));
+                break;
+            case "Reviews":
+                service.applyReview(DocumentMapper.toReview(document));
+                break;
+            case MongoStorage.DELETIONS:
+                applyDeletion(document);
+                break;
+            default:
+                return;
+        }
+        Metrics.record("sync.changeEvent", start);
+    }
+
+    private void syncFailed(RuntimeException e) {
+        System.err.println("Delta sync failed, retrying in " + intervalMillis / 1000 + " s: " + e.getMessage());
+        sleep();
+    }
+
+    private void sleep() {
+        try {
+            Thread.sleep(intervalMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    // Stops following changes and writing periodic snapshots
+    @Override
+    public void close() {
+        running = false;
+        if (snapshotter != null) {
+            snapshotter.shutdownNow();
+        }
+        if (worker != null) {
+            worker.interrupt();
+            try {
+                worker.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // ---- Snapshots ----
+
+    // Writes the store with the current checkpoint as the snapshot for the next start. The checkpoint is
+    // taken first, so changes applied while the store is written are pulled again after loading. On
+    // shutdown, call after close() and after the write-behind queue has been flushed.
+    public void saveSnapshot() {
+        if (store == null) {
+            return;
+        }
+        synchronized (snapshotLock) {
+            long covered = checkpoint;
+            long start = Metrics.start();
+            try {
+                StoreSnapshot.write(snapshotFile, store, mongo.describe(), covered);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error writing snapshot " + snapshotFile + ": " + e.getMessage());
+                return;
+            }
+            Metrics.record("sync.snapshot", start);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+import java.util.Date;
+
+import org.bson.Document;
+
+// Converts users, movies and reviews to and from the documents stored in MongoDB
+public class DocumentMapper {
+    private DocumentMapper() {
+    }
+
+    public static Document toDocument(User user) {
+        return new Document("username", user.getUsername())
+                .append("password", user.getPassword())
+                .append("email", user.getEmail())
+                .append("userId", user.getUserId());
+    }
+
+    public static Document toDocument(Movie movie) {
+        return new Document("title", movie.getTitle())
+                .append("description", movie.getDescription())
+                .append("releaseDate", movie.getReleaseDate())
+                .append("genre", movie.getGenre())
+                .append("movieId", movie.getMovieId());
+    }
+
+    public static Document toDocument(Review review) {
+        return new Document("reviewId", review.getReviewId())
+                .append("userId", review.getUserId())
+                .append("movieId", review.getMovieId())
+                .append("rating", review.getRating())
+                .append("comments", review.getComments())
+                .append("reviewedAt", review.getReviewedAt() == 0 ? null : new Date(review.getReviewedAt()));
+    }
+
+    public static User toUser(Document doc) {
+        return new User(doc.getString("userId"), doc.getString("username"), doc.getString("password"),
+                doc.getString("email"));
+    }
+
+    public static Movie toMovie(Document doc) {
+        return new Movie(doc.getString("movieId"), doc.getString("title"), doc.getString("description"),
+                doc.getString("releaseDate"), doc.getString("genre"));
+    }
+
+    public static Review toReview(Document doc) {
+        Date reviewedAt = doc.getDate("reviewedAt");
+        return new Review(doc.getString("reviewId"), doc.getString("userId"), doc.getString("movieId"),
+                doc.getInteger("rating"), doc.getString("comments"), reviewedAt == null ? 0 : reviewedAt.getTime());
+    }
+}
@@ -0,0 +1,454 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+// Embedded log-structured StorageBackend that needs no external process.
+// All documents are held in memory. Every change is appended to a write-ahead log (wal.log) before the
+// call returns; concurrent callers share fsyncs (group commit). The log is periodically compacted into
+// a snapshot (snapshot.dat), written to a temporary file and renamed into place. Startup reads the
+// snapshot through memory-mapped FileChannel windows and replays the log on top of it; a torn record
+// at the end of the log (from a crash mid-write) is cut off.
+//
+// Both files are sequences of records: int length, int CRC32 of the payload, payload (a BSON document).
+// Payload fields: o = operation (U upsert, D delete, C counter), c = collection, f = key field,
+// k = key, d = document, n = counter name, v = counter value.
+public class EmbeddedStorage implements StorageBackend {
+    private static final int SNAPSHOT_MAGIC = 0x4D525353;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final long MAP_WINDOW = 256L * 1024 * 1024;
+    private static final int MAX_RECORD = 64 * 1024 * 1024;
+    private static final long DEFAULT_COMPACTION_BYTES = 64L * 1024 * 1024;
+    private static final long SNAPSHOT_INTERVAL_MINUTES = 5;
+    private static final DocumentCodec CODEC = new DocumentCodec();
+
+    private final Path walPath;
+    private final Path snapshotPath;
+    private final long compactionBytes;
+    private final Map<String, Map<String, Document>> collections = new ConcurrentHashMap<>();
+    private final Map<String, String> keyFields = new ConcurrentHashMap<>();
+    private final Map<String, Long> counters = new ConcurrentHashMap<>();
+    private final FileChannel wal;
+    private final ScheduledExecutorService snapshotter;
+
+    // Appends (and the in-memory changes that go with them) happen under appendLock, so the log order
+    // is the order changes were applied. Positions count every byte ever appended, across compactions.
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+    private volatile long appendedPosition;
+    private long syncedPosition;
+    private long walBytes;
+
+    // Opens the storage in the directory, creating it if needed, and starts the periodic snapshots
+    public static EmbeddedStorage open(Path directory) {
+        return open(directory, DEFAULT_COMPACTION_BYTES);
+    }
+
+    public static EmbeddedStorage open(Path directory, long compactionBytes) {
+        EmbeddedStorage storage = new EmbeddedStorage(directory, compactionBytes);
+        storage.snapshotter.scheduleWithFixedDelay(storage::snapshotIfAnyLogged, SNAPSHOT_INTERVAL_MINUTES,
+                SNAPSHOT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        return storage;
+    }
+
+    private EmbeddedStorage(Path directory, long compactionBytes) {
+        this.walPath = directory.resolve("wal.log");
+        this.snapshotPath = directory.resolve("snapshot.dat");
+        this.compactionBytes = compactionBytes;
+        try {
+            Files.createDirectories(directory);
+            loadSnapshot();
+            wal = FileChannel.open(walPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long validEnd = readRecords(wal, 0, wal.size(), this::apply);
+            if (validEnd < wal.size()) {
+                System.err.println("Embedded storage: discarding " + (wal.size() - validEnd) + " bytes of incomplete log");
+                wal.truncate(validEnd);
+                wal.force(true);
+            }
+            wal.position(validEnd);
+            walBytes = validEnd;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error opening embedded storage in " + directory, e);
+        }
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "embedded-storage-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // ---- StorageBackend ----
+
+    @Override
+    public void scan(String collection, List<String> fields, int batchSize, Consumer<Document> consumer) {
+        for (Document document : collection(collection).values()) {
+            Document projected = new Document();
+            for (String field : fields) {
+                if (document.containsKey(field)) {
+                    projected.append(field, document.get(field));
+                }
+            }
+            consumer.accept(projected);
+        }
+    }
+
+    @Override
+    public List<Document> find(String collection, String field, String value) {
+        List<Document> result = new ArrayList<>();
+        for (Document document : collection(collection).values()) {
+            if (value.equals(document.get(field))) {
+                result.add(document);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void write(String collection, List<WriteBehindQueue.DirtyEntry> entries) {
+        long position;
+        synchronized (appendLock) {
+            for (WriteBehindQueue.DirtyEntry entry : entries) {
+                Document record = new Document("o", entry.getOperation() == WriteBehindQueue.Operation.DELETE ? "D" : "U")
+                        .append("c", collection).append("f", entry.getKeyField()).append("k", entry.getKey());
+                if (entry.getOperation() == WriteBehindQueue.Operation.UPSERT) {
+                    record.append("d", entry.getDocument());
+                }
+                apply(record);
+                append(record);
+            }
+            position = appendedPosition;
+        }
+        sync(position);
+        snapshotIfLogged(compactionBytes);
+    }
+
+    // Logged as upserts, like any other write
+    @Override
+    public void insert(String collection, String keyField, List<Document> documents) {
+        List<WriteBehindQueue.DirtyEntry> entries = new ArrayList<>(documents.size());
+        for (Document document : documents) {
+            entries.add(new WriteBehindQueue.DirtyEntry(collection, keyField, document.getString(keyField),
+                    WriteBehindQueue.Operation.UPSERT, document));
+        }
+        write(collection, entries);
+    }
+
+    @Override
+    public long incrementCounter(String name, long count) {
+        long value;
+        long position;
+        synchronized (appendLock) {
+            value = counters.merge(name, count, Long::sum);
+            append(new Document("o", "C").append("n", name).append("v", value));
+            position = appendedPosition;
+        }
+        sync(position);
+        return value;
+    }
+
+    @Override
+    public void raiseCounter(String name, long value) {
+        long position;
+        synchronized (appendLock) {
+            long raised = counters.merge(name, value, Math::max);
+            append(new Document("o", "C").append("n", name).append("v", raised));
+            position = appendedPosition;
+        }
+        sync(position);
+    }
+
+    @Override
+    public long maxId(String collection, String keyField) {
+        long max = 0;
+        for (Document document : collection(collection).values()) {
+            max = Math.max(max, StartupLoader.parseId(document.getString(keyField)));
+        }
+        return max;
+    }
+
+    @Override
+    public Map<String, long[]> ratingTotals() {
+        Map<String, long[]> totals = new HashMap<>();
+        for (Document review : collection("Reviews").values()) {
+            long[] total = totals.computeIfAbsent(review.getString("movieId"),
+                    k -> new long[2 + RatingAggregates.MAX_RATING - RatingAggregates.MIN_RATING + 1]);
+            int rating = ((Number) review.get("rating")).intValue();
+            total[0]++;
+            total[1] += rating;
+            if (rating >= RatingAggregates.MIN_RATING && rating <= RatingAggregates.MAX_RATING) {
+                total[2 + rating - RatingAggregates.MIN_RATING]++;
+            }
+        }
+        return totals;
+    }
+
+    @Override
+    public String describe() {
+        return "embedded storage in " + walPath.getParent().toAbsolutePath();
+    }
+
+    // Clean shutdown: compact the log into a fresh snapshot so the next start has nothing to replay
+    @Override
+    public void close() {
+        snapshotter.shutdownNow();
+        snapshotIfAnyLogged();
+        try {
+            wal.close();
+        } catch (IOException e) {
+            System.err.println("Error closing embedded storage: " + e.getMessage());
+        }
+    }
+
+    // ---- Log ----
+
+    private void apply(Document record) {
+        switch (record.getString("o")) {
+            case "U":
+                keyFields.put(record.getString("c"), record.getString("f"));
+                collection(record.getString("c")).put(record.getString("k"), record.get("d", Document.class));
+                break;
+            case "D":
+                collection(record.getString("c")).remove(record.getString("k"));
+                break;
+            case "C":
+                counters.put(record.getString("n"), ((Number) record.get("v")).longValue());
+                break;
+            default:
+                throw new IllegalStateException("Unknown log record: " + record.toJson());
+        }
+    }
+
+    // Caller holds appendLock
+    private void append(Document record) {
+        ByteBuffer buffer = frame(encode(record));
+        int length = buffer.remaining();
+        try {
+            while (buffer.hasRemaining()) {
+                wal.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error appending to " + walPath, e);
+        }
+        walBytes += length;
+        appendedPosition += length;
+    }
+
+    // Group commit: one fsync covers every append made before it, so a caller whose records were
+    // already covered by another thread's fsync returns without syncing again
+    private void sync(long position) {
+        synchronized (syncLock) {
+            if (syncedPosition >= position) {
+                return;
+            }
+            long target = appendedPosition;
+            try {
+                wal.force(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error syncing " + walPath, e);
+            }
+            syncedPosition = target;
+        }
+    }
+
+    // ---- Snapshots ----
+
+    private void snapshotIfAnyLogged() {
+        try {
+            snapshotIfLogged(0);
+        } catch (RuntimeException e) {
+            System.err.println("Error writing snapshot: " + e.getMessage());
+        }
+    }
+
+    // Checked under appendLock, so writers past the threshold together write one snapshot, not one each
+    private void snapshotIfLogged(long threshold) {
+        synchronized (appendLock) {
+            if (walBytes > threshold) {
+                snapshot();
+            }
+        }
+    }
+
+    // Writes the full state to a new snapshot and empties the log. Writes wait while this runs.
+    public void snapshot() {
+        synchronized (appendLock) {
+            try (SnapshotWriter writer = new SnapshotWriter(snapshotPath.getParent())) {
+                for (Map.Entry<String, Map<String, Document>> collection : collections.entrySet()) {
+                    String keyField = keyFields.get(collection.getKey());
+                    for (Map.Entry<String, Document> document : collection.getValue().entrySet()) {
+                        writer.upsert(collection.getKey(), keyField, document.getKey(), document.getValue());
+                    }
+                }
+                for (Map.Entry<String, Long> counter : counters.entrySet()) {
+                    writer.counter(counter.getKey(), counter.getValue());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error writing snapshot " + snapshotPath, e);
+            }
+            try {
+                // Replaying the old log over the new snapshot would be harmless, so a crash here loses nothing
+                wal.truncate(0);
+                wal.position(0);
+                wal.force(true);
+                walBytes = 0;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error truncating " + walPath, e);
+            }
+        }
+    }
+
+    // Streams records into a new snapshot of a directory, written to a temporary file and renamed into place on close
+    private static class SnapshotWriter implements AutoCloseable {
+        private final Path snapshotPath;
+        private final Path tmp;
+        private final FileChannel channel;
+        private final DataOutputStream out;
+
+        private SnapshotWriter(Path directory) throws IOException {
+            Files.createDirectories(directory);
+            this.snapshotPath = directory.resolve("snapshot.dat");
+            this.tmp = directory.resolve("snapshot.tmp");
+            this.channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+        }
+
+        private void upsert(String collection, String keyField, String key, Document document) throws IOException {
+            writeRecord(out, new Document("o", "U").append("c", collection).append("f", keyField)
+                    .append("k", key).append("d", document));
+        }
+
+        private void counter(String name, long value) throws IOException {
+            writeRecord(out, new Document("o", "C").append("n", name).append("v", value));
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.flush();
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+            Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private void loadSnapshot() throws IOException {
+        if (!Files.exists(snapshotPath)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, 8));
+            if (size < 8 || header.getInt() != SNAPSHOT_MAGIC || header.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Not a supported snapshot file: " + snapshotPath);
+            }
+            long end = readRecords(channel, 8, size, this::apply);
+            if (end != size) {
+                throw new IOException("Snapshot is corrupt at byte " + end + ": " + snapshotPath);
+            }
+        }
+    }
+
+    // ---- Record format ----
+
+    // Reads records from [start, end) through memory-mapped windows and returns the position just
+    // after the last complete record with a valid checksum
+    private static long readRecords(FileChannel channel, long start, long end, Consumer<Document> consumer) throws IOException {
+        long position = start;
+        while (position < end) {
+            long windowSize = Math.min(end - position, MAP_WINDOW);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+            while (window.remaining() >= 8) {
+                int recordStart = window.position();
+                int length = window.getInt();
+                int crc = window.getInt();
+                if (length < 0 || length > MAX_RECORD) {
+                    return position + recordStart;
+                }
+                if (window.remaining() < length) {
+                    window.position(recordStart);
+                    break;
+                }
+                byte[] payload = new byte[length];
+                window.get(payload);
+                if (crc32(payload) != crc) {
+                    return position + recordStart;
+                }
+                consumer.accept(decode(payload));
+            }
+            if (window.position() == 0 || position + windowSize == end) {
+                // Nothing fitted, or the leftover is an incomplete record at the end of the file
+                return position + window.position();
+            }
+            position += window.position();
+        }
+        return position;
+    }
+
+    private static void writeRecord(DataOutputStream out, Document record) throws IOException {
+        byte[] payload = encode(record);
+        out.writeInt(payload.length);
+        out.writeInt(crc32(payload));
+        out.write(payload);
+    }
+
+    private static ByteBuffer frame(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.putInt(payload.length).putInt(crc32(payload)).put(payload).flip();
+        return buffer;
+    }
+
+    private static byte[] encode(Document document) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+            CODEC.encode(writer, document, EncoderContext.builder().build());
+        }
+        return buffer.toByteArray();
+    }
+
+    private static Document decode(byte[] payload) {
+        try (BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(payload))) {
+            return CODEC.decode(reader, DecoderContext.builder().build());
+        }
+    }
+
+    private static int crc32(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private Map<String, Document> collection(String name) {
+        return collections.computeIfAbsent(name, k -> new ConcurrentHashMap<>());
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.Collection;
+import java.util.List;
+
+// The lookups and changes the domain layer (MovieReviewService, Leaderboards) works with: entities by key
+// and through their indexes, but no listing or scan of every user or review. EntityStore, which holds
+// everything in memory, adds those; ReadThroughStore reads users and reviews on demand and cannot.
+// Movies are always all in memory, so they can be listed.
+public interface EntityAccess {
+
+    // ---- Users ----
+
+    // false if the username or the user ID is already stored
+    boolean addUser(User user);
+
+    User findUserById(String userId);
+
+    User findUserByUsername(String username);
+
+    boolean isUsernameTaken(String username);
+
+    // false if the new username is taken; the user is renamed in place otherwise
+    boolean renameUser(User user, String newUsername);
+
+    // The removed user, or null
+    User removeUserByUsername(String username);
+
+    // ---- Movies ----
+
+    // false if a movie with this ID is already stored
+    boolean addMovie(Movie movie);
+
+    Movie findMovieById(String movieId);
+
+    // In ID order
+    Collection<Movie> getMovies();
+
+    // Snapshot of the movies in listing order, used by the menus that select a movie by number
+    List<Movie> getMovieList();
+
+    int movieCount();
+
+    // Told about movie changes after the store's own indexes
+    void setMovieChangeListener(Movie.ChangeListener movieChangeListener);
+
+    GenreIndex getGenreIndex();
+
+    ReleaseDateIndex getReleaseDateIndex();
+
+    FullTextIndex getFullTextIndex();
+
+    // ---- Reviews ----
+
+    // false if a review with this ID is already stored
+    boolean addReview(Review review);
+
+    // Changes a review's rating, comments and time, in the store and on the given object
+    void updateReview(Review review, int rating, String comments, long reviewedAt);
+
+    Review findReviewById(String reviewId);
+
+    // The removed review, or null
+    Review removeReview(String reviewId);
+
+    // In ID order
+    List<Review> getReviewsForMovie(String movieId);
+
+    // In ID order
+    List<Review> getReviewsForUser(String userId);
+}
@@ -0,0 +1,285 @@
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+// In-memory store for users, movies and reviews: EntityAccess, plus the listings and scans of every user
+// and review.
+// Every entity is reachable through a primary-key index, and reviews are also indexed by movie and by user,
+// so lookups no longer walk the whole list. All add/update/remove paths keep the indexes in step.
+// Reviews live in ReviewColumns (primitive columns instead of one object per review); the Review objects
+// returned here are views, so changes go through updateReview/removeReview.
+// Review comments and movie descriptions are kept off the heap in compressed TextSegments.
+// The store is safe to use from many threads: the indexes are concurrent maps, the review columns and
+// the movie field indexes do their own locking.
+public class EntityStore implements EntityAccess {
+    private static final int REVIEW_PAGE_SIZE = 1024;
+
+    // Numeric IDs in numeric order, anything else after them in string order
+    static final Comparator<String> ID_ORDER = Comparator
+            .comparing((String id) -> !isNumeric(id))
+            .thenComparingInt(id -> isNumeric(id) ? id.length() : 0)
+            .thenComparing(Comparator.naturalOrder());
+
+    // Primary-key indexes
+    private final ConcurrentMap<String, User> usersById = new ConcurrentHashMap<>();
+
+    // Unique username index
+    private final ConcurrentMap<String, User> usersByUsername = new ConcurrentHashMap<>();
+
+    // Reviews with their by-ID, by-movie and by-user indexes
+    private final ReviewColumns reviews = new ReviewColumns();
+
+    // Full-text index over movie titles/descriptions and review comments
+    private final FullTextIndex fullTextIndex = new FullTextIndex();
+    // Movies with their field indexes and descriptions
+    private final MovieCatalog movies = new MovieCatalog(fullTextIndex);
+
+    // ---- Users ----
+
+    @Override
+    public boolean addUser(User user) {
+        if (usersByUsername.putIfAbsent(user.getUsername(), user) != null) {
+            return false;
+        }
+        if (usersById.putIfAbsent(user.getUserId(), user) != null) {
+            usersByUsername.remove(user.getUsername(), user);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public User findUserById(String userId) {
+        return userId == null ? null : usersById.get(userId);
+    }
+
+    @Override
+    public User findUserByUsername(String username) {
+        return username == null ? null : usersByUsername.get(username);
+    }
+
+    @Override
+    public boolean isUsernameTaken(String username) {
+        return usersByUsername.containsKey(username);
+    }
+
+    @Override
+    public boolean renameUser(User user, String newUsername) {
+        if (usersByUsername.putIfAbsent(newUsername, user) != null) {
+            return false;
+        }
+        usersByUsername.remove(user.getUsername(), user);
+        user.setUsername(newUsername);
+        return true;
+    }
+
+    // Removes the user from the primary and username indexes. Reviews written by the user are kept,
+    // the same as before; listings skip reviews whose author no longer exists.
+    @Override
+    public User removeUserByUsername(String username) {
+        User user = usersByUsername.remove(username);
+        if (user != null) {
+            usersById.remove(user.getUserId(), user);
+        }
+        return user;
+    }
+
+    public Collection<User> getUsers() {
+        return Collections.unmodifiableCollection(usersById.values());
+    }
+
+    public int userCount() {
+        return usersById.size();
+    }
+
+    // ---- Movies ----
+
+    @Override
+    public boolean addMovie(Movie movie) {
+        return movies.addMovie(movie);
+    }
+
+    // Only for taking back the movies of a bulk import batch that could not be written
+    public Movie removeMovie(String movieId) {
+        return movies.removeMovie(movieId);
+    }
+
+    @Override
+    public void setMovieChangeListener(Movie.ChangeListener movieChangeListener) {
+        movies.setMovieChangeListener(movieChangeListener);
+    }
+
+    @Override
+    public GenreIndex getGenreIndex() {
+        return movies.getGenreIndex();
+    }
+
+    @Override
+    public ReleaseDateIndex getReleaseDateIndex() {
+        return movies.getReleaseDateIndex();
+    }
+
+    @Override
+    public FullTextIndex getFullTextIndex() {
+        return fullTextIndex;
+    }
+
+    @Override
+    public Movie findMovieById(String movieId) {
+        return movies.findMovieById(movieId);
+    }
+
+    @Override
+    public Collection<Movie> getMovies() {
+        return movies.getMovies();
+    }
+
+    @Override
+    public List<Movie> getMovieList() {
+        return movies.getMovieList();
+    }
+
+    @Override
+    public int movieCount() {
+        return movies.movieCount();
+    }
+
+    // ---- Reviews ----
+
+    @Override
+    public boolean addReview(Review review) {
+        if (!reviews.add(review)) {
+            return false;
+        }
+        fullTextIndex.indexReview(review);
+        return true;
+    }
+
+    // Changes a review's rating, comments and time (in the store and on the given view) and re-indexes its text
+    @Override
+    public void updateReview(Review review, int rating, String comments, long reviewedAt) {
+        review.setRating(rating);
+        review.setComments(comments);
+        review.setReviewedAt(reviewedAt);
+        if (reviews.update(review.getReviewId(), rating, comments, reviewedAt)) {
+            fullTextIndex.indexReview(review);
+        }
+    }
+
+    @Override
+    public Review findReviewById(String reviewId) {
+        return reviewId == null ? null : reviews.get(reviewId);
+    }
+
+    @Override
+    public Review removeReview(String reviewId) {
+        Review review = reviews.remove(reviewId);
+        if (review != null) {
+            fullTextIndex.removeReview(reviewId);
+        }
+        return review;
+    }
+
+    @Override
+    public List<Review> getReviewsForMovie(String movieId) {
+        return sortedById(reviews.forMovie(movieId));
+    }
+
+    @Override
+    public List<Review> getReviewsForUser(String userId) {
+        return sortedById(reviews.forUser(userId));
+    }
+
+    // Snapshot of all reviews, as views
+    public Collection<Review> getReviews() {
+        return reviews.all();
+    }
+
+    // Every review, as views made a page of rows at a time, so memory does not grow with the number of
+    // reviews and writers are not held up while the consumer runs. A review added or removed during the
+    // pass may or may not be seen.
+    public void forEachReview(Consumer<Review> consumer) {
+        List<Review> page = new ArrayList<>(REVIEW_PAGE_SIZE);
+        int row = 0;
+        while (row >= 0) {
+            page.clear();
+            row = reviews.page(row, REVIEW_PAGE_SIZE, page);
+            page.forEach(consumer);
+        }
+    }
+
+    public int reviewCount() {
+        return reviews.size();
+    }
+
+    // Every review's user, movie and rating, from a scan of the columns
+    public void forEachRating(ReviewColumns.RatingVisitor visitor) {
+        reviews.forEachRating(visitor);
+    }
+
+    // Movie, rating and time of the reviews posted or changed at or after since
+    public void forEachReviewSince(long since, ReviewColumns.TimedRatingVisitor visitor) {
+        reviews.forEachReviewSince(since, visitor);
+    }
+
+    // The user and movie IDs the stored reviews refer to, each once, for checking the references in bulk
+    public List<String> referencedUserIds() {
+        return reviews.referencedUserIds();
+    }
+
+    public List<String> referencedMovieIds() {
+        return reviews.referencedMovieIds();
+    }
+
+    // movieId -> {count, sum, number of 1..5 ratings}, from a scan of the rating column
+    public Map<String, long[]> ratingSummaries() {
+        return reviews.ratingSummaries();
+    }
+
+    // ---- Snapshots ----
+
+    // Writes the review columns and the full-text index in their in-memory form, for StoreSnapshot.
+    // The columns go first, so a review changed while this runs is newer in the index than in the columns,
+    // and re-applying the change after loading brings the review back into the columns and re-indexes it.
+    void writeReviewsAndIndex(DataOutputStream out) throws IOException {
+        reviews.writeTo(out);
+        fullTextIndex.writeTo(out);
+    }
+
+    // Reads what writeReviewsAndIndex wrote into a store holding only users and movies; the index read
+    // replaces the entries for the movies
+    void readReviewsAndIndex(DataInput in) throws IOException {
+        reviews.readFrom(in);
+        fullTextIndex.readFrom(in);
+    }
+
+    long maxNumericReviewId() {
+        return reviews.maxNumericId();
+    }
+
+    private static List<Review> sortedById(List<Review> reviews) {
+        reviews.sort(Comparator.comparing(Review::getReviewId, ID_ORDER));
+        return reviews;
+    }
+
+    private static boolean isNumeric(String id) {
+        if (id.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (!Character.isDigit(id.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,509 @@
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+// Streams whole collections to the console or to text, CSV or JSON Lines files, from the in-memory store
+// or straight from the database.
+// - records are formatted into one BufferedWriter of BUFFER_SIZE that is flushed once at the end, instead
+//   of a synchronized, flushing System.out.println per field
+// - the store is read through its live views (movies, users) or a page of reviews at a time, and the
+//   database through StorageBackend.scan in cursor batches, so memory use does not grow with the collection
+// - files named *.gz are gzip-compressed; a Filter ("genre~drama&rating>=4") keeps the matching records,
+//   checked as they stream past
+// Passwords are never exported.
+public class Exporter {
+    public static final int BUFFER_SIZE = 1 << 16;
+    private static final int SCAN_BATCH_SIZE = 5000;
+
+    public enum Kind {
+        MOVIES("Movies", "All Movie Details:", new String[]{"movieId", "title", "description", "releaseDate", "genre"},
+                new String[]{"Movie UUID", "Title", "Description", "Release Date", "Genre"}),
+        USERS("Users", "All User Details:", new String[]{"userId", "username", "email"},
+                new String[]{"User UUID", "Username", "Email"}),
+        REVIEWS("Reviews", "All Review Details:",
+                new String[]{"reviewId", "userId", "movieId", "rating", "comments", "reviewedAt"},
+                new String[]{null, "User UUID", "Movie UUID", "Rating", "Comments", null});
+
+        private final String collection;
+        private final String title;
+        private final String[] fields;
+        // Field names in the text format; fields without one are left out of it
+        private final String[] labels;
+
+        Kind(String collection, String title, String[] fields, String[] labels) {
+            this.collection = collection;
+            this.title = title;
+            this.fields = fields;
+            this.labels = labels;
+        }
+
+        public String getCollection() {
+            return collection;
+        }
+
+        // "movies", "users" or "reviews"
+        public static Kind parse(String name) {
+            for (Kind kind : values()) {
+                if (kind.name().equalsIgnoreCase(name.trim()) || kind.collection.equalsIgnoreCase(name.trim())) {
+                    return kind;
+                }
+            }
+            throw new IllegalArgumentException("Unknown collection: " + name);
+        }
+
+        private int fieldIndex(String field) {
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i].equalsIgnoreCase(field)) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("Unknown field " + field + " for " + collection + "; fields are "
+                    + String.join(", ", fields));
+        }
+    }
+
+    public enum Format {
+        // The "Label: value" report of the menus
+        TEXT,
+        CSV,
+        JSONL;
+
+        // From the file name, ignoring a trailing .gz: .csv, .jsonl/.json/.ndjson, anything else is text
+        public static Format forFile(Path file) {
+            String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+            if (name.endsWith(".gz")) {
+                name = name.substring(0, name.length() - 3);
+            }
+            if (name.endsWith(".csv")) {
+                return CSV;
+            }
+            return name.endsWith(".jsonl") || name.endsWith(".json") || name.endsWith(".ndjson") ? JSONL : TEXT;
+        }
+    }
+
+    // Conditions on the exported fields, joined by '&', all of which a record must meet:
+    // field=value (numbers compare as numbers, text ignoring case), field!=value, field~text (contains,
+    // ignoring case) and field<value, <=, >, >= (numbers, times as ISO dates or instants, otherwise text).
+    public static class Filter {
+        private final List<Condition> conditions;
+
+        private Filter(List<Condition> conditions) {
+            this.conditions = conditions;
+        }
+
+        // null for an empty expression
+        public static Filter parse(String expression) {
+            if (expression == null || expression.isBlank()) {
+                return null;
+            }
+            List<Condition> conditions = new ArrayList<>();
+            for (String term : expression.split("&")) {
+                if (term.isBlank()) {
+                    continue;
+                }
+                conditions.add(Condition.parse(term.trim()));
+            }
+            return conditions.isEmpty() ? null : new Filter(conditions);
+        }
+
+        @Override
+        public String toString() {
+            List<String> terms = new ArrayList<>();
+            for (Condition condition : conditions) {
+                terms.add(condition.field + condition.operator + condition.value);
+            }
+            return String.join("&", terms);
+        }
+    }
+
+    private static class Condition {
+        private final String field;
+        private final String operator;
+        private final String value;
+        private final Double number;
+        private final Long time;
+
+        private Condition(String field, String operator, String value) {
+            this.field = field;
+            this.operator = operator;
+            this.value = value;
+            this.number = parseNumber(value);
+            this.time = parseTime(value);
+        }
+
+        // Splits at the first operator, so values may contain operator characters
+        private static Condition parse(String term) {
+            for (int at = 1; at < term.length(); at++) {
+                char c = term.charAt(at);
+                if ("<>!=~".indexOf(c) < 0) {
+                    continue;
+                }
+                boolean twoCharacters = (c == '<' || c == '>' || c == '!') && at + 1 < term.length()
+                        && term.charAt(at + 1) == '=';
+                int end = twoCharacters ? at + 2 : at + 1;
+                String operator = term.substring(at, end);
+                if (operator.equals("!")) {
+                    break;
+                }
+                return new Condition(term.substring(0, at).trim(), operator, term.substring(end).trim());
+            }
+            throw new IllegalArgumentException("Not a filter condition: " + term);
+        }
+
+        private boolean matches(Object fieldValue) {
+            if (fieldValue == null) {
+                return operator.equals("!=");
+            }
+            if (operator.equals("~")) {
+                return text(fieldValue).toLowerCase(Locale.ROOT).contains(value.toLowerCase(Locale.ROOT));
+            }
+            int comparison = compare(fieldValue);
+            switch (operator) {
+                case "=":
+                    return comparison == 0;
+                case "!=":
+                    return comparison != 0;
+                case "<":
+                    return comparison < 0;
+                case "<=":
+                    return comparison <= 0;
+                case ">":
+                    return comparison > 0;
+                default:
+                    return comparison >= 0;
+            }
+        }
+
+        private int compare(Object fieldValue) {
+            if (fieldValue instanceof Date && time != null) {
+                return Long.compare(((Date) fieldValue).getTime(), time);
+            }
+            if (number != null) {
+                Double fieldNumber = fieldValue instanceof Number ? Double.valueOf(((Number) fieldValue).doubleValue())
+                        : parseNumber(text(fieldValue));
+                if (fieldNumber != null) {
+                    return Double.compare(fieldNumber, number);
+                }
+            }
+            return text(fieldValue).compareToIgnoreCase(value);
+        }
+
+        private static Double parseNumber(String text) {
+            try {
+                return Double.valueOf(text);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        // Milliseconds since the epoch: a number of them, an ISO instant or the start of an ISO date (UTC)
+        private static Long parseTime(String text) {
+            try {
+                return Long.valueOf(text);
+            } catch (NumberFormatException e) {
+                // not a number of milliseconds
+            }
+            try {
+                return Instant.parse(text).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                // not an instant
+            }
+            try {
+                return LocalDate.parse(text).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return null;
+            }
+        }
+    }
+
+    private final EntityAccess store;
+    private final StorageBackend backend;
+
+    // Either may be null when only the other source is used. Users and reviews can only be exported from
+    // a store that holds them all, an EntityStore; any store can export its movies.
+    public Exporter(EntityAccess store, StorageBackend backend) {
+        this.store = store;
+        this.backend = backend;
+    }
+
+    // The menus' "All ... Details" report of the store or the database, on the console
+    public long print(Kind kind, boolean fromDatabase) throws IOException {
+        Writer out = console();
+        long count = fromDatabase ? exportFromDatabase(kind, Format.TEXT, null, out)
+                : exportFromStore(kind, Format.TEXT, null, out);
+        out.flush();
+        return count;
+    }
+
+    // Writes the collection to file, in the format its name says, from the store or from the database;
+    // returns the number of records written
+    public long exportToFile(Kind kind, Path file, Filter filter, boolean fromDatabase) throws IOException {
+        long start = Metrics.start();
+        long count;
+        try (Writer out = open(Files.newOutputStream(file), file.getFileName().toString().endsWith(".gz"))) {
+            Format format = Format.forFile(file);
+            count = fromDatabase ? exportFromDatabase(kind, format, filter, out) : exportFromStore(kind, format, filter, out);
+        }
+        Metrics.record("export." + kind.name().toLowerCase(Locale.ROOT), start);
+        System.out.printf("Exported %,d %s from %s to %s (%d ms)%n", count, kind.collection,
+                fromDatabase ? backend.describe() : "memory", file, (System.nanoTime() - start) / 1_000_000);
+        return count;
+    }
+
+    // Formats the store's records of kind that pass filter (null for all) into out; returns their number.
+    // out is not flushed.
+    public long exportFromStore(Kind kind, Format format, Filter filter, Writer out) throws IOException {
+        RecordWriter writer = new RecordWriter(kind, format, filter, out);
+        writer.start();
+        Object[] values = new Object[kind.fields.length];
+        switch (kind) {
+            case MOVIES:
+                for (Movie movie : store.getMovies()) {
+                    values[0] = movie.getMovieId();
+                    values[1] = movie.getTitle();
+                    values[2] = movie.getDescription();
+                    values[3] = movie.getReleaseDate();
+                    values[4] = movie.getGenre();
+                    writer.write(values);
+                }
+                break;
+            case USERS:
+                for (User user : fullStore(kind).getUsers()) {
+                    values[0] = user.getUserId();
+                    values[1] = user.getUsername();
+                    values[2] = user.getEmail();
+                    writer.write(values);
+                }
+                break;
+            default:
+                try {
+                    fullStore(kind).forEachReview(review -> {
+                        values[0] = review.getReviewId();
+                        values[1] = review.getUserId();
+                        values[2] = review.getMovieId();
+                        values[3] = review.getRating();
+                        values[4] = review.getComments();
+                        values[5] = review.getReviewedAt() == 0 ? null : new Date(review.getReviewedAt());
+                        writer.writeUnchecked(values);
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+        }
+        return writer.count;
+    }
+
+    private EntityStore fullStore(Kind kind) {
+        if (!(store instanceof EntityStore)) {
+            throw new IllegalStateException(kind.collection + " are not all in memory; export them from the database");
+        }
+        return (EntityStore) store;
+    }
+
+    // The same from the database, streamed from a cursor over the collection
+    public long exportFromDatabase(Kind kind, Format format, Filter filter, Writer out) throws IOException {
+        RecordWriter writer = new RecordWriter(kind, format, filter, out);
+        writer.start();
+        Object[] values = new Object[kind.fields.length];
+        try {
+            backend.scan(kind.collection, Arrays.asList(kind.fields), SCAN_BATCH_SIZE, document -> {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = document.get(kind.fields[i]);
+                }
+                writer.writeUnchecked(values);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return writer.count;
+    }
+
+    // A buffered UTF-8 writer on out, gzip-compressed if asked; closing it closes out.
+    // Compression uses the fastest level: at the default level it takes several times longer than the export.
+    public static Writer open(OutputStream out, boolean gzip) throws IOException {
+        OutputStream stream = !gzip ? out : new GZIPOutputStream(out, BUFFER_SIZE) {
+            {
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        };
+        return new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    // A buffered writer on standard output, for large reports. Flush it when done; closing it closes
+    // standard output.
+    public static Writer console() {
+        System.out.flush();
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out),
+                StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    // Formats records of one kind; values are in the order of the kind's fields
+    private static class RecordWriter {
+        private final Kind kind;
+        private final Format format;
+        private final Writer out;
+        private final int[] filterFields;
+        private final Filter filter;
+        private long count;
+
+        private RecordWriter(Kind kind, Format format, Filter filter, Writer out) {
+            this.kind = kind;
+            this.format = format;
+            this.filter = filter;
+            this.out = out;
+            this.filterFields = new int[filter == null ? 0 : filter.conditions.size()];
+            for (int i = 0; i < filterFields.length; i++) {
+                filterFields[i] = kind.fieldIndex(filter.conditions.get(i).field);
+            }
+        }
+
+        private void start() throws IOException {
+            if (format == Format.TEXT) {
+                out.write(kind.title);
+                out.write('\n');
+            } else if (format == Format.CSV) {
+                for (int i = 0; i < kind.fields.length; i++) {
+                    if (i > 0) {
+                        out.write(',');
+                    }
+                    out.write(kind.fields[i]);
+                }
+                out.write('\n');
+            }
+        }
+
+        private void write(Object[] values) throws IOException {
+            for (int i = 0; i < filterFields.length; i++) {
+                if (!filter.conditions.get(i).matches(values[filterFields[i]])) {
+                    return;
+                }
+            }
+            count++;
+            switch (format) {
+                case TEXT:
+                    for (int i = 0; i < values.length; i++) {
+                        if (kind.labels[i] != null) {
+                            out.write(kind.labels[i]);
+                            out.write(": ");
+                            out.write(text(values[i]));
+                            out.write('\n');
+                        }
+                    }
+                    out.write('\n');
+                    break;
+                case CSV:
+                    for (int i = 0; i < values.length; i++) {
+                        if (i > 0) {
+                            out.write(',');
+                        }
+                        if (values[i] != null) {
+                            writeCsv(text(values[i]));
+                        }
+                    }
+                    out.write('\n');
+                    break;
+                default:
+                    out.write('{');
+                    for (int i = 0; i < values.length; i++) {
+                        if (i > 0) {
+                            out.write(',');
+                        }
+                        writeJson(kind.fields[i]);
+                        out.write(':');
+                        if (values[i] == null) {
+                            out.write("null");
+                        } else if (values[i] instanceof Number || values[i] instanceof Boolean) {
+                            out.write(values[i].toString());
+                        } else {
+                            writeJson(text(values[i]));
+                        }
+                    }
+                    out.write("}\n");
+            }
+        }
+
+        private void writeUnchecked(Object[] values) {
+            try {
+                write(values);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeCsv(String value) throws IOException {
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                out.write(value);
+                return;
+            }
+            out.write('"');
+            out.write(value.replace("\"", "\"\""));
+            out.write('"');
+        }
+
+        private void writeJson(String value) throws IOException {
+            out.write('"');
+            int plain = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    continue;
+                }
+                out.write(value, plain, i - plain);
+                plain = i + 1;
+                switch (c) {
+                    case '"':
+                        out.write("\\\"");
+                        break;
+                    case '\\':
+                        out.write("\\\\");
+                        break;
+                    case '\n':
+                        out.write("\\n");
+                        break;
+                    case '\r':
+                        out.write("\\r");
+                        break;
+                    case '\t':
+                        out.write("\\t");
+                        break;
+                    default:
+                        out.write(String.format("\\u%04x", (int) c));
+                }
+            }
+            out.write(value, plain, value.length() - plain);
+            out.write('"');
+        }
+    }
+
+    // Times as ISO instants, everything else as its string form
+    private static String text(Object value) {
+        if (value instanceof Date) {
+            return ((Date) value).toInstant().toString();
+        }
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,337 @@
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Embedded full-text index over movie titles, movie descriptions and review comments, ranked with BM25.
+// Every movie and every review is a document; review matches count towards the movie they belong to.
+// Re-indexing or removing a document marks its old docId as deleted, and the posting lists are
+// compacted once deleted documents make up a quarter of the index.
+public class FullTextIndex {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    // Title terms are indexed this many times so title matches outrank description matches
+    private static final int TITLE_BOOST = 2;
+    // Review matches contribute a reduced share to their movie's score
+    private static final double REVIEW_WEIGHT = 0.5;
+
+    private final Map<String, PostingList> postings = new HashMap<>();
+    private final Map<String, Integer> movieDocIds = new HashMap<>();
+    private final Map<String, Integer> reviewDocIds = new HashMap<>();
+
+    // Per-document columns, indexed by docId
+    private String[] docMovieIds = new String[16];
+    private boolean[] docIsReview = new boolean[16];
+    private int[] docLengths = new int[16];
+    private final BitSet deleted = new BitSet();
+    private int nextDocId;
+    private int liveDocs;
+    private int deletedSinceCompaction;
+    private long liveLength;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public static class SearchResult {
+        private final String movieId;
+        private final double score;
+
+        public SearchResult(String movieId, double score) {
+            this.movieId = movieId;
+            this.score = score;
+        }
+
+        public String getMovieId() {
+            return movieId;
+        }
+
+        public double getScore() {
+            return score;
+        }
+    }
+
+    public void indexMovie(Movie movie) {
+        lock.writeLock().lock();
+        try {
+            removeDoc(movieDocIds.remove(movie.getMovieId()));
+            List<String> terms = new ArrayList<>();
+            List<String> titleTerms = TextAnalyzer.analyze(movie.getTitle());
+            for (int i = 0; i < TITLE_BOOST; i++) {
+                terms.addAll(titleTerms);
+            }
+            terms.addAll(TextAnalyzer.analyze(movie.getDescription()));
+            movieDocIds.put(movie.getMovieId(), addDoc(movie.getMovieId(), false, terms));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeMovie(String movieId) {
+        lock.writeLock().lock();
+        try {
+            removeDoc(movieDocIds.remove(movieId));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void indexReview(Review review) {
+        lock.writeLock().lock();
+        try {
+            removeDoc(reviewDocIds.remove(review.getReviewId()));
+            List<String> terms = TextAnalyzer.analyze(review.getComments());
+            reviewDocIds.put(review.getReviewId(), addDoc(review.getMovieId(), true, terms));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeReview(String reviewId) {
+        lock.writeLock().lock();
+        try {
+            removeDoc(reviewDocIds.remove(reviewId));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Returns the k best matching movies, best first. Scores are accumulated per movie and the
+    // top k are kept in a bounded min-heap, so the cost does not depend on sorting all matches.
+    public List<SearchResult> search(String query, int k) {
+        lock.readLock().lock();
+        try {
+            if (k <= 0 || liveDocs == 0) {
+                return new ArrayList<>();
+            }
+            Map<String, Integer> queryTerms = new LinkedHashMap<>();
+            for (String term : TextAnalyzer.analyze(query)) {
+                queryTerms.merge(term, 1, Integer::sum);
+            }
+
+            double avgLength = (double) liveLength / liveDocs;
+            Map<String, Double> scores = new HashMap<>();
+            for (String term : queryTerms.keySet()) {
+                PostingList posting = postings.get(term);
+                if (posting == null) {
+                    continue;
+                }
+                // Postings of deleted documents stay until compaction, so they are left out of the count
+                int df = 0;
+                PostingList.Cursor counter = posting.cursor();
+                while (counter.next()) {
+                    if (!deleted.get(counter.docId())) {
+                        df++;
+                    }
+                }
+                if (df == 0) {
+                    continue;
+                }
+                double idf = Math.log(1 + (liveDocs - df + 0.5) / (df + 0.5));
+                PostingList.Cursor cursor = posting.cursor();
+                while (cursor.next()) {
+                    int docId = cursor.docId();
+                    if (deleted.get(docId)) {
+                        continue;
+                    }
+                    double tf = cursor.termFrequency();
+                    double norm = K1 * (1 - B + B * docLengths[docId] / avgLength);
+                    double score = idf * tf * (K1 + 1) / (tf + norm);
+                    if (docIsReview[docId]) {
+                        score *= REVIEW_WEIGHT;
+                    }
+                    scores.merge(docMovieIds[docId], score, Double::sum);
+                }
+            }
+
+            // Sized by the matches, not k, which comes from the caller
+            PriorityQueue<SearchResult> heap = new PriorityQueue<>(Math.min(k, scores.size()) + 1,
+                    (a, b) -> Double.compare(a.score, b.score));
+            for (Map.Entry<String, Double> entry : scores.entrySet()) {
+                if (heap.size() < k) {
+                    heap.add(new SearchResult(entry.getKey(), entry.getValue()));
+                } else if (entry.getValue() > heap.peek().score) {
+                    heap.poll();
+                    heap.add(new SearchResult(entry.getKey(), entry.getValue()));
+                }
+            }
+            List<SearchResult> results = new ArrayList<>(heap);
+            results.sort((a, b) -> Double.compare(b.score, a.score));
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int documentCount() {
+        lock.readLock().lock();
+        try {
+            return liveDocs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int termCount() {
+        lock.readLock().lock();
+        try {
+            return postings.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Writes the whole index as it is, for StoreSnapshot
+    void writeTo(DataOutputStream out) throws IOException {
+        lock.readLock().lock();
+        try {
+            out.writeInt(nextDocId);
+            out.writeInt(liveDocs);
+            out.writeInt(deletedSinceCompaction);
+            out.writeLong(liveLength);
+            // Each document's movie ID as a number in a list of the distinct IDs (-1 for deleted documents)
+            Map<String, Integer> movieCodes = new HashMap<>();
+            List<String> movieIds = new ArrayList<>();
+            int[] docMovies = new int[nextDocId];
+            for (int docId = 0; docId < nextDocId; docId++) {
+                String movieId = docMovieIds[docId];
+                docMovies[docId] = movieId == null ? -1 : movieCodes.computeIfAbsent(movieId, id -> {
+                    movieIds.add(id);
+                    return movieIds.size() - 1;
+                });
+            }
+            StoreSnapshot.writeStrings(out, movieIds);
+            StoreSnapshot.writeInts(out, docMovies, nextDocId);
+            for (int docId = 0; docId < nextDocId; docId++) {
+                out.writeBoolean(docIsReview[docId]);
+            }
+            StoreSnapshot.writeInts(out, docLengths, nextDocId);
+            long[] deletedWords = deleted.toLongArray();
+            out.writeInt(deletedWords.length);
+            StoreSnapshot.writeLongs(out, deletedWords, deletedWords.length);
+            writeDocIds(out, movieDocIds);
+            writeDocIds(out, reviewDocIds);
+            out.writeInt(postings.size());
+            for (Map.Entry<String, PostingList> entry : postings.entrySet()) {
+                StoreSnapshot.writeString(out, entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Replaces the contents of the index with what writeTo wrote
+    void readFrom(DataInput in) throws IOException {
+        lock.writeLock().lock();
+        try {
+            nextDocId = in.readInt();
+            liveDocs = in.readInt();
+            deletedSinceCompaction = in.readInt();
+            liveLength = in.readLong();
+            int capacity = Math.max(16, nextDocId);
+            List<String> movieIds = StoreSnapshot.readStrings(in);
+            int[] docMovies = StoreSnapshot.readInts(in, nextDocId, nextDocId);
+            docMovieIds = new String[capacity];
+            for (int docId = 0; docId < nextDocId; docId++) {
+                docMovieIds[docId] = docMovies[docId] < 0 ? null : movieIds.get(docMovies[docId]);
+            }
+            docIsReview = new boolean[capacity];
+            for (int docId = 0; docId < nextDocId; docId++) {
+                docIsReview[docId] = in.readBoolean();
+            }
+            docLengths = StoreSnapshot.readInts(in, nextDocId, capacity);
+            deleted.clear();
+            deleted.or(BitSet.valueOf(StoreSnapshot.readLongs(in, in.readInt(), 0)));
+            readDocIds(in, movieDocIds);
+            readDocIds(in, reviewDocIds);
+            postings.clear();
+            for (int terms = in.readInt(); terms > 0; terms--) {
+                String term = StoreSnapshot.readString(in);
+                postings.put(term, PostingList.readFrom(in));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void writeDocIds(DataOutputStream out, Map<String, Integer> docIds) throws IOException {
+        out.writeInt(docIds.size());
+        for (Map.Entry<String, Integer> entry : docIds.entrySet()) {
+            StoreSnapshot.writeString(out, entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+    }
+
+    private static void readDocIds(DataInput in, Map<String, Integer> docIds) throws IOException {
+        docIds.clear();
+        for (int count = in.readInt(); count > 0; count--) {
+            String key = StoreSnapshot.readString(in);
+            docIds.put(key, in.readInt());
+        }
+    }
+
+    private int addDoc(String movieId, boolean isReview, List<String> terms) {
+        int docId = nextDocId++;
+        if (docId == docLengths.length) {
+            int capacity = docLengths.length * 2;
+            docMovieIds = Arrays.copyOf(docMovieIds, capacity);
+            docIsReview = Arrays.copyOf(docIsReview, capacity);
+            docLengths = Arrays.copyOf(docLengths, capacity);
+        }
+        docMovieIds[docId] = movieId;
+        docIsReview[docId] = isReview;
+        docLengths[docId] = terms.size();
+        liveDocs++;
+        liveLength += terms.size();
+
+        Map<String, Integer> frequencies = new HashMap<>();
+        for (String term : terms) {
+            frequencies.merge(term, 1, Integer::sum);
+        }
+        for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+            postings.computeIfAbsent(entry.getKey(), t -> new PostingList()).add(docId, entry.getValue());
+        }
+        return docId;
+    }
+
+    private void removeDoc(Integer docId) {
+        if (docId == null || deleted.get(docId)) {
+            return;
+        }
+        deleted.set(docId);
+        docMovieIds[docId] = null;
+        liveDocs--;
+        liveLength -= docLengths[docId];
+        deletedSinceCompaction++;
+        if (deletedSinceCompaction > Math.max(1024, liveDocs / 3)) {
+            compact();
+        }
+    }
+
+    // Drops the postings of deleted documents. DocIds are never reused, so the deleted set can be kept.
+    public void compact() {
+        lock.writeLock().lock();
+        try {
+            deletedSinceCompaction = 0;
+            Iterator<Map.Entry<String, PostingList>> it = postings.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, PostingList> entry = it.next();
+                PostingList compacted = entry.getValue().withoutDeleted(deleted);
+                if (compacted.size() == 0) {
+                    it.remove();
+                } else {
+                    entry.setValue(compacted);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
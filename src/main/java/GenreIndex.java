@@ -0,0 +1,146 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Inverted index from case-folded genre tokens to the movies carrying them.
+// Compound genres such as "Action, Crime" are split into separate tokens. Each posting list is a BitSet
+// over movie ordinals, so multi-genre AND/OR queries are bitwise intersections and unions.
+public class GenreIndex {
+    private final Map<String, BitSet> postings = new HashMap<>();
+    private final Map<String, Integer> ordinalsByMovieId = new HashMap<>();
+    private final List<Movie> moviesByOrdinal = new ArrayList<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Splits a genre string on , / | ; and case-folds each part
+    public static Set<String> tokenize(String genre) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (genre == null) {
+            return tokens;
+        }
+        for (String part : genre.split("[,/|;]")) {
+            String token = part.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    public void add(Movie movie) {
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = ordinalsByMovieId.get(movie.getMovieId());
+            if (ordinal == null) {
+                ordinal = moviesByOrdinal.size();
+                ordinalsByMovieId.put(movie.getMovieId(), ordinal);
+                moviesByOrdinal.add(movie);
+            }
+            for (String token : tokenize(movie.getGenre())) {
+                postings.computeIfAbsent(token, k -> new BitSet()).set(ordinal);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(Movie movie) {
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = ordinalsByMovieId.remove(movie.getMovieId());
+            if (ordinal == null) {
+                return;
+            }
+            moviesByOrdinal.set(ordinal, null);
+            clearTokens(movie.getGenre(), ordinal);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void updateGenre(Movie movie, String oldGenre, String newGenre) {
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = ordinalsByMovieId.get(movie.getMovieId());
+            if (ordinal == null) {
+                return;
+            }
+            clearTokens(oldGenre, ordinal);
+            for (String token : tokenize(newGenre)) {
+                postings.computeIfAbsent(token, k -> new BitSet()).set(ordinal);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Movies carrying every one of the given genres
+    public List<Movie> findAll(Set<String> genres) {
+        lock.readLock().lock();
+        try {
+            BitSet result = null;
+            for (String genre : genres) {
+                BitSet posting = postings.get(genre);
+                if (posting == null) {
+                    return new ArrayList<>();
+                }
+                if (result == null) {
+                    result = (BitSet) posting.clone();
+                } else {
+                    result.and(posting);
+                }
+            }
+            return toMovies(result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Movies carrying at least one of the given genres
+    public List<Movie> findAny(Set<String> genres) {
+        lock.readLock().lock();
+        try {
+            BitSet result = new BitSet();
+            for (String genre : genres) {
+                BitSet posting = postings.get(genre);
+                if (posting != null) {
+                    result.or(posting);
+                }
+            }
+            return toMovies(result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void clearTokens(String genre, int ordinal) {
+        for (String token : tokenize(genre)) {
+            BitSet posting = postings.get(token);
+            if (posting != null) {
+                posting.clear(ordinal);
+                if (posting.isEmpty()) {
+                    postings.remove(token);
+                }
+            }
+        }
+    }
+
+    private List<Movie> toMovies(BitSet ordinals) {
+        List<Movie> result = new ArrayList<>();
+        if (ordinals == null) {
+            return result;
+        }
+        for (int i = ordinals.nextSetBit(0); i >= 0; i = ordinals.nextSetBit(i + 1)) {
+            Movie movie = moviesByOrdinal.get(i);
+            if (movie != null) {
+                result.add(movie);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,117 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hands out numeric IDs for users, movies and reviews using hi-lo block reservation.
+// Each sequence reserves a block of IDs at a time from a counter kept by the storage backend (a document
+// in the "Counters" collection on MongoDB), so most allocations are an in-memory increment and several
+// app instances never hand out the same ID.
+// The local mode keeps the counters in memory only (no database), for tests and offline runs.
+public class IdAllocator {
+    public static final String USERS = "users";
+    public static final String MOVIES = "movies";
+    public static final String REVIEWS = "reviews";
+
+    public static final int DEFAULT_BLOCK_SIZE = 50;
+
+    private final StorageBackend counters;
+    private final Map<String, AtomicLong> localCounters = new ConcurrentHashMap<>();
+    private final Map<String, Sequence> sequences = new ConcurrentHashMap<>();
+    private final int blockSize;
+
+    private IdAllocator(StorageBackend counters, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        this.counters = counters;
+        this.blockSize = blockSize;
+    }
+
+    public static IdAllocator forStorage(StorageBackend backend, int blockSize) {
+        return new IdAllocator(backend, blockSize);
+    }
+
+    public static IdAllocator local(int blockSize) {
+        return new IdAllocator(null, blockSize);
+    }
+
+    public boolean isLocal() {
+        return counters == null;
+    }
+
+    public String nextId(String sequenceName) {
+        return Long.toString(sequence(sequenceName).next());
+    }
+
+    // Reserves count consecutive IDs at once, outside the blocks of nextId, and returns the first
+    public long reserveRange(String sequenceName, long count) {
+        if (counters == null) {
+            return localCounters.computeIfAbsent(sequenceName, k -> new AtomicLong()).addAndGet(count) - count + 1;
+        }
+        return counters.incrementCounter(sequenceName, count) - count + 1;
+    }
+
+    // Makes sure the counter is at least maxExistingId, so IDs already present in the data are never handed out again
+    public void ensureAtLeast(String sequenceName, long maxExistingId) {
+        if (counters == null) {
+            localCounters.computeIfAbsent(sequenceName, k -> new AtomicLong()).accumulateAndGet(maxExistingId, Math::max);
+        } else {
+            counters.raiseCounter(sequenceName, maxExistingId);
+        }
+        sequence(sequenceName).discardBlockBelow(maxExistingId);
+    }
+
+    // Reserves the next block and returns the last ID in it (the new counter value)
+    private long reserveBlock(String sequenceName) {
+        if (counters == null) {
+            return localCounters.computeIfAbsent(sequenceName, k -> new AtomicLong()).addAndGet(blockSize);
+        }
+        return counters.incrementCounter(sequenceName, blockSize);
+    }
+
+    private Sequence sequence(String sequenceName) {
+        return sequences.computeIfAbsent(sequenceName, Sequence::new);
+    }
+
+    private static class Block {
+        private final AtomicLong cursor;
+        private final long end; // exclusive
+
+        private Block(long start, long end) {
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    private class Sequence {
+        private final String name;
+        private volatile Block current = new Block(0, 0);
+
+        private Sequence(String name) {
+            this.name = name;
+        }
+
+        private long next() {
+            while (true) {
+                Block block = current;
+                long id = block.cursor.getAndIncrement();
+                if (id < block.end) {
+                    return id;
+                }
+                // Block exhausted: only one thread reserves the next one, the others retry on it
+                synchronized (this) {
+                    if (current == block) {
+                        long hi = reserveBlock(name);
+                        current = new Block(hi - blockSize + 1, hi + 1);
+                    }
+                }
+            }
+        }
+
+        private synchronized void discardBlockBelow(long maxExistingId) {
+            if (current.cursor.get() <= maxExistingId) {
+                current = new Block(0, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+// The MongoDB indexes behind the application's queries, created when the database is opened. createIndex
+// does nothing for an index that already exists, so this runs on every start.
+// - movieId, userId and reviewId, unique: the key lookups of the write-behind upserts and deletes
+// - Users by username, for logins in the bounded cache mode (ReadThroughStore)
+// - Reviews by movieId (a movie's reviews) and by userId + movieId (a user's reviews, and a user's review
+//   of one movie)
+// - with delta sync, updatedAt on the synced collections for the change queries, and on Deletions with
+//   a TTL that expires old tombstones
+// verify() explains each query shape the application sends and reports the ones whose winning plan is
+// a collection scan; with -Dapp.verifyIndexes=true startup fails on any. The startup load, exports and
+// the aggregate check read whole collections on purpose and are not among the shapes.
+public class IndexManager {
+    public static final long TOMBSTONE_RETENTION_DAYS = 7;
+    static final List<String> SYNCED_COLLECTIONS = List.of("Users", "Movies", "Reviews");
+    // createIndex errors about the index itself: IndexOptionsConflict, IndexKeySpecsConflict, and
+    // DuplicateKey for a unique index over duplicated keys
+    private static final Set<Integer> INDEX_CONFLICTS = Set.of(85, 86, 11000);
+
+    private final MongoDatabase database;
+    private final boolean deltaSync;
+    // Origin used in the sample change queries
+    private final String instanceId;
+
+    private static class IndexSpec {
+        private final String collection;
+        private final Bson keys;
+        private final IndexOptions options;
+
+        private IndexSpec(String collection, Bson keys, IndexOptions options) {
+            this.collection = collection;
+            this.keys = keys;
+            this.options = options;
+        }
+    }
+
+    private static class QueryShape {
+        private final String name;
+        private final String collection;
+        private final Bson filter;
+        private final Bson sort;
+
+        private QueryShape(String name, String collection, Bson filter, Bson sort) {
+            this.name = name;
+            this.collection = collection;
+            this.filter = filter;
+            this.sort = sort;
+        }
+    }
+
+    // The winning plan of one query shape
+    public static class PlanCheck {
+        private final String shape;
+        private final String plan;
+        private final boolean collectionScan;
+
+        private PlanCheck(String shape, String plan, boolean collectionScan) {
+            this.shape = shape;
+            this.plan = plan;
+            this.collectionScan = collectionScan;
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        // Stages from the top down, with the index used, e.g. "FETCH > IXSCAN movieId_1"
+        public String getPlan() {
+            return plan;
+        }
+
+        public boolean isCollectionScan() {
+            return collectionScan;
+        }
+
+        @Override
+        public String toString() {
+            return (collectionScan ? "COLLSCAN " : "ok       ") + shape + ": " + plan;
+        }
+    }
+
+    public IndexManager(MongoStorage storage, boolean deltaSync) {
+        this.database = storage.getDatabase();
+        this.deltaSync = deltaSync;
+        this.instanceId = storage.getInstanceId();
+    }
+
+    // Creates the missing indexes; returns the number of indexes that could not be created, each reported.
+    // A unique index fails while the collection holds duplicate keys, and an index fails when one on the
+    // same keys exists with other options; the other indexes are still created. Any other error, such as
+    // an unreachable server, is thrown at the first index.
+    public int ensureIndexes() {
+        long start = Metrics.start();
+        int failed = 0;
+        for (IndexSpec index : indexes()) {
+            try {
+                database.getCollection(index.collection).createIndex(index.keys, index.options);
+            } catch (MongoCommandException e) {
+                if (!INDEX_CONFLICTS.contains(e.getErrorCode())) {
+                    throw e;
+                }
+                failed++;
+                System.err.println("Could not create index " + index.keys.toBsonDocument().toJson() + " on "
+                        + index.collection + ": " + e.getMessage());
+            }
+        }
+        Metrics.record("indexes.ensure", start);
+        return failed;
+    }
+
+    // Explains every query shape
+    public List<PlanCheck> verify() {
+        List<PlanCheck> checks = new ArrayList<>();
+        for (QueryShape shape : queryShapes()) {
+            FindIterable<Document> query = database.getCollection(shape.collection).find(shape.filter);
+            if (shape.sort != null) {
+                query.sort(shape.sort);
+            }
+            Document queryPlanner = query.explain(ExplainVerbosity.QUERY_PLANNER).get("queryPlanner", Document.class);
+            Object winningPlan = queryPlanner == null ? null : queryPlanner.get("winningPlan");
+            List<String> stages = new ArrayList<>();
+            collectStages(winningPlan, stages);
+            checks.add(new PlanCheck(shape.name, stages.isEmpty() ? "no plan" : String.join(" > ", stages),
+                    stages.contains("COLLSCAN")));
+        }
+        return checks;
+    }
+
+    // Prints the plans; throws if any shape is answered by a collection scan
+    public void verifyOrFail() {
+        List<String> scans = new ArrayList<>();
+        for (PlanCheck check : verify()) {
+            System.out.println("Query plan " + check);
+            if (check.isCollectionScan()) {
+                scans.add(check.getShape());
+            }
+        }
+        if (!scans.isEmpty()) {
+            throw new IllegalStateException("Collection scans for " + String.join(", ", scans));
+        }
+    }
+
+    private List<IndexSpec> indexes() {
+        List<IndexSpec> indexes = new ArrayList<>();
+        indexes.add(new IndexSpec("Movies", Indexes.ascending("movieId"), new IndexOptions().unique(true)));
+        indexes.add(new IndexSpec("Users", Indexes.ascending("userId"), new IndexOptions().unique(true)));
+        indexes.add(new IndexSpec("Reviews", Indexes.ascending("reviewId"), new IndexOptions().unique(true)));
+        indexes.add(new IndexSpec("Users", Indexes.ascending("username"), new IndexOptions()));
+        indexes.add(new IndexSpec("Reviews", Indexes.ascending("movieId"), new IndexOptions()));
+        indexes.add(new IndexSpec("Reviews", Indexes.ascending("userId", "movieId"), new IndexOptions()));
+        if (deltaSync) {
+            for (String collection : SYNCED_COLLECTIONS) {
+                indexes.add(new IndexSpec(collection, Indexes.ascending(MongoStorage.UPDATED_AT), new IndexOptions()));
+            }
+            indexes.add(new IndexSpec(MongoStorage.DELETIONS, Indexes.ascending(MongoStorage.UPDATED_AT),
+                    new IndexOptions().expireAfter(TOMBSTONE_RETENTION_DAYS, TimeUnit.DAYS)));
+        }
+        return indexes;
+    }
+
+    // The filters the application sends, with sample values
+    private List<QueryShape> queryShapes() {
+        List<QueryShape> shapes = new ArrayList<>();
+        shapes.add(new QueryShape("movie by movieId", "Movies", Filters.eq("movieId", "0"), null));
+        shapes.add(new QueryShape("user by userId", "Users", Filters.eq("userId", "0"), null));
+        shapes.add(new QueryShape("user by username", "Users", Filters.eq("username", ""), null));
+        shapes.add(new QueryShape("review by reviewId", "Reviews", Filters.eq("reviewId", "0"), null));
+        shapes.add(new QueryShape("reviews by movieId", "Reviews", Filters.eq("movieId", "0"), null));
+        shapes.add(new QueryShape("reviews by userId", "Reviews", Filters.eq("userId", "0"), null));
+        shapes.add(new QueryShape("review by userId and movieId", "Reviews",
+                Filters.and(Filters.eq("userId", "0"), Filters.eq("movieId", "0")), null));
+        shapes.add(new QueryShape("counter by _id", "Counters", Filters.eq("_id", IdAllocator.REVIEWS), null));
+        if (deltaSync) {
+            Bson changedSince = Filters.and(Filters.gte(MongoStorage.UPDATED_AT, new Date()),
+                    Filters.ne(MongoStorage.ORIGIN, instanceId));
+            for (String collection : SYNCED_COLLECTIONS) {
+                shapes.add(new QueryShape(collection + " changed since", collection, changedSince, null));
+            }
+            shapes.add(new QueryShape("deletions since", MongoStorage.DELETIONS, changedSince,
+                    Sorts.ascending(MongoStorage.UPDATED_AT)));
+        }
+        return shapes;
+    }
+
+    // Stage names of a plan tree, depth first, with the index name after IXSCAN-like stages. Works across
+    // server versions and sharded plans by following every nested document and list.
+    static void collectStages(Object node, List<String> stages) {
+        if (node instanceof Document) {
+            Document document = (Document) node;
+            String stage = document.getString("stage");
+            if (stage != null) {
+                String indexName = document.getString("indexName");
+                stages.add(indexName == null ? stage : stage + " " + indexName);
+            }
+            for (Object value : document.values()) {
+                collectStages(value, stages);
+            }
+        } else if (node instanceof List) {
+            for (Object value : (List<?>) node) {
+                collectStages(value, stages);
+            }
+        }
+    }
+}
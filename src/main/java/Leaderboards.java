@@ -0,0 +1,239 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Top-rated movies by Bayesian-weighted rating, overall and per genre, kept up to date as ratings and
+// genres change instead of sorted on request.
+// - a movie's score is (sum + m * C) / (count + m): its average pulled towards the prior mean C with the
+//   weight of m votes, so a few 5-star reviews do not outrank hundreds of 4.8s. Movies need at least m
+//   reviews (-Dapp.leaderboardMinVotes) to be listed.
+// - C is the mean of all ratings when the boards were last built (at startup and whenever the aggregates
+//   are rebuilt). It is not moved with every review, as that would change every movie's score.
+// - each board is a sorted set of its movies, so a change costs O(log n) on each board the movie is on
+//   (a bounded top-K heap could not tell which movie moves up when a leader drops out)
+// - the first K (-Dapp.leaderboardSize) entries of a board are cached as an immutable list, rebuilt on the
+//   first read after a change that reached them, so reads are usually one volatile read
+// The boards follow RatingAggregates and the store's movie changes through their listeners, so every path
+// that changes ratings (the service, delta sync, startup loads) keeps them in step.
+public class Leaderboards implements RatingAggregates.ChangeListener {
+    public static final int DEFAULT_SIZE = 100;
+    public static final int DEFAULT_MIN_VOTES = 10;
+    // Prior mean while there are no ratings at all
+    private static final double DEFAULT_PRIOR = (RatingAggregates.MIN_RATING + RatingAggregates.MAX_RATING) / 2.0;
+
+    // Best first; ties go to the movie with more reviews, then to the lower ID
+    private static final Comparator<Ranked> ORDER = Comparator
+            .comparingDouble((Ranked ranked) -> -ranked.score)
+            .thenComparingInt(ranked -> -ranked.count)
+            .thenComparing(ranked -> ranked.movieId, EntityStore.ID_ORDER);
+
+    private final EntityAccess store;
+    private final RatingAggregates ratingAggregates;
+    private final int size;
+    private final int minVotes;
+
+    // Guarded by this
+    private double prior = DEFAULT_PRIOR;
+    private final Map<String, Ranked> entries = new HashMap<>();
+    private final Map<String, Set<String>> genresByMovie = new HashMap<>();
+    private final Board overall = new Board();
+    // Read without the lock to find a board's cached top list
+    private final Map<String, Board> genreBoards = new ConcurrentHashMap<>();
+
+    public static class Ranked {
+        private final String movieId;
+        private final double score;
+        private final int count;
+        private final double average;
+
+        private Ranked(String movieId, double score, int count, double average) {
+            this.movieId = movieId;
+            this.score = score;
+            this.count = count;
+            this.average = average;
+        }
+
+        public String getMovieId() {
+            return movieId;
+        }
+
+        // Bayesian-weighted rating
+        public double getScore() {
+            return score;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getAverage() {
+            return average;
+        }
+    }
+
+    private static class Board {
+        private final TreeSet<Ranked> ranked = new TreeSet<>(ORDER);
+        // The first entries, or null after a change that reached them
+        private volatile List<Ranked> top;
+        // Last entry of top when it holds a full K entries; a change behind it leaves top as it is
+        private Ranked last;
+
+        private void add(Ranked entry) {
+            ranked.add(entry);
+            invalidateIfReached(entry);
+        }
+
+        private void remove(Ranked entry) {
+            ranked.remove(entry);
+            invalidateIfReached(entry);
+        }
+
+        private void invalidateIfReached(Ranked entry) {
+            if (top != null && (last == null || ORDER.compare(entry, last) <= 0)) {
+                top = null;
+            }
+        }
+    }
+
+    public static Leaderboards create(EntityAccess store, RatingAggregates ratingAggregates) {
+        return create(store, ratingAggregates, Integer.getInteger("app.leaderboardSize", DEFAULT_SIZE),
+                Integer.getInteger("app.leaderboardMinVotes", DEFAULT_MIN_VOTES));
+    }
+
+    // Boards built from the current ratings and kept up to date from then on
+    public static Leaderboards create(EntityAccess store, RatingAggregates ratingAggregates, int size, int minVotes) {
+        Leaderboards leaderboards = new Leaderboards(store, ratingAggregates, size, minVotes);
+        ratingAggregates.addChangeListener(leaderboards);
+        store.setMovieChangeListener((movie, field, oldValue, newValue) -> {
+            if (field == Movie.Field.GENRE) {
+                leaderboards.refresh(movie.getMovieId());
+            }
+        });
+        leaderboards.rebuild();
+        return leaderboards;
+    }
+
+    private Leaderboards(EntityAccess store, RatingAggregates ratingAggregates, int size, int minVotes) {
+        this.store = store;
+        this.ratingAggregates = ratingAggregates;
+        this.size = size;
+        this.minVotes = minVotes;
+    }
+
+    // The best movies, at most count and at most the board size; genre null or blank for all movies
+    public List<Ranked> top(String genre, int count) {
+        Board board = genre == null || genre.isBlank() ? overall : genreBoard(genre);
+        if (board == null || count <= 0) {
+            return Collections.emptyList();
+        }
+        List<Ranked> top = board.top;
+        if (top == null) {
+            top = materialize(board);
+        }
+        return count >= top.size() ? top : top.subList(0, count);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getMinVotes() {
+        return minVotes;
+    }
+
+    public synchronized double getPrior() {
+        return prior;
+    }
+
+    // Re-estimates the prior mean and ranks every movie again
+    public synchronized void rebuild() {
+        long count = 0;
+        long sum = 0;
+        for (RatingAggregates.MovieRating rating : ratingAggregates.getAllRatings().values()) {
+            count += rating.getCount();
+            sum += rating.getSum();
+        }
+        prior = count == 0 ? DEFAULT_PRIOR : (double) sum / count;
+        entries.clear();
+        genresByMovie.clear();
+        overall.ranked.clear();
+        overall.top = null;
+        genreBoards.clear();
+        for (String movieId : ratingAggregates.getAllRatings().keySet()) {
+            refresh(movieId);
+        }
+    }
+
+    @Override
+    public void ratingChanged(String movieId) {
+        refresh(movieId);
+    }
+
+    @Override
+    public void ratingsReplaced() {
+        rebuild();
+    }
+
+    // Re-ranks one movie from its current aggregate and genre; applying it twice is harmless, so listener
+    // calls for the same movie may arrive in any order
+    private synchronized void refresh(String movieId) {
+        Ranked old = entries.remove(movieId);
+        Set<String> oldGenres = genresByMovie.remove(movieId);
+        if (old != null) {
+            overall.remove(old);
+            for (String genre : oldGenres) {
+                Board board = genreBoards.get(genre);
+                board.remove(old);
+                if (board.ranked.isEmpty()) {
+                    genreBoards.remove(genre);
+                }
+            }
+        }
+
+        RatingAggregates.MovieRating rating = ratingAggregates.getRating(movieId);
+        if (rating == null || rating.getCount() < minVotes) {
+            return;
+        }
+        double score = (rating.getSum() + minVotes * prior) / (rating.getCount() + minVotes);
+        Ranked entry = new Ranked(movieId, score, rating.getCount(), rating.getAverage());
+        Movie movie = store.findMovieById(movieId);
+        Set<String> genres = movie == null ? Collections.emptySet() : GenreIndex.tokenize(movie.getGenre());
+        entries.put(movieId, entry);
+        genresByMovie.put(movieId, genres);
+        overall.add(entry);
+        for (String genre : genres) {
+            genreBoards.computeIfAbsent(genre, k -> new Board()).add(entry);
+        }
+    }
+
+    private synchronized List<Ranked> materialize(Board board) {
+        if (board.top != null) {
+            return board.top;
+        }
+        List<Ranked> top = new ArrayList<>(Math.min(size, board.ranked.size()));
+        Iterator<Ranked> it = board.ranked.iterator();
+        while (top.size() < size && it.hasNext()) {
+            top.add(it.next());
+        }
+        board.last = top.size() == size ? top.get(size - 1) : null;
+        board.top = Collections.unmodifiableList(top);
+        return board.top;
+    }
+
+    // Boards are keyed by the genre index's case-folded tokens; a genre already in that form skips tokenizing
+    private Board genreBoard(String genre) {
+        Board board = genreBoards.get(genre);
+        if (board != null) {
+            return board;
+        }
+        Set<String> tokens = GenreIndex.tokenize(genre);
+        return tokens.isEmpty() ? null : genreBoards.get(tokens.iterator().next());
+    }
+}
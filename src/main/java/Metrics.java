@@ -0,0 +1,140 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Application-wide latency and MongoDB command metrics.
+// Operations are timed with:  long start = Metrics.start(); ... Metrics.record("service.postReview", start);
+// Recording is on by default; -Dapp.metrics=false turns it off. ENABLED is a constant, so when it is
+// false the JIT drops the timing calls and the disabled cost is a branch on a constant.
+public final class Metrics {
+    public static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("app.metrics"));
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private static final ConcurrentMap<String, LatencyHistogram> operations = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, CommandStats> commands = new ConcurrentHashMap<>();
+
+    private static class CommandStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder documents = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+    }
+
+    private Metrics() {
+    }
+
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0L;
+    }
+
+    public static void record(String operation, long startNanos) {
+        if (ENABLED) {
+            histogram(operation).record(System.nanoTime() - startNanos);
+        }
+    }
+
+    public static void recordNanos(String operation, long nanos) {
+        if (ENABLED) {
+            histogram(operation).record(nanos);
+        }
+    }
+
+    // One MongoDB command (find, insert, update, ...) with the number of documents it returned or changed
+    public static void recordCommand(String command, long nanos, long documents, boolean failed) {
+        if (!ENABLED) {
+            return;
+        }
+        CommandStats stats = commands.get(command);
+        if (stats == null) {
+            stats = commands.computeIfAbsent(command, k -> new CommandStats());
+        }
+        stats.latency.record(nanos);
+        stats.documents.add(documents);
+        if (failed) {
+            stats.failures.increment();
+        }
+    }
+
+    private static LatencyHistogram histogram(String operation) {
+        LatencyHistogram histogram = operations.get(operation);
+        return histogram != null ? histogram : operations.computeIfAbsent(operation, k -> new LatencyHistogram());
+    }
+
+    // ---- Reports ----
+
+    // Text table for the "stats" command; times in microseconds
+    public static String summary() {
+        if (!ENABLED) {
+            return "Metrics are disabled (-Dapp.metrics=false).";
+        }
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-32s %10s %10s %10s %10s %10s%n", "Operation", "count", "p50 us", "p99 us", "p999 us", "max us"));
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(operations).entrySet()) {
+            out.append(row(entry.getKey(), entry.getValue())).append(System.lineSeparator());
+        }
+        if (!commands.isEmpty()) {
+            out.append(String.format("%n%-32s %10s %10s %10s %10s %10s %10s %8s%n", "Mongo command", "count", "p50 us",
+                    "p99 us", "p999 us", "max us", "documents", "failed"));
+            for (Map.Entry<String, CommandStats> entry : new TreeMap<>(commands).entrySet()) {
+                CommandStats stats = entry.getValue();
+                out.append(row(entry.getKey(), stats.latency))
+                        .append(String.format(" %10d %8d%n", stats.documents.sum(), stats.failures.sum()));
+            }
+        }
+        return out.toString();
+    }
+
+    private static String row(String name, LatencyHistogram histogram) {
+        return String.format("%-32s %10d %10.1f %10.1f %10.1f %10.1f", name, histogram.getCount(),
+                histogram.getPercentile(0.5) / 1000.0, histogram.getPercentile(0.99) / 1000.0,
+                histogram.getPercentile(0.999) / 1000.0, histogram.getMax() / 1000.0);
+    }
+
+    // Prometheus text exposition format (version 0.0.4)
+    public static String prometheus() {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP movie_review_operation_duration_seconds Latency of application operations.\n");
+        out.append("# TYPE movie_review_operation_duration_seconds summary\n");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(operations).entrySet()) {
+            appendSummary(out, "movie_review_operation_duration_seconds", "operation", entry.getKey(), entry.getValue());
+        }
+        out.append("# HELP movie_review_mongo_command_duration_seconds Latency of MongoDB commands.\n");
+        out.append("# TYPE movie_review_mongo_command_duration_seconds summary\n");
+        Map<String, CommandStats> sortedCommands = new TreeMap<>(commands);
+        for (Map.Entry<String, CommandStats> entry : sortedCommands.entrySet()) {
+            appendSummary(out, "movie_review_mongo_command_duration_seconds", "command", entry.getKey(), entry.getValue().latency);
+        }
+        out.append("# HELP movie_review_mongo_command_documents_total Documents returned or changed by MongoDB commands.\n");
+        out.append("# TYPE movie_review_mongo_command_documents_total counter\n");
+        for (Map.Entry<String, CommandStats> entry : sortedCommands.entrySet()) {
+            out.append("movie_review_mongo_command_documents_total{command=\"").append(escape(entry.getKey())).append("\"} ")
+                    .append(entry.getValue().documents.sum()).append('\n');
+        }
+        out.append("# HELP movie_review_mongo_command_failures_total Failed MongoDB commands.\n");
+        out.append("# TYPE movie_review_mongo_command_failures_total counter\n");
+        for (Map.Entry<String, CommandStats> entry : sortedCommands.entrySet()) {
+            out.append("movie_review_mongo_command_failures_total{command=\"").append(escape(entry.getKey())).append("\"} ")
+                    .append(entry.getValue().failures.sum()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void appendSummary(StringBuilder out, String metric, String label, String name, LatencyHistogram histogram) {
+        String labelValue = label + "=\"" + escape(name) + "\"";
+        for (double quantile : QUANTILES) {
+            out.append(metric).append('{').append(labelValue).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.getPercentile(quantile))).append('\n');
+        }
+        out.append(metric).append("_sum{").append(labelValue).append("} ").append(seconds(histogram.getSum())).append('\n');
+        out.append(metric).append("_count{").append(labelValue).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
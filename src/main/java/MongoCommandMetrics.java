@@ -0,0 +1,43 @@
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandSucceededEvent;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+// CommandListener on the MongoClient: records the latency of every command, the documents it
+// returned (cursor batches) or changed ("n" of writes), and failures, in Metrics
+public class MongoCommandMetrics implements CommandListener {
+    private static final List<String> BATCH_FIELDS = List.of("firstBatch", "nextBatch");
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+        Metrics.recordCommand(event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS),
+                documentCount(event.getResponse()), false);
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+        Metrics.recordCommand(event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS), 0, true);
+    }
+
+    private static long documentCount(BsonDocument response) {
+        if (response == null) {
+            return 0;
+        }
+        BsonValue cursor = response.get("cursor");
+        if (cursor != null && cursor.isDocument()) {
+            for (String field : BATCH_FIELDS) {
+                BsonValue batch = cursor.asDocument().get(field);
+                if (batch instanceof BsonArray) {
+                    return ((BsonArray) batch).size();
+                }
+            }
+        }
+        BsonValue n = response.get("n");
+        return n != null && n.isNumber() ? n.asNumber().longValue() : 0;
+    }
+}
@@ -5,16 +5,23 @@ import com.mongodb.client.MongoCollection;
 import org.bson.Document;
 import com.mongodb.client.MongoCursor;
 
+import java.io.Writer;
+
 public class MongoDBConnection {
     public static void main(String[] args) {
         try (MongoClient mongoClient = MongoClients.create("mongodb://localhost:27017")) {
             MongoDatabase database = mongoClient.getDatabase("MovieReviewApplication");
             MongoCollection<Document> collection = database.getCollection("Movies");
 
-            try (MongoCursor<Document> cursor = collection.find().iterator()) {
+            // One buffered writer for the whole dump instead of a flushing println per document
+            Writer out = Exporter.console();
+            try (MongoCursor<Document> cursor = collection.find().batchSize(5000).iterator()) {
                 while (cursor.hasNext()) {
-                    System.out.println(cursor.next().toJson());
+                    out.write(cursor.next().toJson());
+                    out.write('\n');
                 }
+            } finally {
+                out.flush();
             }
         } catch (Exception e) {
             System.out.println("An error occurred while fetching data.");
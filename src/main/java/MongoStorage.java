@@ -0,0 +1,227 @@
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+
+// StorageBackend on MongoDB.
+// Every written document is stamped with the time of the write (updatedAt) and the writing instance
+// (origin), and every delete leaves a tombstone in the Deletions collection, so other instances can pull
+// just the changes since their last sync (DeltaSync).
+public class MongoStorage implements StorageBackend {
+    public static final String UPDATED_AT = "updatedAt";
+    public static final String ORIGIN = "origin";
+    public static final String DELETIONS = "Deletions";
+
+    // Write error codes that can pass on their own: network errors, a primary stepping down or shutting
+    // down, time limits. Any other write error fails the same way when retried.
+    private static final Set<Integer> TRANSIENT_WRITE_ERRORS = Set.of(6, 7, 50, 89, 91, 189, 262, 9001, 10107,
+            11600, 11602, 13435, 13436);
+
+    private final MongoClient mongoClient;
+    private final MongoDatabase database;
+    private final String instanceId = UUID.randomUUID().toString();
+
+    public MongoStorage(String connectionString, String databaseName) {
+        MongoClientSettings.Builder settings = MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(connectionString));
+        if (Metrics.ENABLED) {
+            settings.addCommandListener(new MongoCommandMetrics());
+        }
+        this.mongoClient = MongoClients.create(settings.build());
+        this.database = mongoClient.getDatabase(databaseName);
+    }
+
+    public MongoDatabase getDatabase() {
+        return database;
+    }
+
+    // Origin stamped on the documents this process writes
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    @Override
+    public void scan(String collection, List<String> fields, int batchSize, Consumer<Document> consumer) {
+        try (MongoCursor<Document> cursor = database.getCollection(collection).find()
+                .projection(Projections.fields(Projections.include(fields), Projections.excludeId()))
+                .batchSize(batchSize).iterator()) {
+            while (cursor.hasNext()) {
+                consumer.accept(cursor.next());
+            }
+        }
+    }
+
+    @Override
+    public List<Document> find(String collection, String field, String value) {
+        return database.getCollection(collection).find(Filters.eq(field, value)).into(new ArrayList<>());
+    }
+
+    @Override
+    public void write(String collection, List<WriteBehindQueue.DirtyEntry> entries) {
+        Date now = new Date();
+        List<WriteModel<Document>> models = new ArrayList<>(entries.size());
+        // Index in entries -> the tombstone of that delete
+        Map<Integer, Document> tombstones = new LinkedHashMap<>();
+        for (WriteBehindQueue.DirtyEntry entry : entries) {
+            if (entry.getOperation() == WriteBehindQueue.Operation.DELETE) {
+                tombstones.put(models.size(), new Document("collection", collection)
+                        .append("keyField", entry.getKeyField()).append("key", entry.getKey())
+                        .append(UPDATED_AT, now).append(ORIGIN, instanceId));
+                models.add(new DeleteOneModel<>(Filters.eq(entry.getKeyField(), entry.getKey())));
+            } else {
+                Document document = new Document(entry.getDocument()).append(UPDATED_AT, now).append(ORIGIN, instanceId);
+                models.add(new ReplaceOneModel<>(Filters.eq(entry.getKeyField(), entry.getKey()), document,
+                        new ReplaceOptions().upsert(true)));
+            }
+        }
+        StorageWriteException failure = null;
+        try {
+            database.getCollection(collection).bulkWrite(models, new BulkWriteOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            // Unordered: every write without an error of its own went in
+            failure = partialFailure(collection, entries, e);
+            for (BulkWriteError error : e.getWriteErrors()) {
+                tombstones.remove(error.getIndex());
+            }
+        }
+        // After the deletes: a retried batch only repeats harmless tombstones
+        if (!tombstones.isEmpty()) {
+            database.getCollection(DELETIONS).insertMany(new ArrayList<>(tombstones.values()),
+                    new InsertManyOptions().ordered(false));
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static StorageWriteException partialFailure(String collection, List<WriteBehindQueue.DirtyEntry> entries,
+                                                        MongoBulkWriteException e) {
+        List<WriteBehindQueue.DirtyEntry> retryable = new ArrayList<>();
+        Map<WriteBehindQueue.DirtyEntry, String> rejected = new LinkedHashMap<>();
+        Set<Integer> failed = new HashSet<>();
+        for (BulkWriteError error : e.getWriteErrors()) {
+            failed.add(error.getIndex());
+            WriteBehindQueue.DirtyEntry entry = entries.get(error.getIndex());
+            if (TRANSIENT_WRITE_ERRORS.contains(error.getCode())
+                    || ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.EXECUTION_TIMEOUT) {
+                retryable.add(entry);
+            } else {
+                rejected.put(entry, error.getMessage());
+            }
+        }
+        // The writes were applied but may not be replicated as asked; writing them again is harmless
+        if (e.getWriteConcernError() != null) {
+            for (int i = 0; i < entries.size(); i++) {
+                if (!failed.contains(i)) {
+                    retryable.add(entries.get(i));
+                }
+            }
+        }
+        return new StorageWriteException("Writing " + collection + ": " + retryable.size() + " to retry, "
+                + rejected.size() + " rejected", retryable, rejected);
+    }
+
+    @Override
+    public void insert(String collection, String keyField, List<Document> documents) {
+        Date now = new Date();
+        List<Document> stamped = new ArrayList<>(documents.size());
+        for (Document document : documents) {
+            stamped.add(new Document(document).append(UPDATED_AT, now).append(ORIGIN, instanceId));
+        }
+        try {
+            database.getCollection(collection).insertMany(stamped, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            // A key already stored was written by an earlier attempt at the same batch; the rest went in
+            if (e.getWriteConcernError() != null || !e.getWriteErrors().stream()
+                    .allMatch(error -> ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY)) {
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public long incrementCounter(String name, long count) {
+        Document counter = database.getCollection("Counters").findOneAndUpdate(Filters.eq("_id", name),
+                Updates.inc("value", count),
+                new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+        return ((Number) counter.get("value")).longValue();
+    }
+
+    @Override
+    public void raiseCounter(String name, long value) {
+        database.getCollection("Counters").updateOne(Filters.eq("_id", name), Updates.max("value", value),
+                new UpdateOptions().upsert(true));
+    }
+
+    @Override
+    public long maxId(String collection, String keyField) {
+        Document asLong = new Document("$convert", new Document("input", "$" + keyField).append("to", "long")
+                .append("onError", 0L).append("onNull", 0L));
+        List<Document> pipeline = List.of(new Document("$group",
+                new Document("_id", null).append("max", new Document("$max", asLong))));
+        Document result = database.getCollection(collection).aggregate(pipeline).first();
+        return result == null ? 0 : ((Number) result.get("max")).longValue();
+    }
+
+    @Override
+    public Map<String, long[]> ratingTotals() {
+        Document group = new Document("_id", "$movieId")
+                .append("count", new Document("$sum", 1))
+                .append("sum", new Document("$sum", "$rating"));
+        for (int rating = RatingAggregates.MIN_RATING; rating <= RatingAggregates.MAX_RATING; rating++) {
+            group.append("r" + rating, new Document("$sum",
+                    new Document("$cond", List.of(new Document("$eq", List.of("$rating", rating)), 1, 0))));
+        }
+        List<Document> pipeline = List.of(new Document("$group", group));
+        Map<String, long[]> totals = new HashMap<>();
+        for (Document movieData : database.getCollection("Reviews").aggregate(pipeline)) {
+            long[] total = new long[2 + RatingAggregates.MAX_RATING - RatingAggregates.MIN_RATING + 1];
+            total[0] = ((Number) movieData.get("count")).longValue();
+            total[1] = ((Number) movieData.get("sum")).longValue();
+            for (int rating = RatingAggregates.MIN_RATING; rating <= RatingAggregates.MAX_RATING; rating++) {
+                total[2 + rating - RatingAggregates.MIN_RATING] = ((Number) movieData.get("r" + rating)).longValue();
+            }
+            totals.put(movieData.getString("_id"), total);
+        }
+        return totals;
+    }
+
+    @Override
+    public String describe() {
+        return "MongoDB database " + database.getName();
+    }
+
+    @Override
+    public void close() {
+        mongoClient.close();
+    }
+}
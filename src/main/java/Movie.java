@@ -1,11 +1,32 @@
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
 import java.util.UUID;
 
 public class Movie {
     private String movieId;
     private String title;
     private String description;
+    // Once the movie is stored the description is kept off the heap and only its handle is held here
+    private TextSegment descriptionSegment;
+    private long descriptionHandle;
+    private int descriptionLength = NULL_TEXT;
     private String releaseDate;
     private String genre;
+    // Release date parsed once into days since 1970-01-01, or UNKNOWN_RELEASE_DAY if it could not be parsed
+    private long releaseEpochDay;
+
+    public static final long UNKNOWN_RELEASE_DAY = Long.MIN_VALUE;
+    private static final int NULL_TEXT = -1;
+
+    public enum Field { TITLE, DESCRIPTION, RELEASE_DATE, GENRE }
+
+    // Notified by the setters so indexes built over movie fields can follow changes
+    public interface ChangeListener {
+        void movieChanged(Movie movie, Field field, String oldValue, String newValue);
+    }
+
+    private ChangeListener changeListener;
 
     public Movie(String movieId, String title, String description, String releaseDate, String genre) {
         this.movieId = movieId;
@@ -13,6 +34,7 @@ public class Movie {
         this.description = description;
         this.genre = genre;
         this.releaseDate= releaseDate;
+        this.releaseEpochDay = parseReleaseEpochDay(releaseDate);
     }
 
     public String getTitle() {
@@ -23,8 +45,12 @@ public class Movie {
         return genre;
     }
 
-    public String getDescription() {
-        return description;
+    // Synchronized so the handle and length are read as a pair
+    public synchronized String getDescription() {
+        if (descriptionSegment == null) {
+            return description;
+        }
+        return descriptionLength == NULL_TEXT ? null : descriptionSegment.read(descriptionHandle, descriptionLength);
     }
 
     public String getMovieId() {
@@ -35,27 +61,102 @@ public class Movie {
         return releaseDate;
     }
 
+    public long getReleaseEpochDay() {
+        return releaseEpochDay;
+    }
+
     public void setDescription(String description) {
-        this.description = description;
+        String oldDescription;
+        synchronized (this) {
+            oldDescription = getDescription();
+            if (descriptionSegment == null) {
+                this.description = description;
+            } else {
+                if (descriptionLength > 0) {
+                    descriptionSegment.release(descriptionLength);
+                }
+                storeDescription(description);
+            }
+        }
+        // Outside the lock: listeners read the movie while holding their own locks
+        fireChanged(Field.DESCRIPTION, oldDescription, description);
+    }
+
+    // Moves the description into segment; from then on getDescription() decodes it on every call
+    public synchronized void moveDescriptionTo(TextSegment segment) {
+        if (segment == descriptionSegment) {
+            return;
+        }
+        String current = getDescription();
+        descriptionSegment = segment;
+        storeDescription(current);
+        description = null;
+    }
+
+    private void storeDescription(String text) {
+        if (text == null) {
+            descriptionLength = NULL_TEXT;
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        descriptionHandle = descriptionSegment.append(bytes);
+        descriptionLength = bytes.length;
     }
 
     public void setGenre(String genre) {
+        String oldGenre = this.genre;
         this.genre = genre;
+        fireChanged(Field.GENRE, oldGenre, genre);
     }
 
     public void setReleaseDate(String releaseDate) {
+        String oldReleaseDate = this.releaseDate;
         this.releaseDate = releaseDate;
+        this.releaseEpochDay = parseReleaseEpochDay(releaseDate);
+        fireChanged(Field.RELEASE_DATE, oldReleaseDate, releaseDate);
     }
 
     public void setTitle(String title) {
+        String oldTitle = this.title;
         this.title = title;
+        fireChanged(Field.TITLE, oldTitle, title);
+    }
+
+    public void setChangeListener(ChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    private void fireChanged(Field field, String oldValue, String newValue) {
+        if (changeListener != null) {
+            changeListener.movieChanged(this, field, oldValue, newValue);
+        }
+    }
+
+    // Accepts "yyyy", "yyyy-MM" and "yyyy-MM-dd" (also with '/' or '.' separators); a missing month or day
+    // counts as the first one. Anything else gives UNKNOWN_RELEASE_DAY.
+    public static long parseReleaseEpochDay(String releaseDate) {
+        if (releaseDate == null) {
+            return UNKNOWN_RELEASE_DAY;
+        }
+        String[] parts = releaseDate.trim().split("[-/.]");
+        if (parts.length > 3 || parts[0].length() != 4) {
+            return UNKNOWN_RELEASE_DAY;
+        }
+        try {
+            int year = Integer.parseInt(parts[0]);
+            int month = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+            int day = parts.length > 2 ? Integer.parseInt(parts[2]) : 1;
+            return LocalDate.of(year, month, day).toEpochDay();
+        } catch (NumberFormatException | DateTimeException e) {
+            return UNKNOWN_RELEASE_DAY;
+        }
     }
 
     @Override
     public String toString() {
         return "Movie{" +
                 "title='" + title + '\'' +
-                ", description='" + description + '\'' +
+                ", description='" + getDescription() + '\'' +
                 ", releaseDate='" + releaseDate + '\'' +
                 ", genre='" + genre + '\'' +
                 '}';
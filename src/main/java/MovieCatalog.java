@@ -0,0 +1,130 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// The stored movies with their indexes, shared by EntityStore and ReadThroughStore, which both keep
+// every movie in memory.
+// - primary-key index, and the movies in ID order for listings and "select a movie by number" menus
+// - genre, release date and full-text indexes, kept up to date through Movie.ChangeListener. The
+//   full-text index is the owner's: EntityStore also indexes review comments in it.
+// - descriptions are kept off the heap in a compressed TextSegment
+public class MovieCatalog {
+    private static final long MIN_DESCRIPTION_GARBAGE = 1 << 20;
+
+    private final ConcurrentMap<String, Movie> moviesById = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<String, Movie> moviesInOrder = new ConcurrentSkipListMap<>(EntityStore.ID_ORDER);
+    // Descriptions of stored movies; replaced by a compacted copy when edits have left it mostly garbage.
+    // Movies move into it under descriptionsLock.
+    private TextSegment movieDescriptions = TextSegment.create("descriptions");
+    private final Object descriptionsLock = new Object();
+
+    private final GenreIndex genreIndex = new GenreIndex();
+    private final ReleaseDateIndex releaseDateIndex = new ReleaseDateIndex();
+    private final FullTextIndex fullTextIndex;
+    // Told about movie changes after the indexes above, for structures outside the store
+    private volatile Movie.ChangeListener movieChangeListener;
+
+    public MovieCatalog(FullTextIndex fullTextIndex) {
+        this.fullTextIndex = fullTextIndex;
+    }
+
+    public boolean addMovie(Movie movie) {
+        if (moviesById.putIfAbsent(movie.getMovieId(), movie) != null) {
+            return false;
+        }
+        synchronized (descriptionsLock) {
+            movie.moveDescriptionTo(movieDescriptions);
+        }
+        moviesInOrder.put(movie.getMovieId(), movie);
+        genreIndex.add(movie);
+        releaseDateIndex.add(movie);
+        fullTextIndex.indexMovie(movie);
+        movie.setChangeListener(this::onMovieChanged);
+        return true;
+    }
+
+    // Only for taking back the movies of a bulk import batch that could not be written; the application
+    // itself never deletes movies
+    public Movie removeMovie(String movieId) {
+        Movie movie = moviesById.remove(movieId);
+        if (movie != null) {
+            movie.setChangeListener(null);
+            moviesInOrder.remove(movieId, movie);
+            genreIndex.remove(movie);
+            releaseDateIndex.remove(movie, movie.getReleaseEpochDay());
+            fullTextIndex.removeMovie(movieId);
+        }
+        return movie;
+    }
+
+    private void onMovieChanged(Movie movie, Movie.Field field, String oldValue, String newValue) {
+        if (field == Movie.Field.GENRE) {
+            genreIndex.updateGenre(movie, oldValue, newValue);
+        } else if (field == Movie.Field.RELEASE_DATE) {
+            releaseDateIndex.update(movie, Movie.parseReleaseEpochDay(oldValue));
+        } else if (field == Movie.Field.TITLE || field == Movie.Field.DESCRIPTION) {
+            fullTextIndex.indexMovie(movie);
+            if (field == Movie.Field.DESCRIPTION) {
+                compactDescriptionsIfWasteful();
+            }
+        }
+        Movie.ChangeListener listener = movieChangeListener;
+        if (listener != null) {
+            listener.movieChanged(movie, field, oldValue, newValue);
+        }
+    }
+
+    // Like ReviewColumns with its comments: once replaced descriptions are the larger part of the segment,
+    // the stored movies' descriptions are copied into a fresh one
+    private void compactDescriptionsIfWasteful() {
+        synchronized (descriptionsLock) {
+            long garbage = movieDescriptions.garbageBytes();
+            if (garbage < MIN_DESCRIPTION_GARBAGE || garbage < movieDescriptions.liveBytes()) {
+                return;
+            }
+            TextSegment compacted = TextSegment.create("descriptions");
+            for (Movie movie : moviesById.values()) {
+                movie.moveDescriptionTo(compacted);
+            }
+            movieDescriptions.close();
+            movieDescriptions = compacted;
+        }
+    }
+
+    public void setMovieChangeListener(Movie.ChangeListener movieChangeListener) {
+        this.movieChangeListener = movieChangeListener;
+    }
+
+    public GenreIndex getGenreIndex() {
+        return genreIndex;
+    }
+
+    public ReleaseDateIndex getReleaseDateIndex() {
+        return releaseDateIndex;
+    }
+
+    public FullTextIndex getFullTextIndex() {
+        return fullTextIndex;
+    }
+
+    public Movie findMovieById(String movieId) {
+        return movieId == null ? null : moviesById.get(movieId);
+    }
+
+    public Collection<Movie> getMovies() {
+        return Collections.unmodifiableCollection(moviesInOrder.values());
+    }
+
+    // Snapshot of the movies in listing order, used by the menus that select a movie by number
+    public List<Movie> getMovieList() {
+        return new ArrayList<>(moviesInOrder.values());
+    }
+
+    public int movieCount() {
+        return moviesById.size();
+    }
+}
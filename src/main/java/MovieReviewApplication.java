@@ -1,166 +1,237 @@
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
 
-import com.mongodb.client.*;
-import com.mongodb.client.model.Filters;
-import com.mongodb.client.model.UpdateOptions;
 import org.bson.Document;
 
 public class MovieReviewApplication {
-    private static List<Movie> movies = new ArrayList<>();
-    private static List<Review> reviews = new ArrayList<>();
-    private static List<User> users = new ArrayList<>();
+    // The store the menus and the service work with: memoryStore, or readThroughStore in the bounded cache mode
+    private static EntityAccess store;
+    // Everything in memory; null in the bounded cache mode
+    private static EntityStore memoryStore = new EntityStore();
+    private static RatingAggregates ratingAggregates = new RatingAggregates();
+    private static IdAllocator idAllocator;
+    private static WriteBehindQueue writeBehind;
+    private static MovieReviewService service;
     private static Scanner scanner = new Scanner(System.in);
-    private static User currentUser = null;
-    private static MongoClient mongoClient;
-    private static MongoDatabase database;
+    private static Session session = new Session();
+    private static StorageBackend backend;
+    private static DeltaSync deltaSync;
+    // Set in the bounded cache mode, where users and reviews are read on demand instead of loaded
+    private static ReadThroughStore readThroughStore;
+
+    private static final int WRITE_BATCH_SIZE = 1000;
+    private static final long WRITE_DELAY_MILLIS = 500;
+    private static final int DEFAULT_PAGE_SIZE = 10;
+    private static final int SEARCH_RESULT_LIMIT = 10;
+    private static final int TOP_RATED_COUNT = 20;
+    private static final int RECOMMENDATION_COUNT = 10;
+    private static final int TRENDING_COUNT = 10;
+    private static final int DEFAULT_SERVER_PORT = 8080;
+    // Metric names of the menu options, by choice number; menu timings include the time spent typing input
+    private static final String[] LOGIN_MENU_OPERATIONS = {null, "menu.register", "menu.login", null, "menu.viewUsers",
+            "menu.removeUser", "menu.userDetails", "menu.movieDetails", "menu.reviewDetails", "menu.checkRatings",
+            null, null, null, "menu.import", "menu.export", null};
+    private static final String[] MAIN_MENU_OPERATIONS = {null, "menu.addMovie", "menu.postReview", "menu.listMovies",
+            "menu.logout", "menu.updateReview", "menu.removeReview", "menu.averageRatings", "menu.reviewsForMovie",
+            "menu.searchGenre", "menu.searchYear", "menu.newestMovies", "menu.searchText", null, "menu.topRated",
+            "menu.recommend", "menu.trending"};
 
     public static void main(String[] args) {
+        // "--server [port]" serves the HTTP API instead of the interactive menu;
+        // "--import <file>..." bulk imports CSV or JSON Lines files and exits;
+        // "--export <movies|users|reviews> <file> [filter]" streams a collection from the database to a file and exits
+        boolean serverMode = args.length > 0 && args[0].equals("--server");
+        boolean importMode = args.length > 0 && args[0].equals("--import");
+        boolean exportMode = args.length > 0 && args[0].equals("--export");
+        int port = serverMode && args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SERVER_PORT;
+
         initializeDatabase();
+        if (exportMode) {
+            // Nothing is loaded: the export streams from the database
+            if (args.length < 3) {
+                System.err.println("Usage: --export <movies|users|reviews> <file> [filter]");
+                System.exit(1);
+            }
+            boolean exported = exportCollection(args[1], args[2], args.length > 3 ? args[3] : null, true);
+            backend.close();
+            System.exit(exported ? 0 : 1);
+        }
         System.out.println("App version: v1.9");
         System.out.println("Loading Mongo Dependency");
         System.out.println("Initializing connection to Mongo v4.4.0");
-        System.out.println("Syncing data with MongoDB");
+        System.out.println("Syncing data with " + backend.describe());
         loadDataFromDatabase();
+        // The recommender builds from every rating in memory, which the bounded cache mode does not keep
+        if (memoryStore != null) {
+            service = new MovieReviewService(memoryStore, ratingAggregates, idAllocator, writeBehind);
+            service.getRecommender().start();
+        } else {
+            service = new MovieReviewService(store, ratingAggregates, idAllocator, writeBehind);
+        }
+        if (deltaSync != null) {
+            deltaSync.start(service, memoryStore);
+        }
         System.out.println("Sync complete\n");
-//        registerShutdownHook();
+        writeBehind.start();
+        registerShutdownHook();
 //        addTestData(); // Add some test data (movies and reviews)
-        registerOrLogin();
-        displayMenu();
+
+        if (importMode) {
+            if (readThroughStore != null) {
+                System.err.println("--import needs the full in-memory store; run it without -Dapp.cache=bounded");
+                System.exit(1);
+            }
+            for (int i = 1; i < args.length; i++) {
+                importFile(Path.of(args[i]));
+            }
+            System.exit(0);
+        }
+        if (serverMode) {
+            startServer(port);
+            return;
+        }
+
+        while (true) {
+            registerOrLogin();
+            displayMenu();
+        }
+    }
+
+    private static void startServer(int port) {
+        try {
+            ApiServer server = new ApiServer(service, port);
+            server.start();
+            System.out.println("HTTP API listening on port " + server.getPort());
+        } catch (IOException e) {
+            System.err.println("Error starting HTTP server: " + e.getMessage());
+            System.exit(1);
+        }
     }
 
     private static void registerShutdownHook() {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            // Store any modified or new data back to the database
-            // Iterate through the users list and update the users collection
-            MongoCollection<Document> usersCollection = database.getCollection("Users");
-            for (User user : users) {
-                if (!documentExists(usersCollection, "userId", user.getUserId())) {
-                    Document doc = new Document("username", user.getUsername())
-                            .append("password", user.getPassword())
-                            .append("email", user.getEmail())
-                            .append("userId", user.getUserId()); // Updated field name to "userId"
-                    usersCollection.insertOne(doc);
-                }
-            }
-
-            // Iterate through the movies list and update the movies collection
-            MongoCollection<Document> moviesCollection = database.getCollection("Movies");
-            for (Movie movie : movies) {
-                if (!documentExists(moviesCollection, "movieId", movie.getMovieId())) {
-                    Document doc = new Document("title", movie.getTitle())
-                            .append("description", movie.getDescription())
-                            .append("releaseDate", movie.getReleaseDate())
-                            .append("genre", movie.getGenre())
-                            .append("movieId", movie.getMovieId());
-                    moviesCollection.insertOne(doc);
-                }
+            // Changes are saved continuously by the write-behind queue; only the remainder is written here
+            writeBehind.shutdown();
+            if (service.getRecommender() != null) {
+                service.getRecommender().close();
             }
 
-            // Iterate through the reviews list and update the reviews collection
-            MongoCollection<Document> reviewsCollection = database.getCollection("Reviews");
-            for (Review review : reviews) {
-                Document reviewDoc = new Document("reviewId", review.getReviewId()) // Include reviewId in the document
-                        .append("userId", review.getUserId())
-                        .append("movieId", review.getMovieId())
-                        .append("rating", review.getRating())
-                        .append("comments", review.getComments());
-                reviewsCollection.updateOne(
-                        Filters.eq("reviewId", review.getReviewId()), // Use reviewId for filtering
-                        new Document("$set", reviewDoc),
-                        new UpdateOptions().upsert(true)
-                );
+            // Stop following other instances' changes and snapshot the data for a warm start next time
+            if (deltaSync != null) {
+                deltaSync.close();
+                deltaSync.saveSnapshot();
             }
 
-            // Close the database connection
-            if (mongoClient != null) {
-                mongoClient.close();
+            // Close the database connection (the embedded engine also writes a fresh snapshot)
+            if (backend != null) {
+                backend.close();
             }
         }));
     }
 
-    private static boolean documentExists(MongoCollection<Document> collection, String fieldName, String value) {
-        Document query = new Document(fieldName, value);
-        return collection.countDocuments(query) > 0;
-    }
-
     private static void loadDataFromDatabase() {
-        // Load movies
-        MongoCollection<Document> moviesCollection = database.getCollection("Movies");
-        try (MongoCursor<Document> cursor = moviesCollection.find().iterator()) {
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                Movie movie = new Movie(doc.getString("movieId"), doc.getString("title"), doc.getString("description"),
-                        doc.getString("releaseDate"), doc.getString("genre"));
-                movies.add(movie);
-            }
+        // In the bounded cache mode only the movies are loaded, and the database sums up the ratings and
+        // finds the highest user and review IDs
+        if (readThroughStore != null) {
+            StartupLoader loader = new StartupLoader(backend, StartupLoader.DEFAULT_BATCH_SIZE);
+            loader.loadMovies(store);
+            ratingAggregates.rebuild(backend.ratingTotals());
+            ensureIdsAbove(loader.getMaxMovieId(), backend.maxId("Users", "userId"),
+                    backend.maxId("Reviews", "reviewId"));
+            return;
         }
-
-        // Load users
-        MongoCollection<Document> usersCollection = database.getCollection("Users");
-        try (MongoCursor<Document> cursor = usersCollection.find().iterator()) {
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                String userId = doc.getString("userId");
-                User user = new User(userId, doc.getString("username"), doc.getString("password"),
-                        doc.getString("email"));
-                users.add(user);
-            }
+        // In delta sync mode a warm start from the last snapshot replaces the full load, when there is a usable one
+        StoreSnapshot snapshot = deltaSync == null ? null : deltaSync.loadSnapshot(memoryStore, ratingAggregates);
+        if (snapshot != null) {
+            ensureIdsAbove(snapshot.getMaxMovieId(), snapshot.getMaxUserId(), snapshot.getMaxReviewId());
+            return;
         }
+        StartupLoader loader = new StartupLoader(backend, StartupLoader.DEFAULT_BATCH_SIZE);
+        loader.load(memoryStore, ratingAggregates);
+        ensureIdsAbove(loader.getMaxMovieId(), loader.getMaxUserId(), loader.getMaxReviewId());
+    }
 
-        // Load reviews
-        MongoCollection<Document> reviewsCollection = database.getCollection("Reviews");
-        try (MongoCursor<Document> cursor = reviewsCollection.find().iterator()) {
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                // Fetch user and movie references
-                String userId = doc.getString("userId");
-                User user = findUserById(userId);
-                String movieId = doc.getString("movieId");
-                Movie movie = findMovieById(movieId);
-                String reviewId = doc.getString("reviewId");
-                if (user != null && movie != null) {
-                    // Construct the review with userId and movieId strings
-                    Review review = new Review(reviewId, userId, movieId, doc.getInteger("rating"), doc.getString("comments"));
-                    reviews.add(review);
-                }
-            }
-        }
+    // Keep the ID counters ahead of every ID already in the database
+    private static void ensureIdsAbove(long maxMovieId, long maxUserId, long maxReviewId) {
+        idAllocator.ensureAtLeast(IdAllocator.MOVIES, maxMovieId);
+        idAllocator.ensureAtLeast(IdAllocator.USERS, maxUserId);
+        idAllocator.ensureAtLeast(IdAllocator.REVIEWS, maxReviewId);
     }
 
     private static User findUserById(String userId) {
-        for (User user : users) {
-            if (user.getUserId().equals(userId)) {
-                return user;
-            }
-        }
-        return null;
+        return store.findUserById(userId);
     }
 
     private static Movie findMovieById(String movieId) {
-        for (Movie movie : movies) {
-            if (movie.getMovieId().equals(movieId)) {
-                return movie;
-            }
-        }
-        return null;
+        return store.findMovieById(movieId);
     }
 
-    private static Review findReviewById(String movieId) {
-        for (Review review : reviews) {
-            if (review.getMovieId().equals(movieId)) {
-                return review;
-            }
-        }
-        return null;
+    private static Review findReviewById(String reviewId) {
+        return store.findReviewById(reviewId);
     }
 
 
     private static void initializeDatabase() {
         try {
-            mongoClient = MongoClients.create("mongodb://localhost:27017");
-            database = mongoClient.getDatabase("MovieReviewApplication");
+            // -Dapp.storage=embedded keeps the data in local files (-Dapp.dataDir, default "data") instead of MongoDB
+            if ("embedded".equalsIgnoreCase(System.getProperty("app.storage"))) {
+                backend = EmbeddedStorage.open(Path.of(System.getProperty("app.dataDir", "data")));
+            } else {
+                backend = new MongoStorage("mongodb://localhost:27017", "MovieReviewApplication");
+            }
+            // -Dapp.cache=bounded keeps only the movies in memory and reads users and reviews through a cache
+            // of -Dapp.cacheMegabytes, for data sets larger than the heap
+            boolean boundedCache = "bounded".equalsIgnoreCase(System.getProperty("app.cache"));
+            if (boundedCache && !(backend instanceof MongoStorage)) {
+                System.err.println("-Dapp.cache=bounded needs MongoDB storage; ignored");
+                boundedCache = false;
+            }
+            // -Dapp.ids=local keeps ID counters in memory instead of the Counters collection; not with the bounded
+            // cache, where the existing user and review IDs are not loaded to start the counters from
+            boolean localIds = "local".equalsIgnoreCase(System.getProperty("app.ids"));
+            if (localIds && boundedCache) {
+                System.err.println("-Dapp.ids=local needs the full in-memory store; ignored with -Dapp.cache=bounded");
+            } else if (localIds) {
+                idAllocator = IdAllocator.local(IdAllocator.DEFAULT_BLOCK_SIZE);
+            } else {
+                idAllocator = IdAllocator.forStorage(backend, IdAllocator.DEFAULT_BLOCK_SIZE);
+            }
+            writeBehind = new WriteBehindQueue(backend, WRITE_BATCH_SIZE, WRITE_DELAY_MILLIS);
+            if (boundedCache) {
+                long megabytes = Long.getLong("app.cacheMegabytes", ReadThroughStore.DEFAULT_CACHE_MEGABYTES);
+                readThroughStore = new ReadThroughStore(backend, writeBehind, megabytes << 20);
+                store = readThroughStore;
+                memoryStore = null;
+            } else {
+                store = memoryStore;
+            }
+            // -Dapp.sync=delta starts from a local snapshot plus the changes since it was written, and follows
+            // changes made by other instances (-Dapp.syncIntervalSeconds between polls when the server has no
+            // change streams, -Dapp.snapshotMinutes between snapshots)
+            if ("delta".equalsIgnoreCase(System.getProperty("app.sync"))) {
+                if (readThroughStore != null) {
+                    System.err.println("-Dapp.sync=delta needs the full in-memory store; ignored with -Dapp.cache=bounded");
+                } else if (backend instanceof MongoStorage) {
+                    int interval = Integer.getInteger("app.syncIntervalSeconds", DeltaSync.DEFAULT_INTERVAL_SECONDS);
+                    int snapshotMinutes = Integer.getInteger("app.snapshotMinutes", DeltaSync.DEFAULT_SNAPSHOT_MINUTES);
+                    deltaSync = new DeltaSync((MongoStorage) backend,
+                            Path.of(System.getProperty("app.dataDir", "data"), "warm-start.snapshot"), interval, snapshotMinutes);
+                } else {
+                    System.err.println("-Dapp.sync=delta needs MongoDB storage; ignored");
+                }
+            }
+            // Indexes for every query the application sends; -Dapp.verifyIndexes=true also explains each query
+            // and stops here if one scans a whole collection
+            if (backend instanceof MongoStorage) {
+                IndexManager indexes = new IndexManager((MongoStorage) backend, deltaSync != null);
+                indexes.ensureIndexes();
+                if (Boolean.getBoolean("app.verifyIndexes")) {
+                    indexes.verifyOrFail();
+                }
+            }
         } catch (Exception e) {
             System.err.println("Error initializing database: " + e.getMessage());
             System.exit(1);
@@ -169,7 +240,14 @@ public class MovieReviewApplication {
 
     private static void viewAllUsers() {
         System.out.println("All Users:");
-        for (User user : users) {
+        if (readThroughStore != null) {
+            // Saved users only; the ones still waiting in the write-behind queue show up once written
+            backend.scan("Users", List.of("username", "email"), StartupLoader.DEFAULT_BATCH_SIZE,
+                    document -> System.out.println("Username: " + document.getString("username")
+                    + ", Email: " + document.getString("email")));
+            return;
+        }
+        for (User user : memoryStore.getUsers()) {
             System.out.println("Username: " + user.getUsername() + ", Email: " + user.getEmail());
         }
     }
@@ -179,16 +257,10 @@ public class MovieReviewApplication {
         System.out.print("Enter the username of the user you want to remove: ");
         String usernameToRemove = scanner.nextLine();
 
-        boolean userFound = false;
-        for (User user : users) {
-            if (user.getUsername().equals(usernameToRemove)) {
-                users.remove(user);
-                System.out.println("User '" + usernameToRemove + "' removed successfully.");
-                userFound = true;
-                break;
-            }
-        }
-        if (!userFound) {
+        User removedUser = service.removeUser(usernameToRemove);
+        if (removedUser != null) {
+            System.out.println("User '" + usernameToRemove + "' removed successfully.");
+        } else {
             System.out.println("User not found.");
         }
     }
@@ -206,19 +278,20 @@ public class MovieReviewApplication {
             int choice = scanner.nextInt();
             scanner.nextLine(); // Consume newline character
 
+            long start = Metrics.start();
             switch (choice) {
                 case 1:
                     registerUser();
                     break;
                 case 2:
                     login();
-                    if (currentUser != null) {
+                    if (session.isLoggedIn()) {
+                        recordMenuOperation(LOGIN_MENU_OPERATIONS, choice, start);
                         return;
                     }
                     break;
                 case 3:
                     System.out.println("Saving Data...");
-                    registerShutdownHook();
                     System.out.println("exiting...");
                     System.exit(0);
                 case 4:
@@ -238,9 +311,41 @@ public class MovieReviewApplication {
                 case 8:
                     getAllReviewDetails();
                     break;
+
+                case 9:
+                    checkRatingAggregates();
+                    break;
+
+                case 10:
+                    System.out.println(writeBehind.metricsSummary());
+                    break;
+                case 11:
+                    System.out.println(Metrics.summary());
+                    break;
+                case 12:
+                    System.out.print(Metrics.prometheus());
+                    break;
+                case 13:
+                    System.out.print("Enter the path of a CSV or JSON Lines file: ");
+                    importFile(Path.of(scanner.nextLine().trim()));
+                    break;
+                case 14:
+                    exportFromMenu();
+                    break;
+                case 15:
+                    System.out.println(readThroughStore == null ? "The bounded cache is off (-Dapp.cache=bounded)."
+                            : readThroughStore.cacheStats().toString());
+                    break;
                 default:
                     System.out.println("Invalid choice. Please try again.");
             }
+            recordMenuOperation(LOGIN_MENU_OPERATIONS, choice, start);
+        }
+    }
+
+    private static void recordMenuOperation(String[] operations, int choice, long start) {
+        if (choice > 0 && choice < operations.length && operations[choice] != null) {
+            Metrics.record(operations[choice], start);
         }
     }
 
@@ -257,29 +362,20 @@ public class MovieReviewApplication {
         System.out.print("Enter Email: ");
         String email = scanner.nextLine();
 
-        int maxUserId = 0;
-        for (User user : users) {
-            int userIdInt = Integer.parseInt(user.getUserId());
-            if (userIdInt > maxUserId) {
-                maxUserId = userIdInt;
+        try {
+            if (service.registerUser(username, password, email) == null) {
+                System.out.println("Username already taken. Please choose another one.");
+                return;
             }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
         }
-
-        // Assign new user ID by incrementing the maximum user ID found
-        int newUserId = maxUserId + 1;
-
-        User newUser = new User(Integer.toString(newUserId), username, password, email);
-        users.add(newUser);
         System.out.println("Registration successful. You can now log in.");
     }
 
     private static boolean isUsernameTaken(String username) {
-        for (User user : users) {
-            if (user.getUsername().equals(username)) {
-                return true;
-            }
-        }
-        return false;
+        return service.isUsernameTaken(username);
     }
 
     private static void login() {
@@ -289,21 +385,21 @@ public class MovieReviewApplication {
         System.out.print("Enter Password: ");
         String password = scanner.nextLine();
 
-        for (User user : users) {
-            if (user.getUsername().equals(username) && user.getPassword().equals(password)) {
-                currentUser = user;
-                System.out.println("Login successful. Welcome, " + currentUser.getUsername() + "!");
-                return;
-            }
+        User user = service.login(session, username, password);
+        if (user != null) {
+            System.out.println("Login successful. Welcome, " + user.getUsername() + "!");
+            return;
         }
         System.out.println("Login failed. Please check your username and password.");
     }
     // Method to display the main menu
     private static void displayMenu() {
-        if (currentUser == null) {
-            return;
+        while (session.isLoggedIn()) {
+            showMainMenu();
         }
+    }
 
+    private static void showMainMenu() {
         System.out.println("\nMain Menu");
         System.out.println("1. Add a Movie");
         System.out.println("2. Post a Review");
@@ -315,10 +411,17 @@ public class MovieReviewApplication {
         System.out.println("8. find reviews for a selected movie ");
         System.out.println("9. find movie by genre");
         System.out.println("10. find movie by year");
+        System.out.println("11. newest movies");
+        System.out.println("12. search movies and reviews");
+        System.out.println("13. stats");
+        System.out.println("14. top rated movies");
+        System.out.println("15. recommendations for me");
+        System.out.println("16. trending now");
         System.out.print("Enter your choice: ");
         int choice = scanner.nextInt();
         scanner.nextLine(); // Consume newline character
 
+        long start = Metrics.start();
         switch (choice) {
             case 1:
                 addMovie();
@@ -330,8 +433,7 @@ public class MovieReviewApplication {
                 listMoviesWithReviews();
                 break;
             case 4:
-                currentUser = null;
-                registerOrLogin();
+                service.logout(session);
                 break;
             case 5:
                 updateReview();
@@ -351,11 +453,28 @@ public class MovieReviewApplication {
             case 10:
                 searchMoviesByReleaseYear();
                 break;
+            case 11:
+                listNewestMovies();
+                break;
+            case 12:
+                searchMoviesByText();
+                break;
+            case 13:
+                System.out.println(Metrics.summary());
+                break;
+            case 14:
+                listTopRatedMovies();
+                break;
+            case 15:
+                listRecommendations();
+                break;
+            case 16:
+                listTrendingMovies();
+                break;
             default:
                 System.out.println("Invalid choice. Please try again.");
         }
-
-        displayMenu(); // Display the menu again
+        recordMenuOperation(MAIN_MENU_OPERATIONS, choice, start);
     }
 
     private static void addMovie() {
@@ -369,30 +488,24 @@ public class MovieReviewApplication {
         System.out.print("Enter Genre: ");
         String genre = scanner.nextLine();
 
-        int maxMovieId = 0;
-        for (Movie movie : movies) {
-            int MovieIdInt = Integer.parseInt(movie.getMovieId());
-            if (MovieIdInt > maxMovieId) {
-                maxMovieId = MovieIdInt;
-            }
+        try {
+            service.addMovie(session, title, description, releaseDate, genre);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
         }
-
-        // Assign new Mvoie ID by incrementing the maximum user ID found
-        int newMovieId = maxMovieId + 1;
-
-        Movie movie = new Movie(Integer.toString(newMovieId) , title, description, releaseDate, genre);
-        movies.add(movie);
         System.out.println("Movie added successfully!");
     }
 
     private static void postReview() {
         System.out.println("Posting a Review");
-        if (currentUser == null) {
+        if (!session.isLoggedIn()) {
             System.out.println("You must be logged in to post a review.");
             return;
         }
 
 //        System.out.println("Posting a Review");
+        List<Movie> movies = service.getMovieList();
         if (movies.isEmpty()) {
             System.out.println("No movies available to review.");
             return;
@@ -419,24 +532,18 @@ public class MovieReviewApplication {
         System.out.print("Enter Comments (optional): ");
         String comments = scanner.nextLine();
 
-        int maxReviewId = 0;
-        for (Review review : reviews) {
-            int ReviewIdInt = Integer.parseInt(review.getReviewId());
-            if (ReviewIdInt > maxReviewId) {
-                maxReviewId = ReviewIdInt;
-            }
+        try {
+            service.postReview(session, selectedMovie.getMovieId(), rating, comments);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
         }
 
-        int newReviewId = maxReviewId + 1;
-
-        Review review = new Review(Integer.toString(newReviewId),currentUser.getUserId(), selectedMovie.getMovieId(), rating, comments);
-        reviews.add(review);
-
         System.out.println("Review posted successfully!");
     }
 
     private static void updateReview() {
-        if (currentUser == null) {
+        if (!session.isLoggedIn()) {
             System.out.println("You must be logged in to update a review.");
             return;
         }
@@ -444,7 +551,7 @@ public class MovieReviewApplication {
         System.out.println("Updating Review");
 
         // Retrieve reviews posted by the current user
-        List<Review> userReviews = getUserReviews(currentUser.getUserId());
+        List<Review> userReviews = getUserReviews(session.getCurrentUserId());
 
         if (userReviews.isEmpty()) {
             System.out.println("You haven't posted any reviews yet.");
@@ -478,31 +585,26 @@ public class MovieReviewApplication {
         String newComments = scanner.nextLine();
 
         // Update the selected review
-        selectedReview.setRating(newRating);
-        selectedReview.setComments(newComments);
-
-        // Update the corresponding document in the database
-        MongoCollection<Document> reviewsCollection = database.getCollection("Reviews");
-        Document updatedReviewDoc = new Document("rating", newRating)
-                .append("comments", newComments);
-        reviewsCollection.updateOne(
-                Filters.and(
-                        Filters.eq("userId", selectedReview.getUserId()),
-                        Filters.eq("movieId", selectedReview.getMovieId())
-                ),
-                new Document("$set", updatedReviewDoc)
-        );
+        try {
+            if (service.updateReview(session, selectedReview.getReviewId(), newRating, newComments) == null) {
+                System.out.println("Review no longer exists.");
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
         System.out.println("Review updated successfully!");
     }
 
     private static void removeReview() {
-        if (currentUser == null) {
+        if (!session.isLoggedIn()) {
             System.out.println("You must be logged in to remove a review.");
             return;
         }
 
         // Get reviews associated with the logged-in user
-        List<Review> userReviews = getUserReviews(currentUser.getUserId());
+        List<Review> userReviews = getUserReviews(session.getCurrentUserId());
 
         if (userReviews.isEmpty()) {
             System.out.println("You have no reviews to remove.");
@@ -534,124 +636,247 @@ public class MovieReviewApplication {
         String validation_check = selectedReview.toString();
         System.out.println(validation_check);
 
-        // Remove the selected review from the in-memory list
-        reviews.remove(selectedReview);
-
-        // Remove the selected review from the database
-        MongoCollection<Document> reviewsCollection = database.getCollection("Reviews");
-        reviewsCollection.deleteOne(
-                Filters.and(
-                        Filters.eq("userId", selectedReview.getUserId()),
-                        Filters.eq("movieId", selectedReview.getMovieId())
-                )
-        );
+        // Remove the selected review from memory and queue its removal from the database
+        if (service.removeReview(session, selectedReview.getReviewId()) == null) {
+            System.out.println("Review no longer exists.");
+            return;
+        }
         System.out.println("Review removed successfully.");
     }
 
     private static List<Review> getUserReviews(String userId) {
-        List<Review> userReviews = new ArrayList<>();
-        for (Review review : reviews) {
-            if (review.getUserId().equals(userId)) {
-                userReviews.add(review);
+        return service.getUserReviews(userId);
+    }
+
+    private static void listMoviesWithReviews() {
+        List<Movie> movieList = store.getMovieList();
+        if (movieList.isEmpty()) {
+            System.out.println("No movies available.");
+            return;
+        }
+
+        System.out.print("Enter page size (default " + DEFAULT_PAGE_SIZE + "): ");
+        String pageSizeInput = scanner.nextLine().trim();
+        int pageSize = DEFAULT_PAGE_SIZE;
+        if (!pageSizeInput.isEmpty()) {
+            try {
+                pageSize = Math.max(1, Integer.parseInt(pageSizeInput));
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid page size, using " + DEFAULT_PAGE_SIZE + ".");
+            }
+        }
+
+        int pageCount = (movieList.size() + pageSize - 1) / pageSize;
+        int page = 0;
+        while (true) {
+            System.out.print(renderMoviesWithReviewsPage(movieList, page, pageSize, pageCount));
+            System.out.print("n = next page, p = previous page, q = back to menu: ");
+            String command = scanner.nextLine().trim().toLowerCase();
+            if (command.equals("n")) {
+                if (page < pageCount - 1) {
+                    page++;
+                } else {
+                    System.out.println("Already on the last page.");
+                }
+            } else if (command.equals("p")) {
+                if (page > 0) {
+                    page--;
+                } else {
+                    System.out.println("Already on the first page.");
+                }
+            } else if (command.equals("q")) {
+                return;
+            } else {
+                System.out.println("Invalid choice. Please try again.");
             }
         }
-        return userReviews;
     }
 
-    private static void listMoviesWithReviews() {
-        System.out.println("Movies with Reviews:");
-        for (Movie movie : movies) {
-            System.out.println(movie.getTitle() + " - " + movie.getDescription());
-            System.out.println("Reviews:");
+    // Renders one page of movies; each movie's reviews come from the movie -> reviews index
+    // and usernames from the user index, so the cost is proportional to the page, not the catalog.
+    private static String renderMoviesWithReviewsPage(List<Movie> movieList, int page, int pageSize, int pageCount) {
+        StringBuilder out = new StringBuilder();
+        out.append("Movies with Reviews (page ").append(page + 1).append(" of ").append(pageCount).append("):\n");
+        int end = Math.min(movieList.size(), (page + 1) * pageSize);
+        for (int i = page * pageSize; i < end; i++) {
+            Movie movie = movieList.get(i);
+            out.append(movie.getTitle()).append(" - ").append(movie.getDescription()).append('\n');
+            out.append("Reviews:\n");
             boolean hasReviews = false;
-            for (Review review : reviews) {
-                if (review.getMovieId().equals(movie.getMovieId())) {
-                    // Fetch user for the review
-                    User user = findUserById(review.getUserId());
-                    if (user != null) {
-                        hasReviews = true;
-                        System.out.println(user.getUsername() + ": \nRating: " + review.getRating() + ", Comments: " + review.getComments());
-                    }
+            for (Review review : store.getReviewsForMovie(movie.getMovieId())) {
+                // Fetch user for the review
+                User user = findUserById(review.getUserId());
+                if (user != null) {
+                    hasReviews = true;
+                    out.append(user.getUsername()).append(": \nRating: ").append(review.getRating())
+                            .append(", Comments: ").append(review.getComments()).append('\n');
                 }
             }
             if (!hasReviews) {
-                System.out.println("No reviews yet.");
+                out.append("No reviews yet.\n");
             }
-            System.out.println();
+            out.append('\n');
         }
+        return out.toString();
     }
 
 
     public static void getAllUserDetails() {
-        System.out.println("All User Details:");
-        for (User user : users) {
-            System.out.println("User UUID: " + user.getUserId());
-            System.out.println("Username: " + user.getUsername());
-            System.out.println("Email: " + user.getEmail());
-            System.out.println();
-        }
+        printAll(Exporter.Kind.USERS);
     }
 
     // Method to retrieve details of all movies
     public static void getAllMovieDetails() {
-        System.out.println("All Movie Details:");
-        for (Movie movie : movies) {
-            System.out.println("Movie UUID: " + movie.getMovieId());
-            System.out.println("Title: " + movie.getTitle());
-            System.out.println("Description: " + movie.getDescription());
-            System.out.println("Release Date: " + movie.getReleaseDate());
-            System.out.println("Genre: " + movie.getGenre());
-            System.out.println();
-        }
+        printAll(Exporter.Kind.MOVIES);
     }
 
     // Method to retrieve details of all reviews
     public static void getAllReviewDetails() {
-        System.out.println("All Review Details:");
-        for (Review review : reviews) {
-            System.out.println("User UUID: " + review.getUserId());
-            System.out.println("Movie UUID: " + review.getMovieId());
-            System.out.println("Rating: " + review.getRating());
-            System.out.println("Comments: " + review.getComments());
-            System.out.println();
+        printAll(Exporter.Kind.REVIEWS);
+    }
+
+    // Streams the report through one buffered writer rather than a println per field
+    private static void printAll(Exporter.Kind kind) {
+        try {
+            new Exporter(store, backend).print(kind, readsFromDatabase(kind));
+        } catch (IOException e) {
+            System.err.println("Error printing " + kind.getCollection() + ": " + e.getMessage());
         }
     }
 
     private static void listMoviesWithAverageRatings() {
-        // Aggregate pipeline to calculate the average rating for each movie
-        List<Document> pipeline = List.of(
-                new Document("$group", new Document("_id", "$movieId")
-                        .append("averageRating", new Document("$avg", "$rating"))
-                )
-        );
-
-        // Execute the aggregation query
-        AggregateIterable<Document> result = database.getCollection("Reviews").aggregate(pipeline);
-
-        // Check if there are any results
-        if (result.iterator().hasNext()) {
-            for (Document movieData : result) {
-                String movieId = movieData.getString("_id");
-                double averageRating = movieData.getDouble("averageRating");
-
-                // Find the movie details using the movieId
-                Movie movieDetails = findMovieById(movieId);
-                if (movieDetails != null) {
-                    System.out.println("Movie: " + movieDetails.getTitle());
-                    System.out.println("Average rating: " + averageRating);
-                } else {
-                    System.out.println("Error: Movie details not found for movie ID: " + movieId);
-                }
-                System.out.println();
+        // Averages come from the in-memory aggregates, which also cover reviews not yet saved to the database
+        boolean hasRatings = false;
+        for (Movie movie : store.getMovies()) {
+            RatingAggregates.MovieRating movieRating = ratingAggregates.getRating(movie.getMovieId());
+            if (movieRating == null) {
+                continue;
             }
-        } else {
+            hasRatings = true;
+            System.out.println("Movie: " + movie.getTitle());
+            System.out.println("Average rating: " + movieRating.getAverage() + " (" + movieRating.getCount() + " reviews)");
+            System.out.println();
+        }
+
+        if (!hasRatings) {
             System.out.println("No reviews found.");
         }
     }
 
+    private static void listTopRatedMovies() {
+        System.out.print("Enter a genre (leave empty for all movies): ");
+        String genre = scanner.nextLine();
+        List<Leaderboards.Ranked> top = service.topRated(genre, TOP_RATED_COUNT);
+        if (top.isEmpty()) {
+            System.out.println("No movies with at least " + service.getLeaderboards().getMinVotes() + " reviews found.");
+            return;
+        }
+        System.out.println("Top rated " + (genre.isBlank() ? "movies" : genre.trim() + " movies")
+                + " (weighted towards the mean rating " + String.format("%.2f", service.getLeaderboards().getPrior()) + "):");
+        int rank = 1;
+        for (Leaderboards.Ranked ranked : top) {
+            Movie movie = store.findMovieById(ranked.getMovieId());
+            System.out.printf("%2d. %s  score %.2f, average %.2f from %d reviews%n", rank++,
+                    movie == null ? "Movie " + ranked.getMovieId() : movie.getTitle(), ranked.getScore(),
+                    ranked.getAverage(), ranked.getCount());
+        }
+    }
+
+    private static void listRecommendations() {
+        Recommender.Result result = service.recommend(session, RECOMMENDATION_COUNT);
+        if (result.getRecommendations().isEmpty()) {
+            System.out.println("No recommendations yet.");
+            return;
+        }
+        System.out.println(result.isPersonalized() ? "Recommended for you:"
+                : "Popular movies you have not reviewed (rate a few movies for personal recommendations):");
+        int rank = 1;
+        for (Recommender.Recommendation recommendation : result.getRecommendations()) {
+            System.out.printf("%2d. %s  predicted rating %.1f%s%n", rank++, movieTitle(recommendation.getMovieId()),
+                    recommendation.getPredictedRating(), recommendation.getBecauseOfMovieId() == null ? ""
+                            : ", because you rated " + movieTitle(recommendation.getBecauseOfMovieId()));
+        }
+    }
+
+    private static void listTrendingMovies() {
+        System.out.print("Trending over the last (h)our, (d)ay or (m)onth? [h]: ");
+        String answer = scanner.nextLine().trim().toLowerCase();
+        Trending.Window window = answer.startsWith("d") ? Trending.Window.DAY
+                : answer.startsWith("m") ? Trending.Window.MONTH : Trending.Window.HOUR;
+        String period = window.name().toLowerCase();
+        List<Trending.Trend> trends = service.trending(window, TRENDING_COUNT);
+        if (trends.isEmpty()) {
+            System.out.println("No reviews in the last " + period + ".");
+            return;
+        }
+        System.out.println("Most reviewed in the last " + period + ":");
+        int rank = 1;
+        for (Trending.Trend trend : trends) {
+            System.out.printf("%2d. %s  %d review(s), average %.2f%n", rank++, movieTitle(trend.getMovieId()),
+                    trend.getReviews(), trend.getAverageRating());
+        }
+    }
+
+    private static String movieTitle(String movieId) {
+        Movie movie = store.findMovieById(movieId);
+        return movie == null ? "Movie " + movieId : movie.getTitle();
+    }
+
+    // Movies, users or reviews from a file straight into the store and the database (see BulkImporter)
+    private static void importFile(Path file) {
+        BulkImporter importer = new BulkImporter(backend, memoryStore, ratingAggregates, idAllocator, service.getTrending());
+        try {
+            importer.importFile(file);
+        } catch (IOException | IllegalStateException e) {
+            System.err.println("Error importing " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static void exportFromMenu() {
+        System.out.print("Export which collection (movies, users, reviews)? ");
+        String collection = scanner.nextLine();
+        System.out.print("Enter the file to write (.csv, .jsonl or .txt, add .gz to compress): ");
+        String file = scanner.nextLine().trim();
+        System.out.print("Enter a filter, e.g. rating>=4&comments~great (leave empty for all): ");
+        exportCollection(collection, file, scanner.nextLine(), false);
+    }
+
+    // Exports from memory, which includes changes not saved yet, or from the database; false on failure
+    private static boolean exportCollection(String collection, String file, String filter, boolean fromDatabase) {
+        try {
+            Exporter.Kind kind = Exporter.Kind.parse(collection);
+            new Exporter(store, backend).exportToFile(kind, Path.of(file), Exporter.Filter.parse(filter),
+                    fromDatabase || readsFromDatabase(kind));
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error exporting " + collection + " to " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // The bounded cache mode keeps every movie in memory but only some users and reviews, so those come
+    // from the database
+    private static boolean readsFromDatabase(Exporter.Kind kind) {
+        return memoryStore == null && kind != Exporter.Kind.MOVIES;
+    }
+
+    private static void checkRatingAggregates() {
+        System.out.println("Checking rating aggregates against the database...");
+        List<String> mismatches = ratingAggregates.verifyAgainstDatabase(backend);
+        if (mismatches.isEmpty()) {
+            System.out.println("Rating aggregates match the database.");
+        } else {
+            System.out.println(mismatches.size() + " movie(s) differ (unsaved reviews also show up here):");
+            for (String mismatch : mismatches) {
+                System.out.println(mismatch);
+            }
+        }
+    }
+
     private static void findReviewsForSelectedMovie() {
         // Display the list of all movies
         System.out.println("Select a movie to see reviews:");
+        List<Movie> movies = store.getMovieList();
         for (Movie movie : movies) {
             System.out.println(movie.getMovieId() + ". " + movie.getTitle());
         }
@@ -669,14 +894,11 @@ public class MovieReviewApplication {
         // Get the selected movie
         String movieId = movies.get(movieIndex - 1).getMovieId();
 
-        // MongoDB query to find reviews for the selected movie
-        Document query = new Document("movieId", movieId);
-
-        // Execute the query
-        FindIterable<Document> result = database.getCollection("Reviews").find(query);
+        // Query the stored reviews for the selected movie
+        List<Document> result = backend.find("Reviews", "movieId", movieId);
 
         // Print the reviews for the selected movie
-        if (result != null) {
+        if (!result.isEmpty()) {
             System.out.println("Reviews for Movie with ID: " + movieId);
             for (Document document : result) {
                 System.out.println("User ID: " + document.getString("userId"));
@@ -690,15 +912,10 @@ public class MovieReviewApplication {
     }
 
     private static void searchMoviesByGenre() {
-        System.out.print("Enter the genre to search for: ");
+        System.out.print("Enter the genre to search for (use ',' to require all genres, '|' for any of them): ");
         String genre = scanner.nextLine();
 
-        List<Movie> matchingMovies = new ArrayList<>();
-        for (Movie movie : movies) {
-            if (movie.getGenre().equalsIgnoreCase(genre)) {
-                matchingMovies.add(movie);
-            }
-        }
+        List<Movie> matchingMovies = service.searchByGenre(genre);
 
         if (matchingMovies.isEmpty()) {
             System.out.println("No movies found for the genre: " + genre);
@@ -712,23 +929,30 @@ public class MovieReviewApplication {
     }
 
     private static void searchMoviesByReleaseYear() {
-        System.out.print("Enter the release year: ");
-        int year = scanner.nextInt();
-        scanner.nextLine(); // Consume newline character
+        System.out.print("Enter the release year or a range of years (e.g. 1994 or 1990-1999): ");
+        String input = scanner.nextLine().trim();
 
-        List<Movie> matchingMovies = new ArrayList<>();
-        for (Movie movie : movies) {
-            String releaseYearStr = movie.getReleaseDate().substring(0, 4); // Extract first four characters (year) from release date string
-            int releaseYear = Integer.parseInt(releaseYearStr);
-            if (releaseYear == year) {
-                matchingMovies.add(movie);
-            }
+        int fromYear;
+        int toYear;
+        try {
+            String[] years = input.split("\\s*-\\s*");
+            fromYear = Integer.parseInt(years[0]);
+            toYear = years.length > 1 ? Integer.parseInt(years[1]) : fromYear;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid year: " + input);
+            return;
         }
+        if (fromYear < 1 || toYear > 9999) {
+            System.out.println("Invalid year: " + input);
+            return;
+        }
+
+        List<Movie> matchingMovies = service.searchByReleaseYears(fromYear, toYear);
 
         if (matchingMovies.isEmpty()) {
             System.out.println("No movies found for the specified year.");
         } else {
-            System.out.println("Movies released in " + year + ":");
+            System.out.println("Movies released in " + (fromYear == toYear ? fromYear : fromYear + "-" + toYear) + ":");
             for (Movie movie : matchingMovies) {
                 System.out.println(movie.getTitle() + " - " + movie.getDescription());
                 // Display other movie details as needed
@@ -736,11 +960,48 @@ public class MovieReviewApplication {
         }
     }
 
+    private static void listNewestMovies() {
+        System.out.print("How many movies? ");
+        int count = scanner.nextInt();
+        scanner.nextLine(); // Consume newline character
+
+        List<Movie> newestMovies = service.newestMovies(count);
+        if (newestMovies.isEmpty()) {
+            System.out.println("No movies with a known release date.");
+        } else {
+            System.out.println("Newest movies:");
+            for (Movie movie : newestMovies) {
+                System.out.println(movie.getTitle() + " (" + movie.getReleaseDate() + ") - " + movie.getDescription());
+            }
+        }
+    }
+
+    private static void searchMoviesByText() {
+        System.out.print("Enter search words: ");
+        String query = scanner.nextLine();
+
+        long start = System.nanoTime();
+        List<FullTextIndex.SearchResult> results = service.searchText(query, SEARCH_RESULT_LIMIT);
+        long elapsedMicros = (System.nanoTime() - start) / 1000;
+
+        if (results.isEmpty()) {
+            System.out.println("No movies found for: " + query);
+            return;
+        }
+        System.out.println("Top " + results.size() + " results (" + elapsedMicros + " us):");
+        for (FullTextIndex.SearchResult result : results) {
+            Movie movie = findMovieById(result.getMovieId());
+            if (movie != null) {
+                System.out.printf("%.3f  %s - %s%n", result.getScore(), movie.getTitle(), movie.getDescription());
+            }
+        }
+    }
+
     // Method to add some test data (for testing purposes) {until we get the stupid database up}
     private static void addTestData() {
-        movies.add(new Movie("1", "The Shawshank Redemption", "Two imprisoned men bond over a number of years, finding solace and eventual redemption through acts of common decency.", "1994", "Drama"));
-        movies.add(new Movie("2", "The Godfather", "The aging patriarch of an organized crime dynasty transfers control of his clandestine empire to his reluctant son.", "1972", "Crime"));
-        movies.add(new Movie("3", "The Dark Knight", "When the menace known as The Joker emerges from his mysterious past, he wreaks havoc and chaos on the people of Gotham.", "2008", "Action"));
+        store.addMovie(new Movie("1", "The Shawshank Redemption", "Two imprisoned men bond over a number of years, finding solace and eventual redemption through acts of common decency.", "1994", "Drama"));
+        store.addMovie(new Movie("2", "The Godfather", "The aging patriarch of an organized crime dynasty transfers control of his clandestine empire to his reluctant son.", "1972", "Crime"));
+        store.addMovie(new Movie("3", "The Dark Knight", "When the menace known as The Joker emerges from his mysterious past, he wreaks havoc and chaos on the people of Gotham.", "2008", "Action"));
 
         // Assuming user and movie IDs are known
 //        reviews.add(new Review("1", "movie_uuid_1", 5, "A masterpiece!"));
@@ -0,0 +1,485 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Domain operations shared by the Scanner CLI and the HTTP API.
+// Each operation updates the entity store and its indexes, the rating aggregates and the
+// write-behind queue together, so every front end keeps them consistent in the same way.
+// The service is safe to call from many sessions at once. Reads go straight to the concurrent
+// store; registrations are serialized per username and review edits per user through striped
+// locks, so a user's changes reach the write-behind queue in the order they were made.
+// Every operation's latency is recorded in Metrics under "service.<method>".
+public class MovieReviewService {
+    private static final int LOCK_STRIPES = 64;
+    // New IDs tried before giving up when the store already has the allocated one, which happens when the
+    // counters lag the stored data
+    private static final int MAX_ID_ATTEMPTS = 5;
+
+    private final EntityAccess store;
+    private final RatingAggregates ratingAggregates;
+    private final IdAllocator idAllocator;
+    private final WriteBehindQueue writeBehind;
+    private final Leaderboards leaderboards;
+    private final Recommender recommender;
+    private final Trending trending;
+    private final StripedLocks usernameLocks = new StripedLocks(LOCK_STRIPES);
+    private final StripedLocks userReviewLocks = new StripedLocks(LOCK_STRIPES);
+
+    // With every review in memory: the recommender is built from the stored ratings and the trending
+    // counts start from the stored reviews
+    public MovieReviewService(EntityStore store, RatingAggregates ratingAggregates, IdAllocator idAllocator,
+                              WriteBehindQueue writeBehind) {
+        this(store, ratingAggregates, idAllocator, writeBehind, Recommender.create(store, ratingAggregates));
+        trending.recordAll(store);
+    }
+
+    // Without the reviews at hand (ReadThroughStore): no recommender, so recommendations are the top-rated
+    // movies the user has not reviewed, and the trending counts start from the reviews posted from now on
+    public MovieReviewService(EntityAccess store, RatingAggregates ratingAggregates, IdAllocator idAllocator,
+                              WriteBehindQueue writeBehind) {
+        this(store, ratingAggregates, idAllocator, writeBehind, null);
+    }
+
+    private MovieReviewService(EntityAccess store, RatingAggregates ratingAggregates, IdAllocator idAllocator,
+                               WriteBehindQueue writeBehind, Recommender recommender) {
+        this.store = store;
+        this.ratingAggregates = ratingAggregates;
+        this.idAllocator = idAllocator;
+        this.writeBehind = writeBehind;
+        this.leaderboards = Leaderboards.create(store, ratingAggregates);
+        this.recommender = recommender;
+        this.trending = new Trending();
+    }
+
+    // ---- Users ----
+
+    // Returns the new user, or null if the username is already taken
+    public User registerUser(String username, String password, String email) {
+        requireText(username, "Username");
+        requireText(password, "Password");
+        long start = Metrics.start();
+        ReentrantLock lock = usernameLocks.lockFor(username);
+        lock.lock();
+        try {
+            if (store.isUsernameTaken(username)) {
+                return null;
+            }
+            User user = null;
+            for (int attempt = 0; user == null; attempt++) {
+                User candidate = new User(nextId(IdAllocator.USERS, attempt), username, password, email);
+                if (store.addUser(candidate)) {
+                    user = candidate;
+                } else if (store.isUsernameTaken(username)) {
+                    // Taken meanwhile by a change from another instance
+                    return null;
+                }
+            }
+            writeBehind.upsert("Users", "userId", user.getUserId(), DocumentMapper.toDocument(user));
+            return user;
+        } finally {
+            lock.unlock();
+            Metrics.record("service.registerUser", start);
+        }
+    }
+
+    // Logs the session in if the username and password match; returns the user or null
+    public User login(Session session, String username, String password) {
+        long start = Metrics.start();
+        User user = store.findUserByUsername(username);
+        if (user != null && user.getPassword().equals(password)) {
+            session.login(user);
+        } else {
+            user = null;
+        }
+        Metrics.record("service.login", start);
+        return user;
+    }
+
+    public void logout(Session session) {
+        session.logout();
+    }
+
+    public User removeUser(String username) {
+        long start = Metrics.start();
+        ReentrantLock lock = usernameLocks.lockFor(username);
+        lock.lock();
+        try {
+            User user = store.removeUserByUsername(username);
+            if (user != null) {
+                writeBehind.delete("Users", "userId", user.getUserId());
+            }
+            return user;
+        } finally {
+            lock.unlock();
+            Metrics.record("service.removeUser", start);
+        }
+    }
+
+    // The next ID of the sequence, for the given attempt at adding a new entity; the store refusing
+    // MAX_ID_ATTEMPTS of them in a row is an error rather than a reason to overwrite stored data
+    private String nextId(String sequenceName, int attempt) {
+        if (attempt == MAX_ID_ATTEMPTS) {
+            throw new IllegalStateException("No free " + sequenceName + " ID after " + MAX_ID_ATTEMPTS + " attempts");
+        }
+        return idAllocator.nextId(sequenceName);
+    }
+
+    // The session's user, as stored now; a session whose user was removed is logged out
+    private User requireUser(Session session) {
+        User user = store.findUserById(session.requireUserId());
+        if (user == null) {
+            session.logout();
+            throw new NotLoggedInException("Your account no longer exists.");
+        }
+        return user;
+    }
+
+    public User findUserById(String userId) {
+        return store.findUserById(userId);
+    }
+
+    public boolean isUsernameTaken(String username) {
+        return store.isUsernameTaken(username);
+    }
+
+    // ---- Movies ----
+
+    public Movie addMovie(Session session, String title, String description, String releaseDate, String genre) {
+        requireUser(session);
+        requireText(title, "Title");
+        long start = Metrics.start();
+        Movie movie = null;
+        for (int attempt = 0; movie == null; attempt++) {
+            Movie candidate = new Movie(nextId(IdAllocator.MOVIES, attempt), title, description, releaseDate, genre);
+            if (store.addMovie(candidate)) {
+                movie = candidate;
+            }
+        }
+        writeBehind.upsert("Movies", "movieId", movie.getMovieId(), DocumentMapper.toDocument(movie));
+        Metrics.record("service.addMovie", start);
+        return movie;
+    }
+
+    public Movie findMovieById(String movieId) {
+        return store.findMovieById(movieId);
+    }
+
+    public List<Movie> getMovieList() {
+        return store.getMovieList();
+    }
+
+    // ---- Reviews ----
+
+    public Review postReview(Session session, String movieId, int rating, String comments) {
+        User user = requireUser(session);
+        requireRating(rating);
+        if (store.findMovieById(movieId) == null) {
+            throw new IllegalArgumentException("Movie not found: " + movieId);
+        }
+        long start = Metrics.start();
+        ReentrantLock lock = userReviewLocks.lockFor(user.getUserId());
+        lock.lock();
+        try {
+            Review review = null;
+            for (int attempt = 0; review == null; attempt++) {
+                Review candidate = new Review(nextId(IdAllocator.REVIEWS, attempt), user.getUserId(), movieId, rating,
+                        comments, System.currentTimeMillis());
+                if (store.addReview(candidate)) {
+                    review = candidate;
+                }
+            }
+            ratingAggregates.addRating(movieId, rating);
+            trending.record(movieId, rating, review.getReviewedAt());
+            writeBehind.upsert("Reviews", "reviewId", review.getReviewId(), DocumentMapper.toDocument(review));
+            return review;
+        } finally {
+            lock.unlock();
+            Metrics.record("service.postReview", start);
+        }
+    }
+
+    // Returns the updated review, or null if it does not exist or was written by someone else
+    public Review updateReview(Session session, String reviewId, int rating, String comments) {
+        User user = requireUser(session);
+        requireRating(rating);
+        long start = Metrics.start();
+        ReentrantLock lock = userReviewLocks.lockFor(user.getUserId());
+        lock.lock();
+        try {
+            Review review = store.findReviewById(reviewId);
+            if (review == null || !review.getUserId().equals(user.getUserId())) {
+                return null;
+            }
+            ratingAggregates.updateRating(review.getMovieId(), review.getRating(), rating);
+            store.updateReview(review, rating, comments, System.currentTimeMillis());
+            trending.record(review.getMovieId(), rating, review.getReviewedAt());
+            writeBehind.upsert("Reviews", "reviewId", review.getReviewId(), DocumentMapper.toDocument(review));
+            return review;
+        } finally {
+            lock.unlock();
+            Metrics.record("service.updateReview", start);
+        }
+    }
+
+    // Returns the removed review, or null if it does not exist or was written by someone else
+    public Review removeReview(Session session, String reviewId) {
+        User user = requireUser(session);
+        long start = Metrics.start();
+        ReentrantLock lock = userReviewLocks.lockFor(user.getUserId());
+        lock.lock();
+        try {
+            Review review = store.findReviewById(reviewId);
+            if (review == null || !review.getUserId().equals(user.getUserId())) {
+                return null;
+            }
+            store.removeReview(reviewId);
+            ratingAggregates.removeRating(review.getMovieId(), review.getRating());
+            writeBehind.delete("Reviews", "reviewId", reviewId);
+            return review;
+        } finally {
+            lock.unlock();
+            Metrics.record("service.removeReview", start);
+        }
+    }
+
+    public List<Review> getUserReviews(String userId) {
+        long start = Metrics.start();
+        List<Review> reviews = store.getReviewsForUser(userId);
+        Metrics.record("service.getUserReviews", start);
+        return reviews;
+    }
+
+    public List<Review> getReviewsForMovie(String movieId) {
+        long start = Metrics.start();
+        List<Review> reviews = store.getReviewsForMovie(movieId);
+        Metrics.record("service.getReviewsForMovie", start);
+        return reviews;
+    }
+
+    // ---- Changes made by other instances ----
+    // Applied by DeltaSync. They keep the store, its indexes and the rating aggregates in step like the
+    // operations above, but are not queued for writing: they were read from the database.
+    // A document with a local change still in the write-behind queue is skipped: that change reaches the
+    // database after the one read, so keeping it here keeps memory and database alike.
+
+    public void applyUser(User incoming) {
+        ReentrantLock lock = usernameLocks.lockFor(incoming.getUsername());
+        lock.lock();
+        try {
+            if (writeBehind.hasUnwritten("Users", incoming.getUserId())) {
+                return;
+            }
+            User existing = store.findUserById(incoming.getUserId());
+            if (existing == null) {
+                if (!store.addUser(incoming)) {
+                    System.err.println("Sync: username " + incoming.getUsername() + " of user " + incoming.getUserId()
+                            + " is already taken here");
+                }
+                return;
+            }
+            if (!existing.getUsername().equals(incoming.getUsername())) {
+                store.renameUser(existing, incoming.getUsername());
+            }
+            existing.setPassword(incoming.getPassword());
+            existing.setEmail(incoming.getEmail());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void applyMovie(Movie incoming) {
+        if (writeBehind.hasUnwritten("Movies", incoming.getMovieId())) {
+            return;
+        }
+        Movie existing = store.findMovieById(incoming.getMovieId());
+        if (existing == null) {
+            store.addMovie(incoming);
+            return;
+        }
+        // Only changed fields, so the field indexes see no needless updates
+        if (!Objects.equals(existing.getTitle(), incoming.getTitle())) {
+            existing.setTitle(incoming.getTitle());
+        }
+        if (!Objects.equals(existing.getDescription(), incoming.getDescription())) {
+            existing.setDescription(incoming.getDescription());
+        }
+        if (!Objects.equals(existing.getReleaseDate(), incoming.getReleaseDate())) {
+            existing.setReleaseDate(incoming.getReleaseDate());
+        }
+        if (!Objects.equals(existing.getGenre(), incoming.getGenre())) {
+            existing.setGenre(incoming.getGenre());
+        }
+    }
+
+    public void applyReview(Review incoming) {
+        ReentrantLock lock = userReviewLocks.lockFor(incoming.getUserId());
+        lock.lock();
+        try {
+            if (writeBehind.hasUnwritten("Reviews", incoming.getReviewId())) {
+                return;
+            }
+            Review existing = store.findReviewById(incoming.getReviewId());
+            if (existing == null) {
+                if (store.addReview(incoming)) {
+                    ratingAggregates.addRating(incoming.getMovieId(), incoming.getRating());
+                    trending.record(incoming.getMovieId(), incoming.getRating(), incoming.getReviewedAt());
+                }
+            } else if (!existing.getMovieId().equals(incoming.getMovieId())
+                    || !existing.getUserId().equals(incoming.getUserId())) {
+                store.removeReview(existing.getReviewId());
+                ratingAggregates.removeRating(existing.getMovieId(), existing.getRating());
+                store.addReview(incoming);
+                ratingAggregates.addRating(incoming.getMovieId(), incoming.getRating());
+                trending.record(incoming.getMovieId(), incoming.getRating(), incoming.getReviewedAt());
+            } else if (existing.getRating() != incoming.getRating()
+                    || !Objects.equals(existing.getComments(), incoming.getComments())
+                    || existing.getReviewedAt() != incoming.getReviewedAt()) {
+                ratingAggregates.updateRating(existing.getMovieId(), existing.getRating(), incoming.getRating());
+                store.updateReview(existing, incoming.getRating(), incoming.getComments(), incoming.getReviewedAt());
+                trending.record(incoming.getMovieId(), incoming.getRating(), incoming.getReviewedAt());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Deletion of the document with this key from a collection. Movies are never deleted.
+    public void applyDeletion(String collection, String key) {
+        if (writeBehind.hasUnwritten(collection, key)) {
+            return;
+        }
+        if (collection.equals("Users")) {
+            User user = store.findUserById(key);
+            if (user != null) {
+                ReentrantLock lock = usernameLocks.lockFor(user.getUsername());
+                lock.lock();
+                try {
+                    store.removeUserByUsername(user.getUsername());
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } else if (collection.equals("Reviews")) {
+            Review review = store.findReviewById(key);
+            if (review != null) {
+                ReentrantLock lock = userReviewLocks.lockFor(review.getUserId());
+                lock.lock();
+                try {
+                    if (store.removeReview(key) != null) {
+                        ratingAggregates.removeRating(review.getMovieId(), review.getRating());
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    // ---- Search and ratings ----
+
+    // ',' requires every genre, '|' matches any of them
+    public List<Movie> searchByGenre(String genres) {
+        long start = Metrics.start();
+        List<Movie> movies = genres.contains("|")
+                ? store.getGenreIndex().findAny(GenreIndex.tokenize(genres))
+                : store.getGenreIndex().findAll(GenreIndex.tokenize(genres));
+        Metrics.record("service.searchByGenre", start);
+        return movies;
+    }
+
+    public List<Movie> searchByReleaseYears(int fromYear, int toYear) {
+        long start = Metrics.start();
+        List<Movie> movies = store.getReleaseDateIndex().findByYearRange(fromYear, toYear);
+        Metrics.record("service.searchByReleaseYears", start);
+        return movies;
+    }
+
+    public List<Movie> newestMovies(int count) {
+        long start = Metrics.start();
+        List<Movie> movies = store.getReleaseDateIndex().findNewest(count);
+        Metrics.record("service.newestMovies", start);
+        return movies;
+    }
+
+    public List<FullTextIndex.SearchResult> searchText(String query, int limit) {
+        long start = Metrics.start();
+        List<FullTextIndex.SearchResult> results = store.getFullTextIndex().search(query, limit);
+        Metrics.record("service.searchText", start);
+        return results;
+    }
+
+    public RatingAggregates.MovieRating getRating(String movieId) {
+        return ratingAggregates.getRating(movieId);
+    }
+
+    // Best movies by Bayesian-weighted rating, for one genre or (genre null or blank) all movies
+    public List<Leaderboards.Ranked> topRated(String genre, int count) {
+        long start = Metrics.start();
+        List<Leaderboards.Ranked> top = leaderboards.top(genre, count);
+        Metrics.record("service.topRated", start);
+        return top;
+    }
+
+    public Leaderboards getLeaderboards() {
+        return leaderboards;
+    }
+
+    // Movies the logged-in user has not reviewed, predicted from their ratings; the top-rated ones they
+    // have not reviewed while the recommender has nothing to go on (not built yet, or no usable ratings)
+    public Recommender.Result recommend(Session session, int count) {
+        User user = requireUser(session);
+        long start = Metrics.start();
+        Recommender.Result result = recommender == null ? new Recommender.Result(new ArrayList<>(), false, true)
+                : recommender.recommend(user.getUserId(), count);
+        if (result.getRecommendations().isEmpty()) {
+            Set<String> reviewed = new HashSet<>();
+            for (Review review : store.getReviewsForUser(user.getUserId())) {
+                reviewed.add(review.getMovieId());
+            }
+            List<Recommender.Recommendation> popular = new ArrayList<>();
+            for (Leaderboards.Ranked ranked : leaderboards.top(null, leaderboards.getSize())) {
+                if (popular.size() == count) {
+                    break;
+                }
+                if (!reviewed.contains(ranked.getMovieId())) {
+                    popular.add(new Recommender.Recommendation(ranked.getMovieId(), ranked.getAverage(), null));
+                }
+            }
+            result = new Recommender.Result(popular, false, result.isComplete());
+        }
+        Metrics.record("service.recommend", start);
+        return result;
+    }
+
+    // Movies with the most reviews posted or changed in the window
+    public List<Trending.Trend> trending(Trending.Window window, int count) {
+        long start = Metrics.start();
+        List<Trending.Trend> top = trending.top(window, count);
+        Metrics.record("service.trending", start);
+        return top;
+    }
+
+    public Trending getTrending() {
+        return trending;
+    }
+
+    public Recommender getRecommender() {
+        return recommender;
+    }
+
+    private static void requireRating(int rating) {
+        if (rating < RatingAggregates.MIN_RATING || rating > RatingAggregates.MAX_RATING) {
+            throw new IllegalArgumentException("Rating must be between " + RatingAggregates.MIN_RATING
+                    + " and " + RatingAggregates.MAX_RATING + ".");
+        }
+    }
+
+    private static void requireText(String value, String name) {
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException(name + " must not be empty.");
+        }
+    }
+}
@@ -0,0 +1,9 @@
+// Thrown when an operation needs a logged-in user and the session has none, or its user was removed.
+// The HTTP API answers it with 401.
+public class NotLoggedInException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public NotLoggedInException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Compressed posting list: (docId, term frequency) pairs stored as variable-length integers, with
+// docIds delta-encoded. Documents are only ever appended with increasing docIds.
+public class PostingList {
+    private byte[] data = new byte[8];
+    private int length;
+    private int lastDocId = -1;
+    private int size;
+
+    public void add(int docId, int termFrequency) {
+        if (docId <= lastDocId) {
+            throw new IllegalArgumentException("docIds must be added in increasing order");
+        }
+        writeVarInt(docId - lastDocId);
+        writeVarInt(termFrequency);
+        lastDocId = docId;
+        size++;
+    }
+
+    // Number of postings, including ones for deleted documents that have not been compacted away yet
+    public int size() {
+        return size;
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    // Rewrites the list without the postings of deleted documents
+    public PostingList withoutDeleted(BitSet deleted) {
+        PostingList compacted = new PostingList();
+        Cursor cursor = cursor();
+        while (cursor.next()) {
+            if (!deleted.get(cursor.docId())) {
+                compacted.add(cursor.docId(), cursor.termFrequency());
+            }
+        }
+        compacted.data = Arrays.copyOf(compacted.data, Math.max(compacted.length, 1));
+        return compacted;
+    }
+
+    public int sizeInBytes() {
+        return data.length;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        out.writeInt(lastDocId);
+        out.writeInt(length);
+        out.write(data, 0, length);
+    }
+
+    static PostingList readFrom(DataInput in) throws IOException {
+        PostingList list = new PostingList();
+        list.size = in.readInt();
+        list.lastDocId = in.readInt();
+        list.length = in.readInt();
+        list.data = new byte[list.length];
+        in.readFully(list.data);
+        return list;
+    }
+
+    private void writeVarInt(int value) {
+        if (length + 5 > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+        }
+        while ((value & ~0x7F) != 0) {
+            data[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[length++] = (byte) value;
+    }
+
+    public class Cursor {
+        private int position;
+        private int docId = -1;
+        private int termFrequency;
+
+        public boolean next() {
+            if (position >= length) {
+                return false;
+            }
+            docId += readVarInt();
+            termFrequency = readVarInt();
+            return true;
+        }
+
+        public int docId() {
+            return docId;
+        }
+
+        public int termFrequency() {
+            return termFrequency;
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
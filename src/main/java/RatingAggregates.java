@@ -0,0 +1,164 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+// Per-movie rating aggregates (count, sum and a 1-5 histogram) kept up to date as reviews are
+// posted, updated and removed, so average ratings can be read without aggregating the Reviews collection.
+// Each movie's aggregate is an immutable value replaced atomically per movie, so concurrent updates are
+// never lost and readers always see a consistent count, sum and histogram.
+public class RatingAggregates {
+    public static final int MIN_RATING = 1;
+    public static final int MAX_RATING = 5;
+
+    private final Map<String, MovieRating> ratingsByMovie = new ConcurrentHashMap<>();
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+    // Notified after a movie's aggregate changed, and after all of them were replaced. Concurrent changes
+    // to one movie may be reported out of order, so listeners read the current aggregate.
+    public interface ChangeListener {
+        void ratingChanged(String movieId);
+
+        void ratingsReplaced();
+    }
+
+    public static class MovieRating {
+        private static final MovieRating EMPTY = new MovieRating(0, 0, new int[MAX_RATING - MIN_RATING + 1]);
+
+        private final int count;
+        private final long sum;
+        private final int[] histogram;
+
+        private MovieRating(int count, long sum, int[] histogram) {
+            this.count = count;
+            this.sum = sum;
+            this.histogram = histogram;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public double getAverage() {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        // Number of reviews with the given rating (1-5)
+        public int getHistogram(int rating) {
+            return isInRange(rating) ? histogram[rating - MIN_RATING] : 0;
+        }
+
+        // A copy with one review of the given rating added (delta 1) or removed (delta -1)
+        private MovieRating with(int rating, int delta) {
+            int[] newHistogram = histogram.clone();
+            if (isInRange(rating)) {
+                newHistogram[rating - MIN_RATING] += delta;
+            }
+            return new MovieRating(count + delta, sum + (long) rating * delta, newHistogram);
+        }
+    }
+
+    public void addChangeListener(ChangeListener changeListener) {
+        changeListeners.add(changeListener);
+    }
+
+    public void addRating(String movieId, int rating) {
+        ratingsByMovie.compute(movieId, (k, old) -> (old == null ? MovieRating.EMPTY : old).with(rating, 1));
+        ratingChanged(movieId);
+    }
+
+    public void removeRating(String movieId, int rating) {
+        ratingsByMovie.computeIfPresent(movieId, (k, old) -> {
+            MovieRating updated = old.with(rating, -1);
+            return updated.count <= 0 ? null : updated;
+        });
+        ratingChanged(movieId);
+    }
+
+    // Applies the old -> new delta of an updated review in one atomic step
+    public void updateRating(String movieId, int oldRating, int newRating) {
+        if (oldRating == newRating) {
+            return;
+        }
+        ratingsByMovie.compute(movieId, (k, old) -> (old == null ? MovieRating.EMPTY : old)
+                .with(oldRating, -1).with(newRating, 1));
+        ratingChanged(movieId);
+    }
+
+    public MovieRating getRating(String movieId) {
+        return ratingsByMovie.get(movieId);
+    }
+
+    public Map<String, MovieRating> getAllRatings() {
+        return Collections.unmodifiableMap(ratingsByMovie);
+    }
+
+    public void clear() {
+        ratingsByMovie.clear();
+        ratingsReplaced();
+    }
+
+    // Replaces every aggregate with the summaries of a scan over the stored reviews
+    // (movieId -> {count, sum, number of 1..5 ratings}, see EntityStore.ratingSummaries)
+    public void rebuild(Map<String, long[]> summaries) {
+        ratingsByMovie.clear();
+        for (Map.Entry<String, long[]> entry : summaries.entrySet()) {
+            long[] summary = entry.getValue();
+            int[] histogram = new int[MAX_RATING - MIN_RATING + 1];
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = (int) summary[2 + i];
+            }
+            ratingsByMovie.put(entry.getKey(), new MovieRating((int) summary[0], summary[1], histogram));
+        }
+        ratingsReplaced();
+    }
+
+    // Compares the in-memory aggregates with the stored reviews (a $group aggregation over the Reviews
+    // collection on MongoDB) and returns one line per movie whose count or sum differs. Reviews that
+    // have not been saved to the database yet will show up here as differences.
+    public List<String> verifyAgainstDatabase(StorageBackend backend) {
+        List<String> mismatches = new ArrayList<>();
+        Map<String, MovieRating> unseen = new HashMap<>(ratingsByMovie);
+        for (Map.Entry<String, long[]> totals : backend.ratingTotals().entrySet()) {
+            String movieId = totals.getKey();
+            int dbCount = (int) totals.getValue()[0];
+            long dbSum = totals.getValue()[1];
+            MovieRating movieRating = unseen.remove(movieId);
+            int memCount = movieRating == null ? 0 : movieRating.count;
+            long memSum = movieRating == null ? 0 : movieRating.sum;
+            if (memCount != dbCount || memSum != dbSum) {
+                mismatches.add("Movie ID " + movieId + ": in memory count=" + memCount + " sum=" + memSum
+                        + ", database count=" + dbCount + " sum=" + dbSum);
+            }
+        }
+        for (Map.Entry<String, MovieRating> entry : unseen.entrySet()) {
+            mismatches.add("Movie ID " + entry.getKey() + ": in memory count=" + entry.getValue().count
+                    + " sum=" + entry.getValue().sum + ", database count=0 sum=0");
+        }
+        return mismatches;
+    }
+
+    private void ratingChanged(String movieId) {
+        for (ChangeListener listener : changeListeners) {
+            listener.ratingChanged(movieId);
+        }
+    }
+
+    private void ratingsReplaced() {
+        for (ChangeListener listener : changeListeners) {
+            listener.ratingsReplaced();
+        }
+    }
+
+    private static boolean isInRange(int rating) {
+        return rating >= MIN_RATING && rating <= MAX_RATING;
+    }
+}
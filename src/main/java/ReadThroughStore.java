@@ -0,0 +1,335 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.Document;
+
+// EntityAccess for the bounded cache mode (-Dapp.cache=bounded), when the users and reviews do not fit in
+// the heap. Movies are loaded as before into a MovieCatalog, since the listings, searches and rankings
+// work on all of them.
+// Users and reviews are not loaded: the lookups (user by ID or username, a user's or a movie's reviews,
+// review by ID) read through a BoundedCache of -Dapp.cacheMegabytes in front of the database, using its
+// indexes (IndexManager).
+// - changes invalidate the entries they affect, and are kept as pending until the write-behind queue
+//   reports them written. Loads merge the pending changes into what the database returns, reading the
+//   pending ones first, so a change is never missed between being queued and being written.
+// - there is no listing or scan of every user or review (that is EntityStore's): exports and reports read
+//   those from the database, the rating aggregates are built by the database (StorageBackend.ratingTotals),
+//   there is no recommender, trending counts start empty and the text search covers the movies only
+// Cached lists and users are shared, so callers get copies of the lists and must not change the objects
+// other than through the store.
+public class ReadThroughStore implements EntityAccess {
+    public static final int DEFAULT_CACHE_MEGABYTES = 256;
+
+    // Cache keys are the ID with one of these prefixes
+    private static final String USER = "user:";
+    private static final String USER_REVIEWS = "userReviews:";
+    private static final String MOVIE_REVIEWS = "movieReviews:";
+    // Pending deletion of a user or review
+    private static final User REMOVED_USER = new User(null, null, null, null);
+    private static final Review REMOVED_REVIEW = new Review(null, null, null, 0, null);
+
+    private final StorageBackend backend;
+    private final MovieCatalog movies = new MovieCatalog(new FullTextIndex());
+    private final BoundedCache<String, Object> cache;
+    // ID -> the latest change not written yet: a copy of the new state, or a REMOVED marker
+    private final Map<String, User> pendingUsers = new ConcurrentHashMap<>();
+    private final Map<String, Review> pendingReviews = new ConcurrentHashMap<>();
+
+    public ReadThroughStore(StorageBackend backend, WriteBehindQueue writeBehind, long cacheBytes) {
+        this.backend = backend;
+        this.cache = new BoundedCache<>("Read-through cache", cacheBytes, ReadThroughStore::weigh);
+        writeBehind.setFlushListener(this::written);
+    }
+
+    public BoundedCache.Stats cacheStats() {
+        return cache.stats();
+    }
+
+    // ---- Users ----
+
+    @Override
+    public boolean addUser(User user) {
+        if (isUsernameTaken(user.getUsername()) || findUserById(user.getUserId()) != null) {
+            return false;
+        }
+        changeUser(user.getUserId(), copy(user));
+        return true;
+    }
+
+    @Override
+    public User findUserById(String userId) {
+        return userId == null ? null : (User) cache.get(USER + userId, key -> loadUser(userId));
+    }
+
+    @Override
+    public User findUserByUsername(String username) {
+        if (username == null) {
+            return null;
+        }
+        for (Map.Entry<String, User> pending : pendingUsers.entrySet()) {
+            if (username.equals(pending.getValue().getUsername())) {
+                return findUserById(pending.getKey());
+            }
+        }
+        for (Document document : backend.find("Users", "username", username)) {
+            String userId = document.getString("userId");
+            // Renamed or removed since
+            if (!pendingUsers.containsKey(userId)) {
+                return findUserById(userId);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isUsernameTaken(String username) {
+        return findUserByUsername(username) != null;
+    }
+
+    @Override
+    public boolean renameUser(User user, String newUsername) {
+        if (isUsernameTaken(newUsername)) {
+            return false;
+        }
+        user.setUsername(newUsername);
+        changeUser(user.getUserId(), copy(user));
+        return true;
+    }
+
+    @Override
+    public User removeUserByUsername(String username) {
+        User user = findUserByUsername(username);
+        if (user != null) {
+            changeUser(user.getUserId(), REMOVED_USER);
+        }
+        return user;
+    }
+
+    // ---- Movies ----
+
+    @Override
+    public boolean addMovie(Movie movie) {
+        return movies.addMovie(movie);
+    }
+
+    @Override
+    public Movie findMovieById(String movieId) {
+        return movies.findMovieById(movieId);
+    }
+
+    @Override
+    public Collection<Movie> getMovies() {
+        return movies.getMovies();
+    }
+
+    @Override
+    public List<Movie> getMovieList() {
+        return movies.getMovieList();
+    }
+
+    @Override
+    public int movieCount() {
+        return movies.movieCount();
+    }
+
+    @Override
+    public void setMovieChangeListener(Movie.ChangeListener movieChangeListener) {
+        movies.setMovieChangeListener(movieChangeListener);
+    }
+
+    @Override
+    public GenreIndex getGenreIndex() {
+        return movies.getGenreIndex();
+    }
+
+    @Override
+    public ReleaseDateIndex getReleaseDateIndex() {
+        return movies.getReleaseDateIndex();
+    }
+
+    @Override
+    public FullTextIndex getFullTextIndex() {
+        return movies.getFullTextIndex();
+    }
+
+    // ---- Reviews ----
+
+    @Override
+    public boolean addReview(Review review) {
+        // Pending or saved, unless removed since
+        if (findReviewById(review.getReviewId()) != null) {
+            return false;
+        }
+        changeReview(review, copy(review));
+        return true;
+    }
+
+    @Override
+    public void updateReview(Review review, int rating, String comments, long reviewedAt) {
+        review.setRating(rating);
+        review.setComments(comments);
+        review.setReviewedAt(reviewedAt);
+        changeReview(review, copy(review));
+    }
+
+    @Override
+    public Review findReviewById(String reviewId) {
+        if (reviewId == null) {
+            return null;
+        }
+        Review pending = pendingReviews.get(reviewId);
+        if (pending != null) {
+            return pending == REMOVED_REVIEW ? null : copy(pending);
+        }
+        long start = Metrics.start();
+        List<Document> documents = backend.find("Reviews", "reviewId", reviewId);
+        Metrics.record("cache.load", start);
+        return documents.isEmpty() ? null : DocumentMapper.toReview(documents.get(0));
+    }
+
+    @Override
+    public Review removeReview(String reviewId) {
+        Review review = findReviewById(reviewId);
+        if (review != null) {
+            changeReview(review, REMOVED_REVIEW);
+        }
+        return review;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Review> getReviewsForMovie(String movieId) {
+        return new ArrayList<>((List<Review>) cache.get(MOVIE_REVIEWS + movieId, key -> loadReviews("movieId", movieId)));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Review> getReviewsForUser(String userId) {
+        return new ArrayList<>((List<Review>) cache.get(USER_REVIEWS + userId, key -> loadReviews("userId", userId)));
+    }
+
+    // ---- Loading ----
+
+    private User loadUser(String userId) {
+        User pending = pendingUsers.get(userId);
+        if (pending != null) {
+            return pending == REMOVED_USER ? null : copy(pending);
+        }
+        long start = Metrics.start();
+        List<Document> documents = backend.find("Users", "userId", userId);
+        Metrics.record("cache.load", start);
+        return documents.isEmpty() ? null : DocumentMapper.toUser(documents.get(0));
+    }
+
+    // The stored reviews whose field has the value, with the pending changes applied, in ID order
+    private List<Review> loadReviews(String field, String value) {
+        // Before the database: a change written meanwhile is then either still pending here or in the result
+        Map<String, Review> pending = new HashMap<>(pendingReviews);
+        long start = Metrics.start();
+        Map<String, Review> reviews = new HashMap<>();
+        for (Document document : backend.find("Reviews", field, value)) {
+            Review review = DocumentMapper.toReview(document);
+            reviews.put(review.getReviewId(), review);
+        }
+        Metrics.record("cache.load", start);
+        for (Map.Entry<String, Review> change : pending.entrySet()) {
+            reviews.remove(change.getKey());
+            Review review = change.getValue();
+            if (review != REMOVED_REVIEW && value.equals(field.equals("userId") ? review.getUserId() : review.getMovieId())) {
+                reviews.put(change.getKey(), copy(review));
+            }
+        }
+        List<Review> sorted = new ArrayList<>(reviews.values());
+        sorted.sort(Comparator.comparing(Review::getReviewId, EntityStore.ID_ORDER));
+        return sorted;
+    }
+
+    // ---- Changes ----
+
+    private void changeUser(String userId, User state) {
+        pendingUsers.put(userId, state);
+        cache.invalidate(USER + userId);
+    }
+
+    // The review's lists before and after the change are invalidated after it is pending
+    private void changeReview(Review review, Review state) {
+        Review previous = pendingReviews.put(review.getReviewId(), state);
+        cache.invalidate(USER_REVIEWS + review.getUserId());
+        cache.invalidate(MOVIE_REVIEWS + review.getMovieId());
+        if (previous != null && previous != REMOVED_REVIEW) {
+            cache.invalidate(USER_REVIEWS + previous.getUserId());
+            cache.invalidate(MOVIE_REVIEWS + previous.getMovieId());
+        }
+    }
+
+    // Told by the write-behind queue after entries were written: the changes they carry are no longer
+    // pending, unless a later change to the same document is
+    private void written(List<WriteBehindQueue.DirtyEntry> entries) {
+        for (WriteBehindQueue.DirtyEntry entry : entries) {
+            boolean deleted = entry.getOperation() == WriteBehindQueue.Operation.DELETE;
+            if (entry.getCollection().equals("Users")) {
+                pendingUsers.computeIfPresent(entry.getKey(), (key, pending) ->
+                        deleted ? (pending == REMOVED_USER ? null : pending)
+                                : (pending != REMOVED_USER && sameUser(pending, entry.getDocument()) ? null : pending));
+            } else if (entry.getCollection().equals("Reviews")) {
+                pendingReviews.computeIfPresent(entry.getKey(), (key, pending) ->
+                        deleted ? (pending == REMOVED_REVIEW ? null : pending)
+                                : (pending != REMOVED_REVIEW && sameReview(pending, entry.getDocument()) ? null : pending));
+            }
+        }
+    }
+
+    private static boolean sameUser(User user, Document document) {
+        return Objects.equals(user.getUsername(), document.getString("username"))
+                && Objects.equals(user.getPassword(), document.getString("password"))
+                && Objects.equals(user.getEmail(), document.getString("email"));
+    }
+
+    private static boolean sameReview(Review review, Document document) {
+        Review written = DocumentMapper.toReview(document);
+        return Objects.equals(review.getUserId(), written.getUserId())
+                && Objects.equals(review.getMovieId(), written.getMovieId())
+                && review.getRating() == written.getRating()
+                && Objects.equals(review.getComments(), written.getComments())
+                && review.getReviewedAt() == written.getReviewedAt();
+    }
+
+    private static User copy(User user) {
+        return new User(user.getUserId(), user.getUsername(), user.getPassword(), user.getEmail());
+    }
+
+    private static Review copy(Review review) {
+        return new Review(review.getReviewId(), review.getUserId(), review.getMovieId(), review.getRating(),
+                review.getComments(), review.getReviewedAt());
+    }
+
+    // ---- Weights ----
+
+    // Estimated bytes of a cache entry: compact strings take about 40 bytes plus one per character
+    private static int weigh(String key, Object value) {
+        int weight = text(key);
+        if (value instanceof User) {
+            User user = (User) value;
+            return weight + 32 + text(user.getUserId()) + text(user.getUsername()) + text(user.getPassword())
+                    + text(user.getEmail());
+        }
+        List<?> reviews = (List<?>) value;
+        weight += 32 + 8 * reviews.size();
+        for (Object item : reviews) {
+            Review review = (Review) item;
+            weight += 48 + text(review.getReviewId()) + text(review.getUserId()) + text(review.getMovieId())
+                    + text(review.getComments());
+        }
+        return weight;
+    }
+
+    private static int text(String value) {
+        return value == null ? 0 : 40 + value.length();
+    }
+}
@@ -0,0 +1,688 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Item-item collaborative filtering: "users who liked X also liked Y".
+// - the ratings form a sparse user x movie matrix, each rating centred on its user's mean (adjusted cosine),
+//   held both by movie and by user as compressed sparse rows; several reviews of one movie by the same user
+//   count as their average. The matrix is built from a (user, movie, rating) triple per review, collected
+//   by a paged column scan of the reviews on a full rebuild and kept for the next refresh.
+// - the similarity of two movies is the cosine of their centred rating vectors, damped for movies with few
+//   raters in common; only the best neighbourCount positive neighbours are kept per movie
+// - a movie's neighbours come from walking the rows of the users who rated it, so the cost is the sum over
+//   users of their number of ratings squared, not movies squared. Users with more than MAX_USER_RATINGS
+//   ratings are left out of the matrix: their cost is quadratic and their signal thin.
+// - movies are computed in parallel, in blocks of BLOCK movies on the common ForkJoinPool
+// - movies whose ratings change are marked dirty. Every refreshSeconds only the dirty movies' reviews are
+//   read again, replacing their triples, the matrix is rebuilt in memory from the triples, and only the dirty
+//   movies' neighbours are recomputed and patched into their neighbours' lists; when more than
+//   FULL_REBUILD_FRACTION of the movies are dirty every movie's neighbours are recomputed, which also
+//   catches up with the shifted means of users who rated them. The store is only scanned in full on the
+//   first build and after the aggregates were replaced.
+// Recommending scores the unseen neighbours of the movies a user rated, most telling ratings first, and
+// stops at the time budget (-Dapp.recommendBudgetMillis) with what it has by then.
+public class Recommender implements RatingAggregates.ChangeListener, AutoCloseable {
+    public static final int DEFAULT_NEIGHBOURS = 50;
+    public static final int DEFAULT_REFRESH_SECONDS = 30;
+    public static final long DEFAULT_BUDGET_MILLIS = 50;
+    private static final int MIN_COMMON_RATERS = 3;
+    // A similarity over n common raters is scaled by n / (n + SHRINKAGE)
+    private static final double SHRINKAGE = 10;
+    private static final int MAX_USER_RATINGS = 2000;
+    private static final int BLOCK = 64;
+    private static final double FULL_REBUILD_FRACTION = 0.2;
+    private static final double MIDPOINT = (RatingAggregates.MIN_RATING + RatingAggregates.MAX_RATING) / 2.0;
+
+    private final EntityStore store;
+    private final int neighbourCount;
+    private final int refreshSeconds;
+    private final long budgetNanos;
+    private final Set<String> dirtyMovies = ConcurrentHashMap.newKeySet();
+    private volatile boolean rebuildAll = true;
+    private ScheduledExecutorService refresher;
+
+    // Movie indexes only grow, so neighbour lists stay valid across matrix rebuilds. Indexes and movie IDs
+    // are assigned by the refresh thread; the neighbour lists are immutable and replaced one at a time by it.
+    private final Map<String, Integer> movieIndexes = new ConcurrentHashMap<>();
+    private volatile String[] movieIds = new String[0];
+    private volatile Neighbours[] neighbours = new Neighbours[0];
+    private volatile boolean ready;
+
+    // The ratings as of the last refresh: user, movie and rating per review, with the users' dense indexes.
+    // Only used by the refresh thread.
+    private final Map<String, Integer> userIndexes = new HashMap<>();
+    private int[][] triples = {new int[1024], new int[1024], new int[1024]};
+    private int tripleCount;
+
+    private static final class Neighbours {
+        private static final Neighbours NONE = new Neighbours(new int[0], new float[0]);
+
+        private final int[] movies;
+        private final float[] similarities;
+
+        private Neighbours(int[] movies, float[] similarities) {
+            this.movies = movies;
+            this.similarities = similarities;
+        }
+
+        private int indexOf(int movie) {
+            for (int k = 0; k < movies.length; k++) {
+                if (movies[k] == movie) {
+                    return k;
+                }
+            }
+            return -1;
+        }
+
+        // A copy with movie at the given similarity, kept in order and cut to limit entries
+        private Neighbours with(int movie, float similarity, int limit) {
+            Neighbours rest = without(movie);
+            int position = 0;
+            while (position < rest.movies.length && rest.similarities[position] >= similarity) {
+                position++;
+            }
+            if (position >= limit) {
+                return rest;
+            }
+            int size = Math.min(rest.movies.length + 1, limit);
+            int[] newMovies = new int[size];
+            float[] newSimilarities = new float[size];
+            System.arraycopy(rest.movies, 0, newMovies, 0, position);
+            System.arraycopy(rest.similarities, 0, newSimilarities, 0, position);
+            newMovies[position] = movie;
+            newSimilarities[position] = similarity;
+            System.arraycopy(rest.movies, position, newMovies, position + 1, size - position - 1);
+            System.arraycopy(rest.similarities, position, newSimilarities, position + 1, size - position - 1);
+            return new Neighbours(newMovies, newSimilarities);
+        }
+
+        private Neighbours without(int movie) {
+            int k = indexOf(movie);
+            if (k < 0) {
+                return this;
+            }
+            int[] newMovies = new int[movies.length - 1];
+            float[] newSimilarities = new float[movies.length - 1];
+            System.arraycopy(movies, 0, newMovies, 0, k);
+            System.arraycopy(similarities, 0, newSimilarities, 0, k);
+            System.arraycopy(movies, k + 1, newMovies, k, movies.length - k - 1);
+            System.arraycopy(similarities, k + 1, newSimilarities, k, movies.length - k - 1);
+            return new Neighbours(newMovies, newSimilarities);
+        }
+    }
+
+    public static class Recommendation {
+        private final String movieId;
+        private final double predictedRating;
+        private final String becauseOfMovieId;
+
+        public Recommendation(String movieId, double predictedRating, String becauseOfMovieId) {
+            this.movieId = movieId;
+            this.predictedRating = predictedRating;
+            this.becauseOfMovieId = becauseOfMovieId;
+        }
+
+        public String getMovieId() {
+            return movieId;
+        }
+
+        public double getPredictedRating() {
+            return predictedRating;
+        }
+
+        // The rated movie that contributed most, or null for recommendations not based on the user's ratings
+        public String getBecauseOfMovieId() {
+            return becauseOfMovieId;
+        }
+    }
+
+    public static class Result {
+        private final List<Recommendation> recommendations;
+        private final boolean personalized;
+        private final boolean complete;
+
+        public Result(List<Recommendation> recommendations, boolean personalized, boolean complete) {
+            this.recommendations = recommendations;
+            this.personalized = personalized;
+            this.complete = complete;
+        }
+
+        public List<Recommendation> getRecommendations() {
+            return recommendations;
+        }
+
+        // False for the popular movies given when there is nothing to go on
+        public boolean isPersonalized() {
+            return personalized;
+        }
+
+        // False if the time budget ran out before all of the user's ratings were used
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+
+    public static Recommender create(EntityStore store, RatingAggregates ratingAggregates) {
+        return create(store, ratingAggregates, Integer.getInteger("app.recommendNeighbours", DEFAULT_NEIGHBOURS),
+                Integer.getInteger("app.recommendRefreshSeconds", DEFAULT_REFRESH_SECONDS),
+                Long.getLong("app.recommendBudgetMillis", DEFAULT_BUDGET_MILLIS));
+    }
+
+    // Marks movies dirty as their ratings change from now on; start() builds the neighbour lists
+    public static Recommender create(EntityStore store, RatingAggregates ratingAggregates, int neighbourCount,
+                                     int refreshSeconds, long budgetMillis) {
+        Recommender recommender = new Recommender(store, neighbourCount, refreshSeconds, budgetMillis);
+        ratingAggregates.addChangeListener(recommender);
+        return recommender;
+    }
+
+    private Recommender(EntityStore store, int neighbourCount, int refreshSeconds, long budgetMillis) {
+        this.store = store;
+        this.neighbourCount = neighbourCount;
+        this.refreshSeconds = refreshSeconds;
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    }
+
+    // Builds the neighbour lists in the background, then keeps refreshing them
+    public synchronized void start() {
+        if (refresher != null) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "recommender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(this::refresh, 0, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    // True once the first build has finished
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public void ratingChanged(String movieId) {
+        dirtyMovies.add(movieId);
+    }
+
+    @Override
+    public void ratingsReplaced() {
+        rebuildAll = true;
+    }
+
+    // ---- Recommending ----
+
+    public Result recommend(String userId, int count) {
+        long deadline = System.nanoTime() + budgetNanos;
+        List<Review> reviews = store.getReviewsForUser(userId);
+        if (!ready || reviews.isEmpty() || count <= 0) {
+            return new Result(new ArrayList<>(), true, true);
+        }
+
+        // Each rating weighs in by how far it is from the user's mean (from the midpoint if all are equal);
+        // predictions add the weighted deviation back to the same centre
+        double mean = 0;
+        for (Review review : reviews) {
+            mean += review.getRating();
+        }
+        mean /= reviews.size();
+        boolean allEqual = true;
+        for (Review review : reviews) {
+            allEqual &= review.getRating() == reviews.get(0).getRating();
+        }
+        double centre = allEqual ? MIDPOINT : mean;
+        // Movie -> {sum of ratings, reviews}; several reviews of one movie count as their average
+        Map<Integer, double[]> byMovie = new HashMap<>();
+        for (Review review : reviews) {
+            Integer index = movieIndexes.get(review.getMovieId());
+            if (index != null) {
+                double[] sum = byMovie.computeIfAbsent(index, i -> new double[2]);
+                sum[0] += review.getRating();
+                sum[1]++;
+            }
+        }
+        Set<Integer> seen = byMovie.keySet();
+        List<double[]> rated = new ArrayList<>();
+        for (Map.Entry<Integer, double[]> entry : byMovie.entrySet()) {
+            rated.add(new double[]{entry.getKey(), entry.getValue()[0] / entry.getValue()[1] - centre});
+        }
+        rated.sort((a, b) -> Double.compare(Math.abs(b[1]), Math.abs(a[1])));
+
+        // Candidate movie -> {weighted sum, sum of similarities, best contribution, movie it came from}
+        Neighbours[] rows = neighbours;
+        Map<Integer, double[]> candidates = new HashMap<>();
+        boolean complete = true;
+        for (double[] rating : rated) {
+            if (System.nanoTime() > deadline) {
+                complete = false;
+                break;
+            }
+            int movie = (int) rating[0];
+            Neighbours row = movie < rows.length && rows[movie] != null ? rows[movie] : Neighbours.NONE;
+            for (int k = 0; k < row.movies.length; k++) {
+                int candidate = row.movies[k];
+                if (seen.contains(candidate)) {
+                    continue;
+                }
+                double[] score = candidates.computeIfAbsent(candidate, c -> new double[]{0, 0, 0, -1});
+                double contribution = row.similarities[k] * rating[1];
+                score[0] += contribution;
+                score[1] += row.similarities[k];
+                if (contribution > score[2]) {
+                    score[2] = contribution;
+                    score[3] = movie;
+                }
+            }
+        }
+
+        // Ranked by the damped predicted deviation, so one weak neighbour does not beat several strong ones
+        List<Map.Entry<Integer, double[]>> ranked = new ArrayList<>();
+        for (Map.Entry<Integer, double[]> entry : candidates.entrySet()) {
+            if (entry.getValue()[0] > 0) {
+                ranked.add(entry);
+            }
+        }
+        ranked.sort((a, b) -> Double.compare(b.getValue()[0] / (b.getValue()[1] + 1), a.getValue()[0] / (a.getValue()[1] + 1)));
+        String[] ids = movieIds;
+        List<Recommendation> recommendations = new ArrayList<>();
+        for (Map.Entry<Integer, double[]> entry : ranked.subList(0, Math.min(count, ranked.size()))) {
+            double[] score = entry.getValue();
+            double predicted = Math.max(RatingAggregates.MIN_RATING,
+                    Math.min(RatingAggregates.MAX_RATING, centre + score[0] / score[1]));
+            recommendations.add(new Recommendation(ids[entry.getKey()], predicted,
+                    score[3] < 0 ? null : ids[(int) score[3]]));
+        }
+        return new Result(recommendations, true, complete);
+    }
+
+    // ---- Building ----
+
+    // One refresh round: everything on the first run and after the aggregates were replaced, else the dirty movies
+    void refresh() {
+        try {
+            boolean all = rebuildAll || !ready;
+            if (!all && dirtyMovies.isEmpty()) {
+                return;
+            }
+            long start = Metrics.start();
+            rebuildAll = false;
+            List<String> dirty = new ArrayList<>();
+            for (Iterator<String> it = dirtyMovies.iterator(); it.hasNext(); ) {
+                dirty.add(it.next());
+                it.remove();
+            }
+            if (all) {
+                collectAll();
+            } else {
+                collectChanged(dirty);
+            }
+            RatingMatrix matrix = buildMatrix();
+            if (all || dirty.size() > FULL_REBUILD_FRACTION * matrix.movieCount) {
+                int[] movies = new int[matrix.movieCount];
+                Arrays.setAll(movies, i -> i);
+                Neighbours[] rows = new Neighbours[matrix.movieCount];
+                ForkJoinPool.commonPool().invoke(new SimilarityTask(matrix, movies, 0, movies.length, rows));
+                neighbours = rows;
+                Metrics.record("recommend.rebuild", start);
+            } else {
+                patch(matrix, dirty);
+                Metrics.record("recommend.refresh", start);
+            }
+            ready = true;
+        } catch (RuntimeException e) {
+            rebuildAll = true;
+            System.err.println("Recommender refresh failed: " + e);
+        }
+    }
+
+    // Recomputes the neighbours of the dirty movies and updates their entries in the lists of the other
+    // movies they were and are now similar to (similarity is symmetric). A movie that drops out of a dirty
+    // movie's list is also dropped from the other's list, which may leave that list short until the next
+    // full rebuild.
+    private void patch(RatingMatrix matrix, List<String> dirty) {
+        int[] movies = new int[dirty.size()];
+        Set<Integer> recomputed = new HashSet<>();
+        int count = 0;
+        for (String movieId : dirty) {
+            Integer index = movieIndexes.get(movieId);
+            if (index != null) {
+                movies[count++] = index;
+                recomputed.add(index);
+            }
+        }
+        Neighbours[] computed = new Neighbours[count];
+        ForkJoinPool.commonPool().invoke(new SimilarityTask(matrix, movies, 0, count, computed));
+
+        Neighbours[] rows = Arrays.copyOf(neighbours, Math.max(neighbours.length, matrix.movieCount));
+        for (int k = 0; k < count; k++) {
+            int movie = movies[k];
+            Neighbours old = rows[movie] == null ? Neighbours.NONE : rows[movie];
+            Neighbours fresh = computed[k];
+            rows[movie] = fresh;
+            for (int other : old.movies) {
+                if (fresh.indexOf(other) < 0 && rows[other] != null && !recomputed.contains(other)) {
+                    rows[other] = rows[other].without(movie);
+                }
+            }
+            for (int i = 0; i < fresh.movies.length; i++) {
+                int other = fresh.movies[i];
+                if (!recomputed.contains(other)) {
+                    rows[other] = (rows[other] == null ? Neighbours.NONE : rows[other])
+                            .with(movie, fresh.similarities[i], neighbourCount);
+                }
+            }
+        }
+        neighbours = rows;
+    }
+
+    // Compressed sparse rows of the centred ratings, by movie and by user
+    private static final class RatingMatrix {
+        private int movieCount;
+        private int[] movieStart;
+        private int[] movieUsers;
+        private float[] movieValues;
+        private float[] movieNorms;
+        private int[] userStart;
+        private int[] userMovies;
+        private float[] userValues;
+    }
+
+    // Every review's rating, from a scan of the store
+    private void collectAll() {
+        userIndexes.clear();
+        tripleCount = 0;
+        List<String> newMovieIds = new ArrayList<>();
+        store.forEachRating((userId, movieId, rating) -> addTriple(userId, movieIndex(movieId, newMovieIds), rating));
+        publishMovieIds(newMovieIds);
+    }
+
+    // The ratings of the last refresh, with those of the dirty movies read again from their own reviews
+    private void collectChanged(List<String> dirty) {
+        List<String> newMovieIds = new ArrayList<>();
+        for (String movieId : dirty) {
+            movieIndex(movieId, newMovieIds);
+        }
+        publishMovieIds(newMovieIds);
+        boolean[] changed = new boolean[movieIndexes.size()];
+        for (String movieId : dirty) {
+            changed[movieIndexes.get(movieId)] = true;
+        }
+        int kept = 0;
+        for (int t = 0; t < tripleCount; t++) {
+            if (!changed[triples[1][t]]) {
+                for (int i = 0; i < 3; i++) {
+                    triples[i][kept] = triples[i][t];
+                }
+                kept++;
+            }
+        }
+        tripleCount = kept;
+        for (String movieId : dirty) {
+            int movie = movieIndexes.get(movieId);
+            for (Review review : store.getReviewsForMovie(movieId)) {
+                addTriple(review.getUserId(), movie, review.getRating());
+            }
+        }
+    }
+
+    private void addTriple(String userId, int movie, int rating) {
+        if (tripleCount == triples[0].length) {
+            for (int i = 0; i < 3; i++) {
+                triples[i] = Arrays.copyOf(triples[i], tripleCount * 2);
+            }
+        }
+        triples[0][tripleCount] = userIndexes.computeIfAbsent(userId, k -> userIndexes.size());
+        triples[1][tripleCount] = movie;
+        triples[2][tripleCount] = rating;
+        tripleCount++;
+    }
+
+    // The movie's index, assigning the next one to a movie not seen before
+    private int movieIndex(String movieId, List<String> newMovieIds) {
+        Integer movie = movieIndexes.get(movieId);
+        if (movie == null) {
+            movie = movieIndexes.size();
+            movieIndexes.put(movieId, movie);
+            newMovieIds.add(movieId);
+        }
+        return movie;
+    }
+
+    private void publishMovieIds(List<String> newMovieIds) {
+        if (!newMovieIds.isEmpty()) {
+            String[] ids = Arrays.copyOf(movieIds, movieIds.length + newMovieIds.size());
+            for (int i = 0; i < newMovieIds.size(); i++) {
+                ids[movieIds.length + i] = newMovieIds.get(i);
+            }
+            movieIds = ids;
+        }
+    }
+
+    private RatingMatrix buildMatrix() {
+        // Each user's ratings sorted by movie, so that several reviews of one movie become one averaged rating
+        int userCount = userIndexes.size();
+        int n = tripleCount;
+        int[] userStart = new int[userCount + 1];
+        for (int t = 0; t < n; t++) {
+            userStart[triples[0][t] + 1]++;
+        }
+        for (int u = 0; u < userCount; u++) {
+            userStart[u + 1] += userStart[u];
+        }
+        long[] keys = new long[n];
+        int[] position = Arrays.copyOf(userStart, userCount);
+        for (int t = 0; t < n; t++) {
+            keys[position[triples[0][t]]++] = (long) triples[1][t] << 32 | triples[2][t];
+        }
+
+        RatingMatrix matrix = new RatingMatrix();
+        matrix.movieCount = movieIndexes.size();
+        matrix.userStart = new int[userCount + 1];
+        matrix.userMovies = new int[n];
+        matrix.userValues = new float[n];
+        matrix.movieStart = new int[matrix.movieCount + 1];
+        int kept = 0;
+        for (int u = 0; u < userCount; u++) {
+            int from = kept;
+            Arrays.sort(keys, userStart[u], userStart[u + 1]);
+            double sum = 0;
+            for (int t = userStart[u]; t < userStart[u + 1]; ) {
+                int movie = (int) (keys[t] >>> 32);
+                int ratingSum = 0;
+                int reviews = 0;
+                for (; t < userStart[u + 1] && (int) (keys[t] >>> 32) == movie; t++) {
+                    ratingSum += (int) keys[t];
+                    reviews++;
+                }
+                matrix.userMovies[kept] = movie;
+                matrix.userValues[kept] = (float) ratingSum / reviews;
+                sum += matrix.userValues[kept];
+                kept++;
+            }
+            if (kept - from > MAX_USER_RATINGS) {
+                kept = from;
+            }
+            double mean = sum / Math.max(1, kept - from);
+            for (int q = from; q < kept; q++) {
+                matrix.userValues[q] -= (float) mean;
+                matrix.movieStart[matrix.userMovies[q] + 1]++;
+            }
+            matrix.userStart[u + 1] = kept;
+        }
+
+        // The same entries by movie
+        for (int i = 0; i < matrix.movieCount; i++) {
+            matrix.movieStart[i + 1] += matrix.movieStart[i];
+        }
+        matrix.movieUsers = new int[kept];
+        matrix.movieValues = new float[kept];
+        int[] moviePosition = Arrays.copyOf(matrix.movieStart, matrix.movieCount);
+        double[] squares = new double[matrix.movieCount];
+        for (int u = 0; u < userCount; u++) {
+            for (int q = matrix.userStart[u]; q < matrix.userStart[u + 1]; q++) {
+                int movie = matrix.userMovies[q];
+                float value = matrix.userValues[q];
+                int p = moviePosition[movie]++;
+                matrix.movieUsers[p] = u;
+                matrix.movieValues[p] = value;
+                squares[movie] += (double) value * value;
+            }
+        }
+        matrix.movieNorms = new float[matrix.movieCount];
+        for (int i = 0; i < matrix.movieCount; i++) {
+            matrix.movieNorms[i] = (float) Math.sqrt(squares[i]);
+        }
+        return matrix;
+    }
+
+    // Computes the neighbours of movies[from..to) into out[from..to), splitting into blocks of BLOCK movies
+    private final class SimilarityTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // Never serialized: the task only lives for one refresh
+        private final transient RatingMatrix matrix;
+        private final int[] movies;
+        private final int from;
+        private final int to;
+        private final transient Neighbours[] out;
+
+        private SimilarityTask(RatingMatrix matrix, int[] movies, int from, int to, Neighbours[] out) {
+            this.matrix = matrix;
+            this.movies = movies;
+            this.from = from;
+            this.to = to;
+            this.out = out;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BLOCK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new SimilarityTask(matrix, movies, from, middle, out),
+                        new SimilarityTask(matrix, movies, middle, to, out));
+                return;
+            }
+            double[] dots = new double[matrix.movieCount];
+            int[] common = new int[matrix.movieCount];
+            int[] touched = new int[matrix.movieCount];
+            for (int k = from; k < to; k++) {
+                out[k] = neighboursOf(movies[k], dots, common, touched);
+            }
+        }
+
+        // Accumulates the dot products with every movie that shares a rater with this one, then keeps the
+        // best neighbourCount in a min-heap
+        private Neighbours neighboursOf(int movie, double[] dots, int[] common, int[] touched) {
+            int touchedCount = 0;
+            for (int p = matrix.movieStart[movie]; p < matrix.movieStart[movie + 1]; p++) {
+                int user = matrix.movieUsers[p];
+                float value = matrix.movieValues[p];
+                for (int q = matrix.userStart[user]; q < matrix.userStart[user + 1]; q++) {
+                    int other = matrix.userMovies[q];
+                    if (other == movie) {
+                        continue;
+                    }
+                    if (common[other] == 0) {
+                        touched[touchedCount++] = other;
+                    }
+                    common[other]++;
+                    dots[other] += (double) value * matrix.userValues[q];
+                }
+            }
+
+            int[] heapMovies = new int[neighbourCount];
+            float[] heapSimilarities = new float[neighbourCount];
+            int heapSize = 0;
+            float norm = matrix.movieNorms[movie];
+            for (int t = 0; t < touchedCount; t++) {
+                int other = touched[t];
+                float otherNorm = matrix.movieNorms[other];
+                if (common[other] >= MIN_COMMON_RATERS && norm > 0 && otherNorm > 0 && dots[other] > 0) {
+                    float similarity = (float) (dots[other] / ((double) norm * otherNorm) * common[other] / (common[other] + SHRINKAGE));
+                    if (heapSize < neighbourCount) {
+                        heapMovies[heapSize] = other;
+                        heapSimilarities[heapSize] = similarity;
+                        siftUp(heapMovies, heapSimilarities, heapSize++);
+                    } else if (neighbourCount > 0 && similarity > heapSimilarities[0]) {
+                        heapMovies[0] = other;
+                        heapSimilarities[0] = similarity;
+                        siftDown(heapMovies, heapSimilarities, heapSize);
+                    }
+                }
+                dots[other] = 0;
+                common[other] = 0;
+            }
+
+            // Best first
+            int[] result = new int[heapSize];
+            float[] similarities = new float[heapSize];
+            for (int k = heapSize - 1; k >= 0; k--) {
+                result[k] = heapMovies[0];
+                similarities[k] = heapSimilarities[0];
+                heapMovies[0] = heapMovies[k];
+                heapSimilarities[0] = heapSimilarities[k];
+                siftDown(heapMovies, heapSimilarities, k);
+            }
+            return new Neighbours(result, similarities);
+        }
+    }
+
+    private static void siftUp(int[] movies, float[] similarities, int k) {
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            if (similarities[parent] <= similarities[k]) {
+                return;
+            }
+            swap(movies, similarities, parent, k);
+            k = parent;
+        }
+    }
+
+    private static void siftDown(int[] movies, float[] similarities, int size) {
+        int k = 0;
+        while (true) {
+            int smallest = k;
+            int left = 2 * k + 1;
+            int right = left + 1;
+            if (left < size && similarities[left] < similarities[smallest]) {
+                smallest = left;
+            }
+            if (right < size && similarities[right] < similarities[smallest]) {
+                smallest = right;
+            }
+            if (smallest == k) {
+                return;
+            }
+            swap(movies, similarities, smallest, k);
+            k = smallest;
+        }
+    }
+
+    private static void swap(int[] movies, float[] similarities, int i, int j) {
+        int movie = movies[i];
+        movies[i] = movies[j];
+        movies[j] = movie;
+        float similarity = similarities[i];
+        similarities[i] = similarities[j];
+        similarities[j] = similarity;
+    }
+}
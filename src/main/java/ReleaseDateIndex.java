@@ -0,0 +1,95 @@
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Sorted index of movies by release date (epoch day), for exact-year, year-range and newest-N queries
+// in O(log n + k). Movies whose release date could not be parsed are simply not indexed.
+public class ReleaseDateIndex {
+    private final NavigableMap<Long, Map<String, Movie>> moviesByDay = new TreeMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public void add(Movie movie) {
+        lock.writeLock().lock();
+        try {
+            long epochDay = movie.getReleaseEpochDay();
+            if (epochDay != Movie.UNKNOWN_RELEASE_DAY) {
+                moviesByDay.computeIfAbsent(epochDay, k -> new LinkedHashMap<>()).put(movie.getMovieId(), movie);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(Movie movie, long epochDay) {
+        lock.writeLock().lock();
+        try {
+            Map<String, Movie> movies = moviesByDay.get(epochDay);
+            if (movies != null) {
+                movies.remove(movie.getMovieId());
+                if (movies.isEmpty()) {
+                    moviesByDay.remove(epochDay);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Re-files a movie after its release date changed
+    public void update(Movie movie, long oldEpochDay) {
+        lock.writeLock().lock();
+        try {
+            remove(movie, oldEpochDay);
+            add(movie);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public List<Movie> findByYear(int year) {
+        return findByYearRange(year, year);
+    }
+
+    // Movies released from the start of fromYear to the end of toYear, oldest first
+    public List<Movie> findByYearRange(int fromYear, int toYear) {
+        lock.readLock().lock();
+        try {
+            List<Movie> result = new ArrayList<>();
+            if (fromYear > toYear) {
+                return result;
+            }
+            long from = LocalDate.of(fromYear, 1, 1).toEpochDay();
+            long to = LocalDate.of(toYear, 1, 1).plusYears(1).toEpochDay();
+            for (Map<String, Movie> movies : moviesByDay.subMap(from, true, to, false).values()) {
+                result.addAll(movies.values());
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The n most recently released movies, newest first
+    public List<Movie> findNewest(int n) {
+        lock.readLock().lock();
+        try {
+            List<Movie> result = new ArrayList<>();
+            for (Map<String, Movie> movies : moviesByDay.descendingMap().values()) {
+                for (Movie movie : movies.values()) {
+                    if (result.size() >= n) {
+                        return result;
+                    }
+                    result.add(movie);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
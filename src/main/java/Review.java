@@ -2,16 +2,37 @@ public class Review {
     private String reviewId;
     private String userId;
     private String movieId;
-    private int rating;
-    private String comments;
+    private volatile int rating;
+    private volatile String comments;
+    // When the review was posted or last changed, in milliseconds since the epoch; 0 if not known
+    private volatile long reviewedAt;
+    // Comment kept off the heap: only its handle is held and getComments() decodes it, until setComments
+    private final TextSegment commentSegment;
+    private final long commentHandle;
+    private final int commentLength;
+    private volatile boolean commentsReplaced;
 
     // Constructor
     public Review(String reviewId,String userId, String movieId, int rating, String comments) {
+        this(reviewId, userId, movieId, rating, comments, 0L);
+    }
+
+    public Review(String reviewId, String userId, String movieId, int rating, String comments, long reviewedAt) {
+        this(reviewId, userId, movieId, rating, reviewedAt, null, 0L, 0);
+        this.comments = comments;
+    }
+
+    // A review whose comment is the text at handle in segment
+    Review(String reviewId, String userId, String movieId, int rating, long reviewedAt, TextSegment commentSegment,
+           long commentHandle, int commentLength) {
         this.reviewId = reviewId;
         this.userId = userId;
         this.movieId = movieId;
         this.rating = rating;
-        this.comments = comments;
+        this.reviewedAt = reviewedAt;
+        this.commentSegment = commentSegment;
+        this.commentHandle = commentHandle;
+        this.commentLength = commentLength;
     }
 
     // Getters and setters
@@ -43,12 +64,24 @@ public class Review {
         this.rating = rating;
     }
 
+    public long getReviewedAt() {
+        return reviewedAt;
+    }
+
+    public void setReviewedAt(long reviewedAt) {
+        this.reviewedAt = reviewedAt;
+    }
+
     public String getComments() {
+        if (commentSegment != null && !commentsReplaced) {
+            return commentSegment.read(commentHandle, commentLength);
+        }
         return comments;
     }
 
     public void setComments(String comments) {
         this.comments = comments;
+        commentsReplaced = true;
     }
 
     @Override
@@ -57,7 +90,7 @@ public class Review {
                 "userId='" + userId + '\'' +
                 ", movieId='" + movieId + '\'' +
                 ", rating=" + rating +
-                ", comments='" + comments + '\'' +
+                ", comments='" + getComments() + '\'' +
                 '}';
     }
 }
@@ -0,0 +1,660 @@
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Columnar review storage: one row per review in growable primitive arrays instead of a Review object
+// with its own ID strings per review.
+// - review IDs are stored as longs (IDs that are not plain numbers get a negative code) and found through
+//   an open-addressing hash table of row numbers that compares against the ID column
+// - user and movie IDs are dictionary-encoded to ints, with a row list per user and per movie
+// - ratings are a byte column, review times (milliseconds since the epoch) a long column
+// - comments are kept off the heap in a compressed TextSegment, addressed by handle and length per row
+// Rows of removed reviews are reused. Review objects handed out are views built on demand that decode
+// their comment only when asked; changing them does not change the store. Reads share a read lock,
+// changes take the write lock.
+public class ReviewColumns {
+    private static final int INITIAL_ROWS = 1024;
+    private static final long FREE_ROW = Long.MIN_VALUE;
+    private static final int NULL_TEXT = -1;
+    private static final long MIN_COMMENT_GARBAGE = 1 << 20;
+    private static final int SCAN_PAGE_ROWS = 1 << 16;
+
+    // Row columns
+    private long[] ids = new long[INITIAL_ROWS];
+    private int[] users = new int[INITIAL_ROWS];
+    private int[] movies = new int[INITIAL_ROWS];
+    private byte[] ratings = new byte[INITIAL_ROWS];
+    private long[] reviewedAt = new long[INITIAL_ROWS];
+    private long[] commentAddresses = new long[INITIAL_ROWS];
+    private int[] commentLengths = new int[INITIAL_ROWS];
+    private int rowCount;
+    private int liveRows;
+    private final RowList freeRows = new RowList();
+
+    private final IdIndex rowsById = new IdIndex();
+    private final Dictionary userIds = new Dictionary();
+    private final Dictionary movieIds = new Dictionary();
+    private final List<RowList> rowsByUser = new ArrayList<>();
+    private final List<RowList> rowsByMovie = new ArrayList<>();
+    private TextSegment comments = TextSegment.create("comments");
+
+    // Review IDs that are not canonical non-negative numbers, by negative code (-1, -2, ...)
+    private final Map<String, Long> otherIdCodes = new HashMap<>();
+    private final List<String> otherIds = new ArrayList<>();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Returns false if a review with this ID is already stored
+    public boolean add(Review review) {
+        lock.writeLock().lock();
+        try {
+            long id = encodeId(review.getReviewId(), true);
+            if (rowsById.get(id) >= 0) {
+                return false;
+            }
+            int row = freeRows.size() > 0 ? freeRows.removeLast() : newRow();
+            int user = userIds.intern(review.getUserId());
+            int movie = movieIds.intern(review.getMovieId());
+            ids[row] = id;
+            users[row] = user;
+            movies[row] = movie;
+            ratings[row] = (byte) review.getRating();
+            reviewedAt[row] = review.getReviewedAt();
+            storeComment(row, review.getComments());
+            rowsById.put(row);
+            rowList(rowsByUser, user).add(row);
+            rowList(rowsByMovie, movie).add(row);
+            liveRows++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Review get(String reviewId) {
+        lock.readLock().lock();
+        try {
+            int row = findRow(reviewId);
+            return row < 0 ? null : view(row);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Returns false if there is no such review
+    public boolean update(String reviewId, int rating, String comment, long time) {
+        lock.writeLock().lock();
+        try {
+            int row = findRow(reviewId);
+            if (row < 0) {
+                return false;
+            }
+            ratings[row] = (byte) rating;
+            reviewedAt[row] = time;
+            releaseComment(row);
+            storeComment(row, comment);
+            compactCommentsIfWasteful();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Returns the removed review, or null if there is no such review
+    public Review remove(String reviewId) {
+        lock.writeLock().lock();
+        try {
+            int row = findRow(reviewId);
+            if (row < 0) {
+                return null;
+            }
+            Review removed = view(row);
+            rowsById.remove(row);
+            rowsByUser.get(users[row]).removeValue(row);
+            rowsByMovie.get(movies[row]).removeValue(row);
+            releaseComment(row);
+            ids[row] = FREE_ROW;
+            freeRows.add(row);
+            liveRows--;
+            compactCommentsIfWasteful();
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public List<Review> forMovie(String movieId) {
+        return viewsOf(rowsByMovie, movieIds, movieId);
+    }
+
+    public List<Review> forUser(String userId) {
+        return viewsOf(rowsByUser, userIds, userId);
+    }
+
+    public List<Review> all() {
+        lock.readLock().lock();
+        try {
+            List<Review> views = new ArrayList<>(liveRows);
+            for (int row = 0; row < rowCount; row++) {
+                if (ids[row] != FREE_ROW) {
+                    views.add(view(row));
+                }
+            }
+            return views;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Adds views of up to max live rows, starting at row, to views and returns the row to continue from,
+    // or -1 after the last row. The lock is only held for one page.
+    public int page(int row, int max, List<Review> views) {
+        lock.readLock().lock();
+        try {
+            int added = 0;
+            for (; row < rowCount; row++) {
+                if (added == max) {
+                    return row;
+                }
+                if (ids[row] != FREE_ROW) {
+                    views.add(view(row));
+                    added++;
+                }
+            }
+            return -1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The user IDs reviews refer to, each once; an ID stays after its reviews are removed
+    public List<String> referencedUserIds() {
+        return valuesOf(userIds);
+    }
+
+    // The movie IDs reviews refer to, each once; an ID stays after its reviews are removed
+    public List<String> referencedMovieIds() {
+        return valuesOf(movieIds);
+    }
+
+    private List<String> valuesOf(Dictionary dictionary) {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(dictionary.values);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return liveRows;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public interface RatingVisitor {
+        void visit(String userId, String movieId, int rating);
+    }
+
+    // Column scan over user, movie and rating. The IDs passed are the dictionaries' shared strings, so the
+    // scan allocates nothing. The lock is held for SCAN_PAGE_ROWS rows at a time, so writers wait for one
+    // page rather than the whole scan; a review changed meanwhile may be seen before or after the change.
+    public void forEachRating(RatingVisitor visitor) {
+        for (int start = 0; ; start += SCAN_PAGE_ROWS) {
+            lock.readLock().lock();
+            try {
+                int end = Math.min(rowCount, start + SCAN_PAGE_ROWS);
+                if (start >= end) {
+                    return;
+                }
+                for (int row = start; row < end; row++) {
+                    if (ids[row] != FREE_ROW) {
+                        visitor.visit(userIds.get(users[row]), movieIds.get(movies[row]), ratings[row]);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    public interface TimedRatingVisitor {
+        void visit(String movieId, int rating, long reviewedAt);
+    }
+
+    // Column scan over movie, rating and time, for the reviews posted or changed at or after since
+    public void forEachReviewSince(long since, TimedRatingVisitor visitor) {
+        lock.readLock().lock();
+        try {
+            for (int row = 0; row < rowCount; row++) {
+                if (ids[row] != FREE_ROW && reviewedAt[row] >= since) {
+                    visitor.visit(movieIds.get(movies[row]), ratings[row], reviewedAt[row]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Column scan over movie and rating: movieId -> {count, sum, number of 1..5 ratings}
+    public Map<String, long[]> ratingSummaries() {
+        lock.readLock().lock();
+        try {
+            long[][] byMovie = new long[movieIds.size()][];
+            for (int row = 0; row < rowCount; row++) {
+                if (ids[row] == FREE_ROW) {
+                    continue;
+                }
+                long[] summary = byMovie[movies[row]];
+                if (summary == null) {
+                    summary = byMovie[movies[row]] = new long[2 + RatingAggregates.MAX_RATING - RatingAggregates.MIN_RATING + 1];
+                }
+                int rating = ratings[row];
+                summary[0]++;
+                summary[1] += rating;
+                if (rating >= RatingAggregates.MIN_RATING && rating <= RatingAggregates.MAX_RATING) {
+                    summary[2 + rating - RatingAggregates.MIN_RATING]++;
+                }
+            }
+            Map<String, long[]> summaries = new HashMap<>();
+            for (int movie = 0; movie < byMovie.length; movie++) {
+                if (byMovie[movie] != null) {
+                    summaries.put(movieIds.get(movie), byMovie[movie]);
+                }
+            }
+            return summaries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ---- Rows ----
+
+    private List<Review> viewsOf(List<RowList> index, Dictionary dictionary, String key) {
+        lock.readLock().lock();
+        try {
+            int code = dictionary.find(key);
+            RowList rows = code < 0 || code >= index.size() ? null : index.get(code);
+            List<Review> views = new ArrayList<>(rows == null ? 0 : rows.size());
+            for (int i = 0; rows != null && i < rows.size(); i++) {
+                views.add(view(rows.get(i)));
+            }
+            return views;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Review view(int row) {
+        int length = commentLengths[row];
+        return new Review(decodeId(ids[row]), userIds.get(users[row]), movieIds.get(movies[row]), ratings[row],
+                reviewedAt[row], length == NULL_TEXT ? null : comments, commentAddresses[row], Math.max(length, 0));
+    }
+
+    private int findRow(String reviewId) {
+        long id = encodeId(reviewId, false);
+        return id == FREE_ROW ? -1 : rowsById.get(id);
+    }
+
+    private int newRow() {
+        if (rowCount == ids.length) {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            users = Arrays.copyOf(users, capacity);
+            movies = Arrays.copyOf(movies, capacity);
+            ratings = Arrays.copyOf(ratings, capacity);
+            reviewedAt = Arrays.copyOf(reviewedAt, capacity);
+            commentAddresses = Arrays.copyOf(commentAddresses, capacity);
+            commentLengths = Arrays.copyOf(commentLengths, capacity);
+        }
+        return rowCount++;
+    }
+
+    private static RowList rowList(List<RowList> index, int code) {
+        while (index.size() <= code) {
+            index.add(null);
+        }
+        RowList rows = index.get(code);
+        if (rows == null) {
+            rows = new RowList();
+            index.set(code, rows);
+        }
+        return rows;
+    }
+
+    // ---- Review IDs ----
+
+    // Plain numbers are stored as themselves, anything else by a negative code. Without assign,
+    // an unknown non-numeric ID gives FREE_ROW.
+    private long encodeId(String reviewId, boolean assign) {
+        if (isCanonicalNumber(reviewId)) {
+            return Long.parseLong(reviewId);
+        }
+        Long code = otherIdCodes.get(reviewId);
+        if (code == null) {
+            if (!assign) {
+                return FREE_ROW;
+            }
+            code = -1L - otherIds.size();
+            otherIdCodes.put(reviewId, code);
+            otherIds.add(reviewId);
+        }
+        return code;
+    }
+
+    private String decodeId(long id) {
+        return id >= 0 ? Long.toString(id) : otherIds.get((int) (-1L - id));
+    }
+
+    // Digits only, no leading zero and short enough for a long, so the ID round-trips through Long.toString
+    private static boolean isCanonicalNumber(String id) {
+        if (id == null || id.isEmpty() || id.length() > 18 || (id.length() > 1 && id.charAt(0) == '0')) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ---- Comments ----
+
+    private void storeComment(int row, String comment) {
+        if (comment == null) {
+            commentLengths[row] = NULL_TEXT;
+            return;
+        }
+        byte[] bytes = comment.getBytes(StandardCharsets.UTF_8);
+        commentAddresses[row] = comments.append(bytes);
+        commentLengths[row] = bytes.length;
+    }
+
+    private void releaseComment(int row) {
+        if (commentLengths[row] > 0) {
+            comments.release(commentLengths[row]);
+        }
+    }
+
+    // Copies the live comments into a fresh segment once replaced or removed text is the larger part.
+    // Views of the old segment can still decode their comments.
+    private void compactCommentsIfWasteful() {
+        long garbage = comments.garbageBytes();
+        if (garbage < MIN_COMMENT_GARBAGE || garbage < comments.liveBytes()) {
+            return;
+        }
+        TextSegment compacted = TextSegment.create("comments");
+        for (int row = 0; row < rowCount; row++) {
+            if (ids[row] != FREE_ROW && commentLengths[row] > 0) {
+                commentAddresses[row] = compacted.append(comments.readBytes(commentAddresses[row], commentLengths[row]));
+            }
+        }
+        comments.close();
+        comments = compacted;
+    }
+
+    // Compressed size of the comments, for footprint reports
+    public long commentStorageBytes() {
+        lock.readLock().lock();
+        try {
+            return comments.storedBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ---- Snapshots ----
+
+    // Writes the columns, the ID dictionaries and the comment segment as they are, for StoreSnapshot
+    void writeTo(DataOutputStream out) throws IOException {
+        lock.readLock().lock();
+        try {
+            out.writeInt(rowCount);
+            out.writeInt(liveRows);
+            StoreSnapshot.writeLongs(out, ids, rowCount);
+            StoreSnapshot.writeInts(out, users, rowCount);
+            StoreSnapshot.writeInts(out, movies, rowCount);
+            out.write(ratings, 0, rowCount);
+            StoreSnapshot.writeLongs(out, reviewedAt, rowCount);
+            StoreSnapshot.writeLongs(out, commentAddresses, rowCount);
+            StoreSnapshot.writeInts(out, commentLengths, rowCount);
+            out.writeInt(freeRows.size());
+            StoreSnapshot.writeInts(out, freeRows.rows, freeRows.size());
+            StoreSnapshot.writeStrings(out, userIds.values);
+            StoreSnapshot.writeStrings(out, movieIds.values);
+            StoreSnapshot.writeStrings(out, otherIds);
+            comments.writeTo(out);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Fills empty columns with what writeTo wrote; the row lists and the ID index are rebuilt from the columns
+    void readFrom(DataInput in) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (rowCount > 0) {
+                throw new IllegalStateException("Reviews can only be read into empty columns");
+            }
+            rowCount = in.readInt();
+            liveRows = in.readInt();
+            int capacity = Math.max(INITIAL_ROWS, rowCount);
+            ids = StoreSnapshot.readLongs(in, rowCount, capacity);
+            users = StoreSnapshot.readInts(in, rowCount, capacity);
+            movies = StoreSnapshot.readInts(in, rowCount, capacity);
+            ratings = new byte[capacity];
+            in.readFully(ratings, 0, rowCount);
+            reviewedAt = StoreSnapshot.readLongs(in, rowCount, capacity);
+            commentAddresses = StoreSnapshot.readLongs(in, rowCount, capacity);
+            commentLengths = StoreSnapshot.readInts(in, rowCount, capacity);
+            int free = in.readInt();
+            for (int row : StoreSnapshot.readInts(in, free, free)) {
+                freeRows.add(row);
+            }
+            for (String userId : StoreSnapshot.readStrings(in)) {
+                userIds.intern(userId);
+            }
+            for (String movieId : StoreSnapshot.readStrings(in)) {
+                movieIds.intern(movieId);
+            }
+            for (String otherId : StoreSnapshot.readStrings(in)) {
+                otherIdCodes.put(otherId, -1L - otherIds.size());
+                otherIds.add(otherId);
+            }
+            TextSegment restored = TextSegment.readFrom("comments", in);
+            comments.close();
+            comments = restored;
+
+            rowsById.presize(liveRows);
+            for (int row = 0; row < rowCount; row++) {
+                if (ids[row] != FREE_ROW) {
+                    rowsById.put(row);
+                    rowList(rowsByUser, users[row]).add(row);
+                    rowList(rowsByMovie, movies[row]).add(row);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // The highest review ID that is a number, 0 if there is none
+    long maxNumericId() {
+        lock.readLock().lock();
+        try {
+            long max = 0;
+            for (int row = 0; row < rowCount; row++) {
+                max = Math.max(max, ids[row]);
+            }
+            for (String otherId : otherIds) {
+                max = Math.max(max, StartupLoader.parseId(otherId));
+            }
+            return max;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ---- Primitive collections ----
+
+    private static class RowList {
+        private int[] rows = new int[4];
+        private int size;
+
+        private void add(int row) {
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            rows[size++] = row;
+        }
+
+        private int get(int index) {
+            return rows[index];
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private int removeLast() {
+            return rows[--size];
+        }
+
+        // Order does not matter, so the last row fills the gap
+        private void removeValue(int row) {
+            for (int i = 0; i < size; i++) {
+                if (rows[i] == row) {
+                    rows[i] = rows[--size];
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class Dictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        private int intern(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            return code;
+        }
+
+        private int find(String value) {
+            Integer code = codes.get(value);
+            return code == null ? -1 : code;
+        }
+
+        private String get(int code) {
+            return values.get(code);
+        }
+
+        private int size() {
+            return values.size();
+        }
+    }
+
+    // Open-addressing hash table of row numbers keyed by the row's ID in the ids column (4 bytes per slot
+    // instead of a stored key), with linear probing and backward-shift deletion
+    private class IdIndex {
+        private static final int EMPTY = -1;
+
+        private int[] slots;
+        private int mask;
+        private int size;
+
+        private IdIndex() {
+            allocate(INITIAL_ROWS * 2);
+        }
+
+        private void allocate(int capacity) {
+            slots = new int[capacity];
+            Arrays.fill(slots, EMPTY);
+            mask = capacity - 1;
+        }
+
+        private int slot(long id) {
+            long hash = id * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+
+        private int get(long id) {
+            for (int i = slot(id); slots[i] != EMPTY; i = (i + 1) & mask) {
+                if (ids[slots[i]] == id) {
+                    return slots[i];
+                }
+            }
+            return -1;
+        }
+
+        // Allocates the table for this many rows at once, instead of doubling it on the way; the index must be empty
+        private void presize(int rows) {
+            int capacity = slots.length;
+            while ((rows + 1) * 4L > capacity * 3L) {
+                capacity *= 2;
+            }
+            allocate(capacity);
+        }
+
+        // The row's ID must already be in the ids column and not be in the index yet
+        private void put(int row) {
+            if ((size + 1) * 4L > slots.length * 3L) {
+                int[] old = slots;
+                allocate(slots.length * 2);
+                for (int oldRow : old) {
+                    if (oldRow != EMPTY) {
+                        insert(oldRow);
+                    }
+                }
+            }
+            insert(row);
+            size++;
+        }
+
+        private void insert(int row) {
+            int i = slot(ids[row]);
+            while (slots[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = row;
+        }
+
+        // Must be called while the row's ID is still in the ids column
+        private void remove(int row) {
+            int gap = slot(ids[row]);
+            while (slots[gap] != row) {
+                if (slots[gap] == EMPTY) {
+                    return;
+                }
+                gap = (gap + 1) & mask;
+            }
+            // Pull back later entries of the probe run that may sit in the gap
+            for (int j = (gap + 1) & mask; slots[j] != EMPTY; j = (j + 1) & mask) {
+                int home = slot(ids[slots[j]]);
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    slots[gap] = slots[j];
+                    gap = j;
+                }
+            }
+            slots[gap] = EMPTY;
+            size--;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+import java.util.UUID;
+
+// Per-session state: who is logged in. The CLI has one session; the HTTP API keeps one per login token.
+// Only the user's ID is kept, so MovieReviewService looks the user up on each use and a removed user's
+// sessions stop working.
+public class Session {
+    private final String sessionId = UUID.randomUUID().toString();
+    private volatile String currentUserId;
+    // When the session was last used, for idle expiry in the HTTP API
+    private volatile long lastUsedMillis = System.currentTimeMillis();
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public String getCurrentUserId() {
+        return currentUserId;
+    }
+
+    public boolean isLoggedIn() {
+        return currentUserId != null;
+    }
+
+    public long getLastUsedMillis() {
+        return lastUsedMillis;
+    }
+
+    void touch() {
+        lastUsedMillis = System.currentTimeMillis();
+    }
+
+    void login(User user) {
+        this.currentUserId = user.getUserId();
+    }
+
+    public void logout() {
+        this.currentUserId = null;
+    }
+
+    // The logged-in user's ID, or a NotLoggedInException if nobody is logged in
+    public String requireUserId() {
+        String userId = currentUserId;
+        if (userId == null) {
+            throw new NotLoggedInException("You must be logged in.");
+        }
+        return userId;
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import org.bson.Document;
+
+// Loads the Movies, Users and Reviews collections at startup.
+// The three collections are fetched concurrently on virtual threads with field projections and a
+// larger cursor batch size. Reviews are streamed from their cursor straight into the store's columns,
+// so no list of Review objects is built for the largest collection. Once all three are in, the review
+// references are validated in a parallel pass and the reviews of missing users or movies are removed.
+public class StartupLoader {
+    public static final int DEFAULT_BATCH_SIZE = 5000;
+    private static final int PROGRESS_INTERVAL = 250_000;
+
+    static final List<String> MOVIE_FIELDS = List.of("movieId", "title", "description", "releaseDate", "genre");
+    static final List<String> USER_FIELDS = List.of("userId", "username", "password", "email");
+    static final List<String> REVIEW_FIELDS = List.of("reviewId", "userId", "movieId", "rating", "comments",
+            "reviewedAt");
+
+    private final StorageBackend backend;
+    private final int batchSize;
+
+    // Highest numeric IDs seen while loading, used to seed the ID allocator
+    private long maxMovieId;
+    private long maxUserId;
+    private long maxReviewId;
+
+    public StartupLoader(StorageBackend backend, int batchSize) {
+        this.backend = backend;
+        this.batchSize = batchSize;
+    }
+
+    public void load(EntityStore store, RatingAggregates ratingAggregates) {
+        long start = System.nanoTime();
+        List<Movie> movies;
+        List<User> users;
+        long reviewCount;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<List<Movie>> moviesFuture = executor.submit(() -> fetch("Movies", MOVIE_FIELDS, DocumentMapper::toMovie));
+            Future<List<User>> usersFuture = executor.submit(() -> fetch("Users", USER_FIELDS, DocumentMapper::toUser));
+            Future<Long> reviewsFuture = executor.submit(() -> loadReviews(store));
+            movies = moviesFuture.get();
+            users = usersFuture.get();
+            for (Movie movie : movies) {
+                store.addMovie(movie);
+                maxMovieId = Math.max(maxMovieId, parseId(movie.getMovieId()));
+            }
+            for (User user : users) {
+                store.addUser(user);
+                maxUserId = Math.max(maxUserId, parseId(user.getUserId()));
+            }
+            reviewCount = reviewsFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Loading was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error loading data: " + e.getCause().getMessage(), e.getCause());
+        }
+
+        // Users and movies are indexed and no longer change, so the references can be checked in parallel:
+        // each user and movie ID the reviews mention once, then the reviews of the missing ones are taken out
+        long validateStart = System.nanoTime();
+        List<String> missingUsers = store.referencedUserIds().parallelStream()
+                .filter(userId -> store.findUserById(userId) == null).toList();
+        List<String> missingMovies = store.referencedMovieIds().parallelStream()
+                .filter(movieId -> store.findMovieById(movieId) == null).toList();
+        for (String userId : missingUsers) {
+            for (Review review : store.getReviewsForUser(userId)) {
+                store.removeReview(review.getReviewId());
+            }
+        }
+        for (String movieId : missingMovies) {
+            for (Review review : store.getReviewsForMovie(movieId)) {
+                store.removeReview(review.getReviewId());
+            }
+        }
+        // One scan of the rating column instead of an aggregate update per review
+        ratingAggregates.rebuild(store.ratingSummaries());
+        report("Validated and indexed " + store.reviewCount() + " of " + reviewCount + " reviews", validateStart);
+        report("Startup load complete", start);
+    }
+
+    // Streams the reviews from their cursor straight into the store's columns, so each Review object is
+    // only alive until the columns have copied it; returns the number of documents read
+    private long loadReviews(EntityStore store) {
+        long start = System.nanoTime();
+        long[] count = new long[1];
+        backend.scan("Reviews", REVIEW_FIELDS, batchSize, document -> {
+            Review review = DocumentMapper.toReview(document);
+            maxReviewId = Math.max(maxReviewId, parseId(review.getReviewId()));
+            store.addReview(review);
+            if (++count[0] % PROGRESS_INTERVAL == 0) {
+                report("Reviews: " + count[0] + " documents so far", start);
+            }
+        });
+        report("Loaded " + count[0] + " documents from Reviews", start);
+        return count[0];
+    }
+
+    // Only the movies, for the bounded cache mode (ReadThroughStore), which reads users and reviews on demand
+    public void loadMovies(EntityAccess store) {
+        long start = System.nanoTime();
+        for (Movie movie : fetch("Movies", MOVIE_FIELDS, DocumentMapper::toMovie)) {
+            store.addMovie(movie);
+            maxMovieId = Math.max(maxMovieId, parseId(movie.getMovieId()));
+        }
+        report("Startup load complete", start);
+    }
+
+    private <T> List<T> fetch(String collectionName, List<String> fields, Function<Document, T> mapper) {
+        long start = System.nanoTime();
+        List<T> entities = new ArrayList<>();
+        backend.scan(collectionName, fields, batchSize, document -> {
+            entities.add(mapper.apply(document));
+            if (entities.size() % PROGRESS_INTERVAL == 0) {
+                report(collectionName + ": " + entities.size() + " documents so far", start);
+            }
+        });
+        report("Loaded " + entities.size() + " documents from " + collectionName, start);
+        return entities;
+    }
+
+    private static void report(String message, long startNanos) {
+        System.out.println(message + " (" + (System.nanoTime() - startNanos) / 1_000_000 + " ms)");
+    }
+
+    static long parseId(String id) {
+        try {
+            return id == null ? 0 : Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public long getMaxMovieId() {
+        return maxMovieId;
+    }
+
+    public long getMaxUserId() {
+        return maxUserId;
+    }
+
+    public long getMaxReviewId() {
+        return maxReviewId;
+    }
+}
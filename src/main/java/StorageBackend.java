@@ -0,0 +1,43 @@
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.bson.Document;
+
+// Persistent storage used by the application: MongoDB (MongoStorage) or the embedded
+// log-structured engine (EmbeddedStorage). Chosen with -Dapp.storage=mongo|embedded.
+public interface StorageBackend extends AutoCloseable {
+    // Streams every document of a collection, limited to the given fields
+    void scan(String collection, List<String> fields, int batchSize, Consumer<Document> consumer);
+
+    // Documents whose field equals the given value
+    List<Document> find(String collection, String field, String value);
+
+    // Applies a batch of upserts/deletes to one collection. Entries are independent of each other.
+    // Throws StorageWriteException when only some of them could be written.
+    void write(String collection, List<WriteBehindQueue.DirtyEntry> entries);
+
+    // Adds new documents, keyed by keyField, in unordered batches (insertMany on MongoDB). Used by bulk
+    // imports, which check beforehand that the keys are not in the store yet. A document whose key is
+    // already in the database, left by a failed earlier attempt, is not an error.
+    void insert(String collection, String keyField, List<Document> documents);
+
+    // Adds count to the named counter and returns its new value
+    long incrementCounter(String name, long count);
+
+    // Raises the named counter to at least value
+    void raiseCounter(String name, long value);
+
+    // Highest numeric value of the key field in the collection, 0 if there is none; keys that are not
+    // numbers are skipped. Seeds the ID counters when the data is not loaded into memory.
+    long maxId(String collection, String keyField);
+
+    // movieId -> {review count, rating sum, number of 1..5 ratings} over the stored reviews, the layout of
+    // EntityStore.ratingSummaries
+    Map<String, long[]> ratingTotals();
+
+    String describe();
+
+    @Override
+    void close();
+}
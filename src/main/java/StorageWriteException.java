@@ -0,0 +1,28 @@
+import java.util.List;
+import java.util.Map;
+
+// Thrown by StorageBackend.write when only part of a batch could be written. Entries in neither list
+// were written. Retryable ones failed for a reason that may pass (a failover, a timeout); rejected
+// ones, with the database's reason, will fail the same way every time (a duplicate key, a validation
+// error).
+public class StorageWriteException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final transient List<WriteBehindQueue.DirtyEntry> retryable;
+    private final transient Map<WriteBehindQueue.DirtyEntry, String> rejected;
+
+    public StorageWriteException(String message, List<WriteBehindQueue.DirtyEntry> retryable,
+                                 Map<WriteBehindQueue.DirtyEntry, String> rejected) {
+        super(message);
+        this.retryable = retryable;
+        this.rejected = rejected;
+    }
+
+    public List<WriteBehindQueue.DirtyEntry> getRetryable() {
+        return retryable;
+    }
+
+    public Map<WriteBehindQueue.DirtyEntry, String> getRejected() {
+        return rejected;
+    }
+}
@@ -0,0 +1,348 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+// Binary snapshot of the in-memory store for warm starts, with the sync checkpoint it is complete up to.
+// Users and movies are stored as records. Reviews are stored in their in-memory form: the review columns,
+// the compressed comment blocks and the full-text index, so loading them is mostly bulk array reads,
+// with no BSON decoding, no text analysis and no compression. The file is read through memory-mapped
+// windows. open() checks the whole file against its checksum and reads the header, so a damaged or
+// unsuitable snapshot is rejected before anything is loaded.
+//
+// Layout (big-endian): int magic, int version, string source, long checkpoint, long written at,
+// int user count, int movie count, the user and movie records, the reviews and full-text index
+// (EntityStore.writeReviewsAndIndex), then int CRC32C of everything before.
+//   user:   userId, username, password, email
+//   movie:  movieId, title, description, releaseDate, genre
+// Strings are an int UTF-8 length (-1 for null) and the bytes.
+public class StoreSnapshot {
+    private static final int MAGIC = 0x4D525753;
+    // 2: review times; 3: Porter stems in the full-text index
+    private static final int VERSION = 3;
+    private static final int NULL = -1;
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+    // Arrays are converted to and from bytes this many elements at a time
+    private static final int BULK_CHUNK = 8192;
+
+    private final Path file;
+    private final String source;
+    private final long checkpoint;
+    private final long writtenAt;
+    private int userCount;
+    private int movieCount;
+    private long recordsStart;
+    private long recordsEnd;
+    private long maxMovieId;
+    private long maxUserId;
+    private long maxReviewId;
+
+    private StoreSnapshot(Path file, String source, long checkpoint, long writtenAt) {
+        this.file = file;
+        this.source = source;
+        this.checkpoint = checkpoint;
+        this.writtenAt = writtenAt;
+    }
+
+    // Writes the store to a temporary file and renames it into place, so a crash leaves the previous snapshot.
+    // The store may change while it is written; the caller re-applies changes since checkpoint after loading.
+    public static void write(Path file, EntityStore store, String source, long checkpoint) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        Collection<User> users = new ArrayList<>(store.getUsers());
+        List<Movie> movies = store.getMovieList();
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), new CRC32C());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, source);
+            out.writeLong(checkpoint);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(users.size());
+            out.writeInt(movies.size());
+            for (User user : users) {
+                writeString(out, user.getUserId());
+                writeString(out, user.getUsername());
+                writeString(out, user.getPassword());
+                writeString(out, user.getEmail());
+            }
+            for (Movie movie : movies) {
+                writeString(out, movie.getMovieId());
+                writeString(out, movie.getTitle());
+                writeString(out, movie.getDescription());
+                writeString(out, movie.getReleaseDate());
+                writeString(out, movie.getGenre());
+            }
+            store.writeReviewsAndIndex(out);
+            out.flush();
+            int crc = (int) checked.getChecksum().getValue();
+            out.writeInt(crc);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Checks the checksum and reads the header; load() then reads the records
+    public static StoreSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 8) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            verifyChecksum(channel, size);
+            MappedInput mapped = new MappedInput(channel, 0, size - 4);
+            DataInputStream in = new DataInputStream(mapped);
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            }
+            StoreSnapshot snapshot = new StoreSnapshot(file, readString(in), in.readLong(), in.readLong());
+            snapshot.userCount = in.readInt();
+            snapshot.movieCount = in.readInt();
+            snapshot.recordsStart = mapped.position();
+            snapshot.recordsEnd = size - 4;
+            return snapshot;
+        }
+    }
+
+    // Fills an empty store and rebuilds the rating aggregates
+    public void load(EntityStore store, RatingAggregates ratingAggregates) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedInput mapped = new MappedInput(channel, recordsStart, recordsEnd);
+            DataInputStream in = new DataInputStream(mapped);
+            for (int i = 0; i < userCount; i++) {
+                User user = new User(readString(in), readString(in), readString(in), readString(in));
+                store.addUser(user);
+                maxUserId = Math.max(maxUserId, StartupLoader.parseId(user.getUserId()));
+            }
+            for (int i = 0; i < movieCount; i++) {
+                Movie movie = new Movie(readString(in), readString(in), readString(in), readString(in), readString(in));
+                store.addMovie(movie);
+                maxMovieId = Math.max(maxMovieId, StartupLoader.parseId(movie.getMovieId()));
+            }
+            store.readReviewsAndIndex(in);
+            maxReviewId = store.maxNumericReviewId();
+            if (mapped.position() != recordsEnd) {
+                throw new IOException("Snapshot has " + (recordsEnd - mapped.position()) + " unexpected bytes: " + file);
+            }
+        }
+        ratingAggregates.rebuild(store.ratingSummaries());
+    }
+
+    private static void verifyChecksum(FileChannel channel, long size) throws IOException {
+        CRC32C crc = new CRC32C();
+        long position = 0;
+        long end = size - 4;
+        while (position < end) {
+            long length = Math.min(MAP_WINDOW, end - position);
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+            position += length;
+        }
+        int stored = channel.map(FileChannel.MapMode.READ_ONLY, end, 4).getInt();
+        if ((int) crc.getValue() != stored) {
+            throw new IOException("Snapshot checksum mismatch");
+        }
+    }
+
+    // ---- Encoding, shared with the structures that write themselves into a snapshot ----
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    static List<String> readStrings(DataInput in) throws IOException {
+        int count = in.readInt();
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(NULL);
+            return;
+        }
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length == NULL) {
+            return null;
+        }
+        if (length < 0) {
+            throw new IOException("Bad length " + length + " in snapshot");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // The first count elements
+    static void writeInts(DataOutputStream out, int[] values, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BULK_CHUNK * 4);
+        for (int from = 0; from < count; from += BULK_CHUNK) {
+            int n = Math.min(BULK_CHUNK, count - from);
+            buffer.clear();
+            buffer.asIntBuffer().put(values, from, n);
+            out.write(buffer.array(), 0, n * 4);
+        }
+    }
+
+    // An array of at least capacity elements starting with the count elements read
+    static int[] readInts(DataInput in, int count, int capacity) throws IOException {
+        int[] values = new int[Math.max(count, capacity)];
+        byte[] bytes = new byte[BULK_CHUNK * 4];
+        for (int from = 0; from < count; from += BULK_CHUNK) {
+            int n = Math.min(BULK_CHUNK, count - from);
+            in.readFully(bytes, 0, n * 4);
+            ByteBuffer.wrap(bytes, 0, n * 4).asIntBuffer().get(values, from, n);
+        }
+        return values;
+    }
+
+    static void writeLongs(DataOutputStream out, long[] values, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BULK_CHUNK * 8);
+        for (int from = 0; from < count; from += BULK_CHUNK) {
+            int n = Math.min(BULK_CHUNK, count - from);
+            buffer.clear();
+            buffer.asLongBuffer().put(values, from, n);
+            out.write(buffer.array(), 0, n * 8);
+        }
+    }
+
+    static long[] readLongs(DataInput in, int count, int capacity) throws IOException {
+        long[] values = new long[Math.max(count, capacity)];
+        byte[] bytes = new byte[BULK_CHUNK * 8];
+        for (int from = 0; from < count; from += BULK_CHUNK) {
+            int n = Math.min(BULK_CHUNK, count - from);
+            in.readFully(bytes, 0, n * 8);
+            ByteBuffer.wrap(bytes, 0, n * 8).asLongBuffer().get(values, from, n);
+        }
+        return values;
+    }
+
+    // ---- Header ----
+
+    // Where the data came from (StorageBackend.describe()), so a snapshot of another database is not used
+    public String getSource() {
+        return source;
+    }
+
+    // Time up to which the snapshot holds every change, in milliseconds since the epoch
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    public long getWrittenAt() {
+        return writtenAt;
+    }
+
+    // The highest numeric IDs are known once load() has run
+
+    public long getMaxMovieId() {
+        return maxMovieId;
+    }
+
+    public long getMaxUserId() {
+        return maxUserId;
+    }
+
+    public long getMaxReviewId() {
+        return maxReviewId;
+    }
+
+    // Sequential reads over memory-mapped windows of part of the file
+    private static class MappedInput extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        private MappedInput(FileChannel channel, long start, long end) throws IOException {
+            this.channel = channel;
+            this.end = end;
+            map(start);
+        }
+
+        private void map(long position) throws IOException {
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, end - position));
+            windowStart = position;
+        }
+
+        // False at the end of the part
+        private boolean fill() throws IOException {
+            if (window.hasRemaining()) {
+                return true;
+            }
+            long position = position();
+            if (position >= end) {
+                return false;
+            }
+            map(position);
+            return true;
+        }
+
+        private long position() {
+            return windowStart + window.position();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? window.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(length, window.remaining());
+            window.get(bytes, offset, n);
+            return n;
+        }
+    }
+}
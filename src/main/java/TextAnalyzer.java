@@ -0,0 +1,139 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// Turns text into search terms: lower-cases, splits on anything that is not a letter or digit,
+// drops common stop words and stems what is left (steps 1 and 5a of the Porter stemmer).
+public class TextAnalyzer {
+    private static final Set<String> STOP_WORDS = Set.of(
+            "a", "an", "and", "are", "as", "at", "be", "but", "by", "for", "from", "has", "he", "her", "his",
+            "in", "into", "is", "it", "its", "of", "on", "or", "she", "that", "the", "their", "they", "this",
+            "to", "was", "were", "which", "who", "with");
+
+    private TextAnalyzer() {
+    }
+
+    public static List<String> analyze(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return terms;
+        }
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String token = lower.substring(start, i);
+                if (!STOP_WORDS.contains(token)) {
+                    terms.add(stem(token));
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    // Steps 1 and 5 of the Porter stemmer: plurals, -ed and -ing (1a, 1b), a final y after a vowel (1c)
+    // and a final e (5a), so "movies" and "movie" both give "movi" while "speed" and "series" keep the
+    // letters that only look like suffixes
+    static String stem(String word) {
+        if (word.length() <= 2) {
+            return word;
+        }
+        StringBuilder w = new StringBuilder(word);
+        // 1a
+        if (endsWith(w, "sses") || endsWith(w, "ies")) {
+            w.setLength(w.length() - 2);
+        } else if (endsWith(w, "s") && !endsWith(w, "ss")) {
+            w.setLength(w.length() - 1);
+        }
+        // 1b
+        if (endsWith(w, "eed")) {
+            if (measure(w, w.length() - 3) > 0) {
+                w.setLength(w.length() - 1);
+            }
+        } else if ((endsWith(w, "ed") && hasVowel(w, w.length() - 2))
+                || (endsWith(w, "ing") && hasVowel(w, w.length() - 3))) {
+            w.setLength(w.length() - (endsWith(w, "ed") ? 2 : 3));
+            int n = w.length();
+            if (endsWith(w, "at") || endsWith(w, "bl") || endsWith(w, "iz")) {
+                w.append('e');
+            } else if (doubleConsonant(w, n - 1) && "lsz".indexOf(w.charAt(n - 1)) < 0) {
+                w.setLength(n - 1);
+            } else if (measure(w, n) == 1 && cvc(w, n - 1)) {
+                w.append('e');
+            }
+        }
+        // 1c
+        if (endsWith(w, "y") && hasVowel(w, w.length() - 1)) {
+            w.setCharAt(w.length() - 1, 'i');
+        }
+        // 5a
+        if (endsWith(w, "e")) {
+            int m = measure(w, w.length() - 1);
+            if (m > 1 || (m == 1 && !cvc(w, w.length() - 2))) {
+                w.setLength(w.length() - 1);
+            }
+        }
+        return w.toString();
+    }
+
+    private static boolean endsWith(StringBuilder w, String suffix) {
+        int start = w.length() - suffix.length();
+        return start >= 0 && w.indexOf(suffix, start) == start;
+    }
+
+    // Porter's consonant: not a vowel, and y only after a vowel or at the start
+    private static boolean consonant(CharSequence w, int i) {
+        char c = w.charAt(i);
+        if ("aeiou".indexOf(c) >= 0) {
+            return false;
+        }
+        return c != 'y' || i == 0 || !consonant(w, i - 1);
+    }
+
+    // The number of vowel-consonant sequences in the first end letters ("tr" 0, "tree" 0, "trouble" 1,
+    // "troubles" 2)
+    private static int measure(CharSequence w, int end) {
+        int m = 0;
+        int i = 0;
+        while (i < end && consonant(w, i)) {
+            i++;
+        }
+        while (i < end) {
+            while (i < end && !consonant(w, i)) {
+                i++;
+            }
+            if (i == end) {
+                break;
+            }
+            m++;
+            while (i < end && consonant(w, i)) {
+                i++;
+            }
+        }
+        return m;
+    }
+
+    private static boolean hasVowel(CharSequence w, int end) {
+        for (int i = 0; i < end; i++) {
+            if (!consonant(w, i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean doubleConsonant(CharSequence w, int i) {
+        return i >= 1 && w.charAt(i) == w.charAt(i - 1) && consonant(w, i) && !Character.isDigit(w.charAt(i));
+    }
+
+    // Consonant, vowel, consonant ending at i, the last not w, x or y: "hop", but not "hoop" or "snow"
+    private static boolean cvc(CharSequence w, int i) {
+        return i >= 2 && consonant(w, i) && !consonant(w, i - 1) && consonant(w, i - 2)
+                && "wxy".indexOf(w.charAt(i)) < 0;
+    }
+}
@@ -0,0 +1,383 @@
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Off-heap store for large text fields (review comments, movie descriptions).
+// Texts are packed as UTF-8 into blocks of about 4 KB; each full block is deflate-compressed with a preset
+// dictionary and written to a memory-mapped segment file, so the text takes neither heap nor GC time.
+// - a text is addressed by a handle (block << 32 | offset in the block) plus its length, and is decoded on read
+// - the dictionary is trained once, on the first TRAINING_BYTES of text: its most frequent words and word pairs
+// - the block being filled stays on the heap; recently read blocks are kept decompressed in a small cache
+// - the file lives in -Dapp.textDir (default: the temp directory) and is deleted on close. It only holds
+//   text that is also in the database, so nothing is read back from it after a restart.
+// Replaced text is only counted as garbage; owners reclaim it by copying their live texts into a new segment.
+public class TextSegment implements AutoCloseable {
+    // Small blocks keep reading one text cheap; the trained dictionary keeps them compressing nearly as well as large ones
+    private static final int BLOCK_SIZE = 4 * 1024;
+    private static final int TRAINING_BYTES = 64 * 1024;
+    // Deflate cannot refer further back than 32 KB, so a larger dictionary would not help
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int REGION_SIZE = 64 << 20;
+    private static final int CACHED_BLOCKS = 256;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+    private long mappedBytes;
+    private int regionFill;
+
+    // Block directory: where each compressed block is and how long it is before and after compression
+    private int[] blockRegions = new int[64];
+    private int[] blockOffsets = new int[64];
+    private int[] blockCompressedLengths = new int[64];
+    private int[] blockLengths = new int[64];
+    private int blockCount;
+
+    // The block being filled; its handles already use block number blockCount
+    private byte[] pending = new byte[TRAINING_BYTES];
+    private int pendingFill;
+
+    private byte[] dictionary;
+    private final Deflater deflater = new Deflater();
+    // Setting up an Inflater costs more than inflating a block, so readers borrow one from a small pool.
+    // Not per thread: the API server runs each request on a new virtual thread. Inflaters that do not fit
+    // back in the pool are ended at once rather than left for the GC.
+    private static final BlockingQueue<Inflater> INFLATERS =
+            new ArrayBlockingQueue<>(2 * Runtime.getRuntime().availableProcessors());
+    // Direct-mapped: block b can only sit in slot b % CACHED_BLOCKS, so neighbouring blocks do not evict each other
+    private final AtomicReferenceArray<CachedBlock> cache = new AtomicReferenceArray<>(CACHED_BLOCKS);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private long liveBytes;
+    private long garbageBytes;
+    private long compressedBytes;
+
+    private TextSegment(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // A new, empty segment file named after what it holds
+    public static TextSegment create(String name) {
+        try {
+            Path dir = Path.of(System.getProperty("app.textDir", System.getProperty("java.io.tmpdir")));
+            Files.createDirectories(dir);
+            Path file = Files.createTempFile(dir, name + "-", ".seg");
+            file.toFile().deleteOnExit();
+            return new TextSegment(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create text segment " + name, e);
+        }
+    }
+
+    public long append(String text) {
+        return append(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Returns the handle of the text; read it back with its UTF-8 length
+    public long append(byte[] text) {
+        lock.writeLock().lock();
+        try {
+            int limit = dictionary == null ? TRAINING_BYTES : BLOCK_SIZE;
+            if (pendingFill > 0 && pendingFill + text.length > limit) {
+                flush();
+            }
+            if (pendingFill + text.length > pending.length) {
+                pending = Arrays.copyOf(pending, pendingFill + text.length);
+            }
+            System.arraycopy(text, 0, pending, pendingFill, text.length);
+            long handle = ((long) blockCount << 32) | pendingFill;
+            pendingFill += text.length;
+            liveBytes += text.length;
+            if (pendingFill >= limit) {
+                flush();
+            }
+            return handle;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Counts a replaced or removed text as garbage
+    public void release(int length) {
+        lock.writeLock().lock();
+        try {
+            liveBytes -= length;
+            garbageBytes += length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public String read(long handle, int length) {
+        return new String(readBytes(handle, length), StandardCharsets.UTF_8);
+    }
+
+    public byte[] readBytes(long handle, int length) {
+        int block = (int) (handle >>> 32);
+        int offset = (int) handle;
+        lock.readLock().lock();
+        try {
+            byte[] source = block == blockCount ? pending : decodedBlock(block);
+            return Arrays.copyOfRange(source, offset, offset + length);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long liveBytes() {
+        lock.readLock().lock();
+        try {
+            return liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long garbageBytes() {
+        lock.readLock().lock();
+        try {
+            return garbageBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Bytes used off the heap by compressed blocks, plus the block still being filled on the heap
+    public long storedBytes() {
+        lock.readLock().lock();
+        try {
+            return compressedBytes + pendingFill;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Handles given out stay readable: the mappings live as long as this object is reachable
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            deflater.end();
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Left for deleteOnExit
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ---- Snapshots ----
+
+    // Writes the dictionary and the blocks as they are, compressed, for StoreSnapshot
+    void writeTo(DataOutputStream out) throws IOException {
+        lock.readLock().lock();
+        try {
+            StoreSnapshot.writeBytes(out, dictionary);
+            out.writeInt(blockCount);
+            for (int block = 0; block < blockCount; block++) {
+                byte[] compressed = new byte[blockCompressedLengths[block]];
+                regions.get(blockRegions[block]).get(blockOffsets[block], compressed);
+                out.writeInt(blockLengths[block]);
+                out.writeInt(compressed.length);
+                out.write(compressed);
+            }
+            StoreSnapshot.writeBytes(out, Arrays.copyOf(pending, pendingFill));
+            out.writeLong(liveBytes);
+            out.writeLong(garbageBytes);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // A new segment with what writeTo wrote; the handles of the written segment are valid in it.
+    // Nothing is compressed again.
+    static TextSegment readFrom(String name, DataInput in) throws IOException {
+        TextSegment segment = create(name);
+        segment.dictionary = StoreSnapshot.readBytes(in);
+        int blocks = in.readInt();
+        for (int block = 0; block < blocks; block++) {
+            int length = in.readInt();
+            byte[] compressed = new byte[in.readInt()];
+            in.readFully(compressed);
+            segment.addBlock(compressed, compressed.length, length);
+        }
+        byte[] pending = StoreSnapshot.readBytes(in);
+        segment.pending = Arrays.copyOf(pending, Math.max(pending.length, segment.dictionary == null ? TRAINING_BYTES : BLOCK_SIZE));
+        segment.pendingFill = pending.length;
+        segment.liveBytes = in.readLong();
+        segment.garbageBytes = in.readLong();
+        return segment;
+    }
+
+    // ---- Blocks ----
+
+    private void flush() {
+        if (dictionary == null) {
+            dictionary = trainDictionary(pending, pendingFill);
+        }
+        deflater.reset();
+        if (dictionary.length > 0) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(pending, 0, pendingFill);
+        deflater.finish();
+        byte[] compressed = new byte[pendingFill + pendingFill / 8 + 64];
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+        addBlock(compressed, compressedLength, pendingFill);
+        // Texts were usually just written, so keep the block at hand decompressed
+        cacheBlock(blockCount - 1, Arrays.copyOf(pending, pendingFill));
+        pending = new byte[BLOCK_SIZE];
+        pendingFill = 0;
+    }
+
+    private void addBlock(byte[] compressed, int compressedLength, int length) {
+        MappedByteBuffer region = regionFor(compressedLength);
+        region.put(regionFill, compressed, 0, compressedLength);
+        if (blockCount == blockLengths.length) {
+            int capacity = blockCount * 2;
+            blockRegions = Arrays.copyOf(blockRegions, capacity);
+            blockOffsets = Arrays.copyOf(blockOffsets, capacity);
+            blockCompressedLengths = Arrays.copyOf(blockCompressedLengths, capacity);
+            blockLengths = Arrays.copyOf(blockLengths, capacity);
+        }
+        blockRegions[blockCount] = regions.size() - 1;
+        blockOffsets[blockCount] = regionFill;
+        blockCompressedLengths[blockCount] = compressedLength;
+        blockLengths[blockCount] = length;
+        regionFill += compressedLength;
+        compressedBytes += compressedLength;
+        blockCount++;
+    }
+
+    private MappedByteBuffer regionFor(int length) {
+        if (regions.isEmpty() || regionFill + length > regions.get(regions.size() - 1).capacity()) {
+            int size = Math.max(REGION_SIZE, length);
+            try {
+                regions.add(channel.map(FileChannel.MapMode.READ_WRITE, mappedBytes, size));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not extend text segment " + file, e);
+            }
+            mappedBytes += size;
+            regionFill = 0;
+        }
+        return regions.get(regions.size() - 1);
+    }
+
+    // Called with the read lock held; blocks never change once written, so readers may decode concurrently
+    private byte[] decodedBlock(int block) {
+        CachedBlock cached = cache.get(block % CACHED_BLOCKS);
+        if (cached != null && cached.block == block) {
+            return cached.bytes;
+        }
+        byte[] compressed = new byte[blockCompressedLengths[block]];
+        regions.get(blockRegions[block]).get(blockOffsets[block], compressed);
+        byte[] decoded = new byte[blockLengths[block]];
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(compressed);
+            int decodedLength = 0;
+            while (decodedLength < decoded.length) {
+                int n = inflater.inflate(decoded, decodedLength, decoded.length - decodedLength);
+                if (n == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(dictionary);
+                } else if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("Text segment block " + block + " is truncated");
+                }
+                decodedLength += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Text segment block " + block + " is corrupt", e);
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater)) {
+                inflater.end();
+            }
+        }
+        cacheBlock(block, decoded);
+        return decoded;
+    }
+
+    private void cacheBlock(int block, byte[] decoded) {
+        cache.set(block % CACHED_BLOCKS, new CachedBlock(block, decoded));
+    }
+
+    private static final class CachedBlock {
+        private final int block;
+        private final byte[] bytes;
+
+        private CachedBlock(int block, byte[] bytes) {
+            this.block = block;
+            this.bytes = bytes;
+        }
+    }
+
+    // ---- Dictionary ----
+
+    // The words and word pairs of the sample that occur more than once, weighted by how many bytes they would
+    // save, the most valuable last (deflate codes nearer matches shorter)
+    static byte[] trainDictionary(byte[] sample, int length) {
+        String[] words = new String(sample, 0, length, StandardCharsets.UTF_8).split("\\s+");
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < words.length; i++) {
+            counts.merge(words[i] + " ", 1, Integer::sum);
+            if (i + 1 < words.length) {
+                counts.merge(words[i] + " " + words[i + 1] + " ", 1, Integer::sum);
+            }
+        }
+        List<Map.Entry<String, Integer>> candidates = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > 1 && entry.getKey().length() > 2) {
+                candidates.add(entry);
+            }
+        }
+        candidates.sort((a, b) -> Long.compare((long) b.getValue() * b.getKey().length(),
+                (long) a.getValue() * a.getKey().length()));
+
+        List<byte[]> chosen = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<String, Integer> candidate : candidates) {
+            byte[] bytes = candidate.getKey().getBytes(StandardCharsets.UTF_8);
+            if (size + bytes.length <= DICTIONARY_SIZE) {
+                chosen.add(bytes);
+                size += bytes.length;
+            }
+        }
+        byte[] dictionary = new byte[size];
+        int position = 0;
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            System.arraycopy(chosen.get(i), 0, dictionary, position, chosen.get(i).length);
+            position += chosen.get(i).length;
+        }
+        return dictionary;
+    }
+}
@@ -0,0 +1,265 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+// Recent review activity per movie: how many reviews were posted or changed, and their rating sum, over the
+// last hour (in one-minute buckets), day (one-hour buckets) and month (one-day buckets).
+// - each movie with recent activity has a ring of buckets per window in one AtomicLongArray. A cell holds
+//   the bucket number it counts for in its high bits and the count (or rating sum) in the low bits, so a
+//   review is one compare-and-set per cell and a cell left over from an earlier lap of the ring reads as
+//   empty and restarts at the next write. Old buckets expire without a sweeper or a lock.
+// - "trending now" is the movies with the most reviews in a window, kept as a ranked list of the first
+//   size (-Dapp.trendingSize) entries per window. The list is recomputed from the rings at most every
+//   refreshMillis (-Dapp.trendingRefreshMillis), by one reader while the others keep using the previous
+//   list, so a query costs O(K) and never a scan of the reviews.
+// Removing a review does not take back its activity. Movies without activity in the last month are dropped
+// from the map when the rankings are recomputed.
+public class Trending {
+    public static final int DEFAULT_SIZE = 100;
+    public static final long DEFAULT_REFRESH_MILLIS = 1000;
+    private static final int VALUE_BITS = 38;
+    private static final long VALUE_MASK = (1L << VALUE_BITS) - 1;
+
+    public enum Window {
+        HOUR(60, 60_000L),
+        DAY(24, 3_600_000L),
+        MONTH(30, 86_400_000L);
+
+        private final int buckets;
+        private final long bucketMillis;
+        // First cell of this window's ring in a movie's cells; each bucket has a count and a sum cell
+        private int offset;
+
+        Window(int buckets, long bucketMillis) {
+            this.buckets = buckets;
+            this.bucketMillis = bucketMillis;
+        }
+
+        public long getMillis() {
+            return buckets * bucketMillis;
+        }
+
+        static {
+            int offset = 0;
+            for (Window window : values()) {
+                window.offset = offset;
+                offset += 2 * window.buckets;
+            }
+        }
+    }
+
+    private static final int CELLS = 2 * (Window.HOUR.buckets + Window.DAY.buckets + Window.MONTH.buckets);
+    // Most reviews first, then the higher rating sum, then the lower movie ID
+    private static final Comparator<Trend> ORDER = Comparator
+            .comparingLong((Trend trend) -> -trend.reviews)
+            .thenComparingLong(trend -> -trend.ratingSum)
+            .thenComparing(trend -> trend.movieId, EntityStore.ID_ORDER);
+
+    private final int size;
+    private final long refreshMillis;
+    private final LongSupplier clock;
+    // Bucket numbers are stored relative to the bucket this many milliseconds after the epoch
+    private final long origin;
+    private final Map<String, MovieActivity> activity = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<Ranking> rankings = new AtomicReferenceArray<>(Window.values().length);
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    public static class Trend {
+        private final String movieId;
+        private final long reviews;
+        private final long ratingSum;
+
+        private Trend(String movieId, long reviews, long ratingSum) {
+            this.movieId = movieId;
+            this.reviews = reviews;
+            this.ratingSum = ratingSum;
+        }
+
+        public String getMovieId() {
+            return movieId;
+        }
+
+        // Reviews posted or changed in the window
+        public long getReviews() {
+            return reviews;
+        }
+
+        public double getAverageRating() {
+            return reviews == 0 ? 0 : (double) ratingSum / reviews;
+        }
+    }
+
+    private static class MovieActivity {
+        private final AtomicLongArray cells = new AtomicLongArray(CELLS);
+        private volatile long lastRecorded;
+    }
+
+    private static class Ranking {
+        private final List<Trend> top;
+        private final long computedAt;
+
+        private Ranking(List<Trend> top, long computedAt) {
+            this.top = top;
+            this.computedAt = computedAt;
+        }
+    }
+
+    public Trending() {
+        this(Integer.getInteger("app.trendingSize", DEFAULT_SIZE),
+                Long.getLong("app.trendingRefreshMillis", DEFAULT_REFRESH_MILLIS), System::currentTimeMillis);
+    }
+
+    Trending(int size, long refreshMillis, LongSupplier clock) {
+        this.size = size;
+        this.refreshMillis = refreshMillis;
+        this.clock = clock;
+        this.origin = clock.getAsLong() - Window.MONTH.getMillis();
+    }
+
+    // Counts the reviews of the last month that are already in the store, e.g. after a startup load
+    public void recordAll(EntityStore store) {
+        store.forEachReviewSince(clock.getAsLong() - Window.MONTH.getMillis(), this::record);
+    }
+
+    // A review of movieId with this rating was posted or changed at time (milliseconds since the epoch).
+    // Times older than a window do not count in it; times in the future count as now.
+    public void record(String movieId, int rating, long time) {
+        long now = clock.getAsLong();
+        if (time <= now - Window.MONTH.getMillis()) {
+            return;
+        }
+        time = Math.min(time, now);
+        while (true) {
+            MovieActivity movie = activity.computeIfAbsent(movieId, k -> new MovieActivity());
+            if (movie.lastRecorded < time) {
+                movie.lastRecorded = time;
+            }
+            for (Window window : Window.values()) {
+                long bucket = (time - origin) / window.bucketMillis;
+                if (bucket > (now - origin) / window.bucketMillis - window.buckets) {
+                    int cell = window.offset + 2 * (int) (bucket % window.buckets);
+                    add(movie.cells, cell, bucket, 1);
+                    add(movie.cells, cell + 1, bucket, rating);
+                }
+            }
+            // Dropped as inactive meanwhile: count again in the movie's new entry
+            if (activity.get(movieId) == movie) {
+                return;
+            }
+        }
+    }
+
+    // The movies with the most reviews in the window, at most count and at most size; recomputed from the
+    // rings when the last ranking is older than refreshMillis
+    public List<Trend> top(Window window, int count) {
+        if (count <= 0) {
+            return Collections.emptyList();
+        }
+        Ranking ranking = rankings.get(window.ordinal());
+        long now = clock.getAsLong();
+        if (ranking == null || now - ranking.computedAt >= refreshMillis) {
+            // One reader recomputes; the others keep the previous ranking unless there is none yet
+            if (ranking == null) {
+                refreshLock.lock();
+            } else if (!refreshLock.tryLock()) {
+                return firstOf(ranking.top, count);
+            }
+            try {
+                ranking = rankings.get(window.ordinal());
+                if (ranking == null || now - ranking.computedAt >= refreshMillis) {
+                    ranking = rank(window, now);
+                    rankings.set(window.ordinal(), ranking);
+                }
+            } finally {
+                refreshLock.unlock();
+            }
+        }
+        return firstOf(ranking.top, count);
+    }
+
+    // Reviews of one movie in the window, read from its ring
+    public Trend activity(String movieId, Window window) {
+        MovieActivity movie = activity.get(movieId);
+        long[] totals = movie == null ? new long[2] : totals(movie, window, clock.getAsLong());
+        return new Trend(movieId, totals[0], totals[1]);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    private Ranking rank(Window window, long now) {
+        long start = Metrics.start();
+        PriorityQueue<Trend> best = new PriorityQueue<>(size + 1, ORDER.reversed());
+        for (Map.Entry<String, MovieActivity> entry : activity.entrySet()) {
+            MovieActivity movie = entry.getValue();
+            if (movie.lastRecorded <= now - Window.MONTH.getMillis()) {
+                activity.remove(entry.getKey(), movie);
+                continue;
+            }
+            long[] totals = totals(movie, window, now);
+            if (totals[0] == 0) {
+                continue;
+            }
+            best.add(new Trend(entry.getKey(), totals[0], totals[1]));
+            if (best.size() > size) {
+                best.poll();
+            }
+        }
+        List<Trend> top = new ArrayList<>(best);
+        top.sort(ORDER);
+        Metrics.record("trending.rank", start);
+        return new Ranking(Collections.unmodifiableList(top), now);
+    }
+
+    // {reviews, rating sum} over the buckets of the window that are still current
+    private long[] totals(MovieActivity movie, Window window, long now) {
+        long current = (now - origin) / window.bucketMillis;
+        long[] totals = new long[2];
+        for (int i = 0; i < window.buckets; i++) {
+            int cell = window.offset + 2 * i;
+            long count = movie.cells.get(cell);
+            long sum = movie.cells.get(cell + 1);
+            // The count and sum of a bucket are written separately, so each is checked on its own
+            if (current - (count >>> VALUE_BITS) < window.buckets) {
+                totals[0] += count & VALUE_MASK;
+            }
+            if (current - (sum >>> VALUE_BITS) < window.buckets) {
+                totals[1] += sum & VALUE_MASK;
+            }
+        }
+        return totals;
+    }
+
+    // Adds delta to the cell for bucket, restarting it if it still holds an earlier bucket and leaving it
+    // alone if a later bucket has taken it over
+    private static void add(AtomicLongArray cells, int cell, long bucket, long delta) {
+        while (true) {
+            long value = cells.get(cell);
+            long cellBucket = value >>> VALUE_BITS;
+            long updated;
+            if (cellBucket == bucket) {
+                updated = value + delta;
+            } else if (cellBucket < bucket) {
+                updated = bucket << VALUE_BITS | delta;
+            } else {
+                return;
+            }
+            if (cells.compareAndSet(cell, value, updated)) {
+                return;
+            }
+        }
+    }
+
+    private static List<Trend> firstOf(List<Trend> top, int count) {
+        return count >= top.size() ? top : top.subList(0, count);
+    }
+}
@@ -0,0 +1,375 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.bson.Document;
+
+// Write-behind persistence: mutations are queued as dirty entries and a background flusher writes them
+// to the storage backend in batches (unordered bulkWrite on MongoDB). Entries for the same key are
+// coalesced so only the latest state of a document is written. A batch is flushed when it reaches
+// maxBatchSize or maxDelayMillis after its first entry, whichever comes first.
+// Entries that fail to write are retried with a growing delay, up to MAX_WRITE_ATTEMPTS times; entries
+// the database rejects for good (a duplicate key, say) and entries out of attempts are dropped, logged
+// and kept in a short dead-letter list. shutdown() stops the flusher and writes whatever is left.
+public class WriteBehindQueue {
+    public enum Operation { UPSERT, DELETE }
+
+    public static class DirtyEntry {
+        private final String collection;
+        private final String keyField;
+        private final String key;
+        private final Operation operation;
+        private final Document document;
+
+        public DirtyEntry(String collection, String keyField, String key, Operation operation, Document document) {
+            this.collection = collection;
+            this.keyField = keyField;
+            this.key = key;
+            this.operation = operation;
+            this.document = document;
+        }
+
+        public String getCollection() {
+            return collection;
+        }
+
+        public String getKeyField() {
+            return keyField;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        public Document getDocument() {
+            return document;
+        }
+
+        private String coalesceKey() {
+            return coalesceKey(collection, key);
+        }
+
+        private static String coalesceKey(String collection, String key) {
+            return collection + '\u0000' + key;
+        }
+    }
+
+    // An entry waiting to be written again
+    private static class Retry {
+        private final DirtyEntry entry;
+        private final int failures;
+        private final long dueNanos;
+
+        private Retry(DirtyEntry entry, int failures, long dueNanos) {
+            this.entry = entry;
+            this.failures = failures;
+            this.dueNanos = dueNanos;
+        }
+    }
+
+    private static final DirtyEntry STOP = new DirtyEntry(null, null, null, null, null);
+    static final int MAX_WRITE_ATTEMPTS = 10;
+    private static final long MAX_RETRY_DELAY_MILLIS = 60_000;
+    private static final int MAX_DEAD_LETTERS = 1000;
+
+    private final StorageBackend backend;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final BlockingQueue<DirtyEntry> queue = new LinkedBlockingQueue<>();
+    // Entries of a batch that failed to write, retried once due; a newer queued entry for the key replaces them
+    private final Map<String, Retry> retry = new LinkedHashMap<>();
+    // The latest dropped entries, oldest first
+    private final Queue<DirtyEntry> deadLetters = new ConcurrentLinkedQueue<>();
+    // Latest entry queued per key, until that entry is written
+    private final Map<String, DirtyEntry> unwritten = new ConcurrentHashMap<>();
+    private final Thread flusher;
+    private volatile boolean running;
+    // Told about each collection's entries once they are written or dropped
+    private volatile Consumer<List<DirtyEntry>> flushListener;
+
+    // Metrics
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong failedFlushes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private volatile long lastFlushNanos;
+
+    public WriteBehindQueue(StorageBackend backend, int maxBatchSize, long maxDelayMillis) {
+        this.backend = backend;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.flusher = new Thread(this::runFlusher, "write-behind-flusher");
+        this.flusher.setDaemon(true);
+    }
+
+    public void setFlushListener(Consumer<List<DirtyEntry>> flushListener) {
+        this.flushListener = flushListener;
+    }
+
+    public void start() {
+        running = true;
+        flusher.start();
+    }
+
+    public void upsert(String collection, String keyField, String key, Document document) {
+        enqueue(new DirtyEntry(collection, keyField, key, Operation.UPSERT, document));
+    }
+
+    public void delete(String collection, String keyField, String key) {
+        enqueue(new DirtyEntry(collection, keyField, key, Operation.DELETE, null));
+    }
+
+    private void enqueue(DirtyEntry entry) {
+        enqueued.incrementAndGet();
+        unwritten.put(entry.coalesceKey(), entry);
+        queue.add(entry);
+    }
+
+    // Whether a change to the document is queued or awaiting retry, so the database does not have it yet
+    public boolean hasUnwritten(String collection, String key) {
+        return unwritten.containsKey(DirtyEntry.coalesceKey(collection, key));
+    }
+
+    // Stops the background flusher and writes the remaining entries on the calling thread
+    public void shutdown() {
+        if (running) {
+            running = false;
+            queue.add(STOP);
+            try {
+                flusher.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        List<DirtyEntry> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        remaining.remove(STOP);
+        synchronized (this) {
+            flush(remaining, true);
+            // No later attempt is coming
+            List<DirtyEntry> unwrittenAtShutdown = new ArrayList<>();
+            for (Retry waiting : retry.values()) {
+                drop(waiting.entry, "not written before shutdown");
+                unwrittenAtShutdown.add(waiting.entry);
+            }
+            retry.clear();
+            settled(unwrittenAtShutdown);
+        }
+    }
+
+    private void runFlusher() {
+        List<DirtyEntry> batch = new ArrayList<>(maxBatchSize);
+        while (running) {
+            try {
+                DirtyEntry first = queue.poll(maxDelayMillis, TimeUnit.MILLISECONDS);
+                if (first != null && first != STOP) {
+                    batch.add(first);
+                    // Group commit: keep collecting until the batch is full or the delay has passed
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+                    while (batch.size() < maxBatchSize) {
+                        queue.drainTo(batch, maxBatchSize - batch.size());
+                        long remainingNanos = deadline - System.nanoTime();
+                        if (batch.size() >= maxBatchSize || remainingNanos <= 0) {
+                            break;
+                        }
+                        DirtyEntry next = queue.poll(remainingNanos, TimeUnit.NANOSECONDS);
+                        if (next == null || next == STOP) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                    batch.remove(STOP);
+                }
+                synchronized (this) {
+                    if (!batch.isEmpty() || hasDueRetry()) {
+                        flush(batch, false);
+                    }
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private boolean hasDueRetry() {
+        long now = System.nanoTime();
+        for (Retry waiting : retry.values()) {
+            if (waiting.dueNanos - now <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // allRetries: every entry awaiting retry is tried now, not only the due ones
+    private void flush(List<DirtyEntry> batch, boolean allRetries) {
+        // Coalesce per key: retried entries first, then the batch in queue order, so the latest entry wins
+        long now = System.nanoTime();
+        Map<String, DirtyEntry> latest = new LinkedHashMap<>();
+        // Failures so far of the retried entries in latest
+        Map<String, Integer> failures = new HashMap<>();
+        int received = batch.size();
+        for (Iterator<Retry> it = retry.values().iterator(); it.hasNext(); ) {
+            Retry waiting = it.next();
+            if (allRetries || waiting.dueNanos - now <= 0) {
+                latest.put(waiting.entry.coalesceKey(), waiting.entry);
+                failures.put(waiting.entry.coalesceKey(), waiting.failures);
+                received++;
+                it.remove();
+            }
+        }
+        for (DirtyEntry entry : batch) {
+            String key = entry.coalesceKey();
+            if (retry.remove(key) != null) {
+                received++;
+            }
+            failures.remove(key);
+            latest.remove(key);
+            latest.put(key, entry);
+        }
+        coalesced.addAndGet(received - latest.size());
+        if (latest.isEmpty()) {
+            return;
+        }
+
+        Map<String, List<DirtyEntry>> byCollection = new LinkedHashMap<>();
+        for (DirtyEntry entry : latest.values()) {
+            byCollection.computeIfAbsent(entry.getCollection(), k -> new ArrayList<>()).add(entry);
+        }
+
+        long start = System.nanoTime();
+        boolean failed = false;
+        for (Map.Entry<String, List<DirtyEntry>> collectionEntries : byCollection.entrySet()) {
+            List<DirtyEntry> entries = collectionEntries.getValue();
+            try {
+                backend.write(collectionEntries.getKey(), entries);
+                written.addAndGet(entries.size());
+                settled(entries);
+            } catch (StorageWriteException e) {
+                // Only the failed entries; retrying the rejected ones would fail the same way
+                failed = true;
+                System.err.println("Error saving " + collectionEntries.getKey() + ": " + e.getMessage());
+                Set<DirtyEntry> unsettled = Collections.newSetFromMap(new IdentityHashMap<>());
+                unsettled.addAll(e.getRetryable());
+                unsettled.addAll(e.getRejected().keySet());
+                List<DirtyEntry> done = new ArrayList<>();
+                for (DirtyEntry entry : entries) {
+                    if (!unsettled.contains(entry)) {
+                        done.add(entry);
+                    }
+                }
+                written.addAndGet(done.size());
+                for (DirtyEntry entry : e.getRetryable()) {
+                    scheduleRetry(entry, failures.getOrDefault(entry.coalesceKey(), 0) + 1, e.getMessage());
+                }
+                for (Map.Entry<DirtyEntry, String> rejected : e.getRejected().entrySet()) {
+                    drop(rejected.getKey(), rejected.getValue());
+                    done.add(rejected.getKey());
+                }
+                settled(done);
+            } catch (Exception e) {
+                // Upserts and deletes by key are idempotent, so the whole collection batch is simply retried
+                failed = true;
+                System.err.println("Error saving " + collectionEntries.getKey() + ": " + e.getMessage());
+                for (DirtyEntry entry : entries) {
+                    scheduleRetry(entry, failures.getOrDefault(entry.coalesceKey(), 0) + 1, e.getMessage());
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        flushes.incrementAndGet();
+        if (failed) {
+            failedFlushes.incrementAndGet();
+        }
+        lastFlushNanos = elapsed;
+        Metrics.recordNanos("writeBehind.flush", elapsed);
+        totalFlushNanos.addAndGet(elapsed);
+        maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+    }
+
+    // Entries that are written, or dropped for good
+    private void settled(List<DirtyEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        for (DirtyEntry entry : entries) {
+            // Only if no newer entry for the key was queued meanwhile
+            unwritten.remove(entry.coalesceKey(), entry);
+        }
+        Consumer<List<DirtyEntry>> listener = flushListener;
+        if (listener != null) {
+            listener.accept(entries);
+        }
+    }
+
+    // Retried after maxDelayMillis, doubled with every further failure up to MAX_RETRY_DELAY_MILLIS
+    private void scheduleRetry(DirtyEntry entry, int failures, String reason) {
+        if (failures >= MAX_WRITE_ATTEMPTS) {
+            drop(entry, "failed " + failures + " times, last: " + reason);
+            settled(List.of(entry));
+            return;
+        }
+        long delayMillis = Math.min(maxDelayMillis << Math.min(failures - 1, 20), MAX_RETRY_DELAY_MILLIS);
+        retry.put(entry.coalesceKey(), new Retry(entry, failures,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis)));
+    }
+
+    // The document is logged in full so the change can still be applied by hand
+    private void drop(DirtyEntry entry, String reason) {
+        dropped.incrementAndGet();
+        deadLetters.add(entry);
+        if (deadLetters.size() > MAX_DEAD_LETTERS) {
+            deadLetters.poll();
+        }
+        System.err.println("Dropped " + entry.getOperation() + " of " + entry.getCollection() + " " + entry.getKey()
+                + " (" + reason + ")" + (entry.getDocument() == null ? "" : ": " + entry.getDocument().toJson()));
+    }
+
+    // The latest entries that were never written, oldest first
+    public List<DirtyEntry> getDeadLetters() {
+        return new ArrayList<>(deadLetters);
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public synchronized int getRetryDepth() {
+        return retry.size();
+    }
+
+    public String metricsSummary() {
+        long flushCount = flushes.get();
+        double avgMillis = flushCount == 0 ? 0.0 : totalFlushNanos.get() / 1_000_000.0 / flushCount;
+        return "Queue depth: " + getQueueDepth() + " (awaiting retry: " + getRetryDepth() + ")\n"
+                + "Entries queued: " + enqueued.get() + ", written: " + written.get() + ", coalesced: " + coalesced.get() + "\n"
+                + "Flushes: " + flushCount + " (failed: " + failedFlushes.get() + "), entries dropped: "
+                + dropped.get() + "\n"
+                + String.format("Flush latency ms: last %.2f, avg %.2f, max %.2f",
+                lastFlushNanos / 1_000_000.0, avgMillis, maxFlushNanos.get() / 1_000_000.0);
+    }
+}